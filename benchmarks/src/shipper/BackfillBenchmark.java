@@ -0,0 +1,87 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to read a large existing file from its beginning, sequentially and
+ * with {@link Backfill} on several threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BackfillBenchmark {
+	/**
+	 * Threads of {@link Backfill}, {@code 1} for sequential reading.
+	 */
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	/**
+	 * Size of the file in megabytes.
+	 */
+	@Param({ "512" })
+	public int megabytes;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path path;
+
+	private final CountingListener listener = new CountingListener();
+
+	@Setup
+	public void setUp() throws IOException {
+		Backfill.start(threads);
+		byte[] line = "2024-01-01 12:00:00,000 INFO [main] com.example.Service - request handled in 12 ms\n"
+				.getBytes(UTF8);
+		ByteBuffer block = ByteBuffer.allocate(1024 * 1024 / line.length
+				* line.length);
+		while (block.remaining() >= line.length) {
+			block.put(line);
+		}
+		path = Files.createTempFile("backfill", ".log");
+		try (FileChannel writer = FileChannel.open(path,
+				StandardOpenOption.WRITE)) {
+			for (int index = 0; index < megabytes; index = index + 1) {
+				block.flip();
+				writer.write(block);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.delete(path);
+	}
+
+	@Benchmark
+	public long readExisting() throws IOException {
+		FileMonitor monitor = new FileMonitor();
+		monitor.begin(path, listener);
+		monitor.examineFile(path, UTF8, listener);
+		monitor.release();
+		return listener.consumed;
+	}
+}
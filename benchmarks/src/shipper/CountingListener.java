@@ -0,0 +1,47 @@
+package shipper;
+
+import java.nio.file.Path;
+
+/**
+ * Listener for benchmarks that only consumes lines.
+ */
+public class CountingListener implements LineSliceListener {
+	/**
+	 * Sum of consumed line lengths and offsets.
+	 */
+	long consumed;
+
+	/**
+	 * {@code true} to decode every line.
+	 */
+	boolean decode;
+
+	@Override
+	public void lineAdded(Path file, LineSlice line) {
+		consumed = consumed + line.length() + line.offset();
+		if (decode) {
+			consumed = consumed + line.chars().length();
+		}
+	}
+
+	@Override
+	public void lineAdded(Path file, String lineContent) {
+		consumed = consumed + lineContent.length();
+	}
+
+	@Override
+	public void completelyRead(Path file) {
+	}
+
+	@Override
+	public void noSuchFile(Path file) {
+	}
+
+	@Override
+	public void fileRotated(Path file) {
+	}
+
+	@Override
+	public void resumed(Path file, long position) {
+	}
+}
@@ -0,0 +1,83 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of handling a single modification event: a small append followed by
+ * an examination of the file. The append is included as it is part of every
+ * event in practice.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExamineFileBenchmark {
+	/**
+	 * Lines appended per event.
+	 */
+	@Param({ "1", "10", "100" })
+	public int linesPerAppend;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path path;
+
+	private FileChannel writer;
+
+	private ByteBuffer append;
+
+	private FileMonitor monitor;
+
+	private final CountingListener listener = new CountingListener();
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (int index = 0; index < linesPerAppend; index = index + 1) {
+			lines.append("2024-01-01 12:00:00,000 INFO [main] com.example.Service - request handled in 12 ms\n");
+		}
+		append = ByteBuffer.wrap(lines.toString().getBytes(UTF8));
+		path = Files.createTempFile("examine", ".log");
+		writer = FileChannel.open(path, StandardOpenOption.APPEND);
+		monitor = new FileMonitor();
+		monitor.begin(path, listener);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		writer.close();
+		monitor.release();
+		Files.delete(path);
+	}
+
+	@Benchmark
+	public long appendAndExamine() throws IOException {
+		append.rewind();
+		writer.write(append);
+		monitor.examineFile(path, UTF8, listener);
+		return listener.consumed;
+	}
+}
@@ -0,0 +1,111 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting of read buffers into lines, optionally including decoding of each
+ * line. Each operation frames a full read buffer of complete lines, including
+ * the copy into the buffer that a file read does. The {@code lines} counter
+ * reports lines per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineFramerBenchmark {
+	/**
+	 * Lines per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long lines;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			lines = 0;
+		}
+	}
+
+	/**
+	 * Characters per line, excluding the terminator.
+	 */
+	@Param({ "16", "120", "1000" })
+	public int lineLength;
+
+	@Param({ "UTF-8", "UTF-16LE", "ISO-8859-1" })
+	public String charset;
+
+	/**
+	 * {@code true} to decode every line as done when lines are sent through
+	 * log4j.
+	 */
+	@Param({ "false", "true" })
+	public boolean decode;
+
+	private ByteBuffer content;
+
+	private ByteBuffer buffer;
+
+	private LineFramer framer;
+
+	private final Path path = Paths.get("benchmark.log");
+
+	private int lineCount;
+
+	private CountingListener listener;
+
+	@Setup
+	public void setUp() {
+		Charset encoding = Charset.forName(charset);
+		StringBuilder text = new StringBuilder();
+		StringBuilder line = new StringBuilder();
+		for (int index = 0; index < lineLength; index = index + 1) {
+			line.append((char) ('a' + index % 26));
+		}
+		line.append('\n');
+		byte[] encodedLine = line.toString().getBytes(encoding);
+		int lines = Math.max(1, 64 * 1024 / encodedLine.length);
+		for (int index = 0; index < lines; index = index + 1) {
+			text.append(line);
+		}
+		byte[] encoded = text.toString().getBytes(encoding);
+		lineCount = lines;
+		content = ByteBuffer.allocateDirect(encoded.length);
+		content.put(encoded).flip();
+		buffer = ByteBuffer.allocateDirect(encoded.length);
+		framer = new LineFramer(encoding, buffer);
+		listener = new CountingListener();
+		listener.decode = decode;
+	}
+
+	@Benchmark
+	public long frame(Counters counters) {
+		buffer.clear();
+		buffer.put(content.duplicate());
+		buffer.flip();
+		framer.frame(0, path, listener);
+		counters.lines = counters.lines + lineCount;
+		return listener.consumed;
+	}
+}
@@ -0,0 +1,656 @@
+package shipper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Load test of the whole shipper without a log cluster or network access.
+ * <p>
+ * Writes lines to a number of files at a configurable rate, including bursts
+ * and rename rotations, runs {@link Main} as a separate process on these files
+ * and receives the shipped lines with a local receiver for the chosen
+ * transport. Every line carries the time it was written, so the receiver
+ * measures the latency from writing a line to receiving it. Reports received
+ * lines per second, latency percentiles as well as CPU, resident memory and
+ * heap of the shipper process every few seconds and as summary.
+ * <p>
+ * Run with {@code java -cp target/benchmarks.jar shipper.LoadHarness --help}.
+ */
+public class LoadHarness {
+	/**
+	 * Options and their defaults.
+	 */
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static {
+		DEFAULTS.put("files", "10");
+		DEFAULTS.put("rate", "10000");
+		DEFAULTS.put("line-size", "120");
+		DEFAULTS.put("duration", "60");
+		DEFAULTS.put("warmup", "10");
+		DEFAULTS.put("burst-interval", "20");
+		DEFAULTS.put("burst-duration", "2");
+		DEFAULTS.put("burst-factor", "5");
+		DEFAULTS.put("rotate-interval", "30");
+		DEFAULTS.put("transport", "binary");
+		DEFAULTS.put("report-interval", "5");
+		DEFAULTS.put("directory", "");
+		DEFAULTS.put("shipper-jvm-args", "-Xmx256m");
+		DEFAULTS.put("shipper-args", "");
+	}
+
+	/**
+	 * Milliseconds between writes of the generator.
+	 */
+	private static final int TICK = 10;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * {@link System#nanoTime()} all written times are relative to.
+	 */
+	private static final long ORIGIN = System.nanoTime();
+
+	/**
+	 * Lines written.
+	 */
+	private final AtomicLong written = new AtomicLong();
+
+	/**
+	 * Lines received.
+	 */
+	private final AtomicLong received = new AtomicLong();
+
+	/**
+	 * Latencies since the last report.
+	 */
+	private volatile LatencyHistogram interval = new LatencyHistogram();
+
+	/**
+	 * Latencies after the warmup.
+	 */
+	private final LatencyHistogram measured = new LatencyHistogram();
+
+	/**
+	 * Options in effect.
+	 */
+	private final Map<String, String> options;
+
+	/**
+	 * @param options
+	 *            Options in effect.
+	 */
+	private LoadHarness(Map<String, String> options) {
+		this.options = options;
+	}
+
+	/**
+	 * @param args
+	 *            Options as {@code --name value} pairs, see {@code --help}.
+	 * @throws Exception
+	 *             Load test failed.
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+		for (int index = 0; index < args.length; index = index + 2) {
+			String name = args[index].replaceFirst("^--", "");
+			if (!options.containsKey(name) || index + 1 >= args.length) {
+				System.err.println("Options and defaults:");
+				for (Map.Entry<String, String> option : DEFAULTS.entrySet()) {
+					System.err.println("  --" + option.getKey() + " \""
+							+ option.getValue() + "\"");
+				}
+				System.exit(1);
+			}
+			options.put(name, args[index + 1]);
+		}
+		new LoadHarness(options).run();
+	}
+
+	/**
+	 * Runs the load test and prints its results.
+	 */
+	private void run() throws Exception {
+		Path directory = option("directory").isEmpty() ? Files
+				.createTempDirectory("load") : Paths.get(option("directory"));
+		Files.createDirectories(directory);
+		int files = Integer.parseInt(option("files"));
+		String transport = option("transport");
+
+		// Receive on loopback.
+		int port = startReceiver(transport);
+
+		// Ship files matching a pattern so rotated files are left out.
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+				.toString());
+		command.addAll(split(option("shipper-jvm-args")));
+		command.addAll(Arrays.asList("-cp",
+				System.getProperty("java.class.path"), "shipper.Main",
+				"--file", directory.resolve("*.log").toString(), "--host",
+				"localhost", "--port", String.valueOf(port), "--skip",
+				"false", "--transport",
+				"log4j".equals(transport) ? "log4j" : "binary"));
+		if (!"log4j".equals(transport) && !"binary".equals(transport)) {
+			command.addAll(Arrays.asList("--compression", transport));
+		}
+		command.addAll(split(option("shipper-args")));
+		System.out.println("Writing " + files + " files in " + directory);
+		System.out.println("Running " + command);
+		Process shipper = new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(directory.resolve("shipper.out").toFile())
+				.start();
+		long pid = pid(shipper);
+
+		Generator generator = new Generator(directory, files);
+		generator.start();
+		try {
+			report(generator, pid);
+		} finally {
+			generator.interrupt();
+			generator.join();
+			drain();
+			shipper.destroy();
+			shipper.waitFor(10, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Prints statistics periodically until the test duration passed.
+	 * 
+	 * @param generator
+	 *            Writer of lines.
+	 * @param pid
+	 *            Process id of the shipper or {@code -1} if unknown.
+	 */
+	private void report(Generator generator, long pid) throws Exception {
+		long reportInterval = TimeUnit.SECONDS.toNanos(Long
+				.parseLong(option("report-interval")));
+		long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup")));
+		long duration = TimeUnit.SECONDS.toNanos(Long
+				.parseLong(option("duration")));
+		long start = System.nanoTime();
+		long last = start;
+		long lastReceived = 0;
+		long lastCpu = cpuTicks(pid);
+		long measureStart = -1;
+		long measureReceived = 0;
+		long measureCpu = 0;
+		long maxRss = 0;
+		long maxHeap = 0;
+		System.out.println(String.format("%8s %10s %10s %9s %9s %9s %6s %8s %8s",
+				"seconds", "written", "lines/s", "p50 ms", "p99 ms",
+				"max ms", "cpu", "rss MB", "heap MB"));
+		while (System.nanoTime() - start < warmup + duration) {
+			Thread.sleep(TimeUnit.NANOSECONDS.toMillis(reportInterval));
+			long now = System.nanoTime();
+			long receivedNow = received.get();
+			long cpu = cpuTicks(pid);
+			LatencyHistogram latencies = interval;
+			interval = new LatencyHistogram();
+			long rss = rss(pid);
+			long heap = heap(pid);
+			boolean measuring = now - start >= warmup;
+			if (measuring) {
+				if (measureStart < 0) {
+					measureStart = now;
+					measureReceived = receivedNow;
+					measureCpu = cpu;
+				} else {
+					measured.add(latencies);
+				}
+				maxRss = Math.max(maxRss, rss);
+				maxHeap = Math.max(maxHeap, heap);
+			}
+			double seconds = (now - last) / 1e9;
+			System.out.println(String.format(
+					"%8d %10d %10.0f %9.1f %9.1f %9.1f %6s %8s %8s%s",
+					TimeUnit.NANOSECONDS.toSeconds(now - start),
+					written.get(), (receivedNow - lastReceived) / seconds,
+					latencies.percentile(50) / 1000.0,
+					latencies.percentile(99) / 1000.0,
+					latencies.percentile(100) / 1000.0,
+					cpu(cpu - lastCpu, seconds), megabytes(rss),
+					megabytes(heap), measuring ? "" : " (warmup)"));
+			last = now;
+			lastReceived = receivedNow;
+			lastCpu = cpu;
+		}
+
+		long end = System.nanoTime();
+		double seconds = (end - measureStart) / 1e9;
+		System.out.println();
+		System.out.println(String.format(
+				"Sustained %.0f lines/s over %.0f s, latency p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+				(received.get() - measureReceived) / seconds, seconds,
+				measured.percentile(50) / 1000.0,
+				measured.percentile(99) / 1000.0,
+				measured.percentile(100) / 1000.0));
+		System.out.println(String.format(
+				"Shipper used %s CPU cores, at most %s MB resident and %s MB heap",
+				cpu(cpuTicks(pid) - measureCpu, seconds), megabytes(maxRss),
+				megabytes(maxHeap)));
+	}
+
+	/**
+	 * Waits for the shipper to send all written lines.
+	 */
+	private void drain() throws InterruptedException {
+		long before = -1;
+		while (received.get() < written.get() && received.get() != before) {
+			before = received.get();
+			Thread.sleep(5000);
+		}
+		long missing = written.get() - received.get();
+		System.out.println(String.format("Wrote %d lines, received %d%s",
+				written.get(), received.get(), missing > 0 ? ", " + missing
+						+ " missing" : missing < 0 ? ", " + -missing
+						+ " duplicates" : ""));
+	}
+
+	/**
+	 * Starts a receiver for the transport.
+	 * 
+	 * @param transport
+	 *            log4j, binary or a compression of binary.
+	 * @return Port to send to.
+	 */
+	private int startReceiver(String transport) throws IOException {
+		if (!"log4j".equals(transport)) {
+			BinaryReceiver receiver = new BinaryReceiver(0,
+					new BinaryReceiver.Handler() {
+						@Override
+						public void record(String path, long offset,
+								long timestamp, Level level, byte[] line) {
+							received(line);
+						}
+					});
+			receiver.start();
+			return receiver.getPort();
+		}
+
+		final ServerSocket server = new ServerSocket(0, 50,
+				InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread("Log4j receiver") {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						final Socket socket = server.accept();
+						Thread connection = new Thread("Log4j connection") {
+							@Override
+							public void run() {
+								receiveLog4j(socket);
+							}
+						};
+						connection.setDaemon(true);
+						connection.start();
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Reads serialized log4j events of a connection until it is closed.
+	 * 
+	 * @param socket
+	 *            Accepted connection.
+	 */
+	private void receiveLog4j(Socket socket) {
+		try (ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(socket.getInputStream()))) {
+			while (true) {
+				LoggingEvent event = (LoggingEvent) in.readObject();
+				received(event.getRenderedMessage().getBytes(UTF8));
+			}
+		} catch (EOFException e) {
+			// Closed by shipper.
+		} catch (IOException | ClassNotFoundException e) {
+			System.err.println("Log4j connection failed: " + e);
+		}
+	}
+
+	/**
+	 * Counts a received line and its latency.
+	 * 
+	 * @param line
+	 *            Line starting with the nanoseconds it was written at.
+	 */
+	private void received(byte[] line) {
+		long sent = 0;
+		for (int index = 0; index < line.length && line[index] != ' '; index = index + 1) {
+			sent = sent * 10 + line[index] - '0';
+		}
+		interval.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+				- ORIGIN - sent));
+		received.incrementAndGet();
+	}
+
+	/**
+	 * Writes lines to all files at the configured rate.
+	 */
+	private class Generator extends Thread {
+		/**
+		 * Files being written.
+		 */
+		private final Path[] paths;
+
+		/**
+		 * Open files.
+		 */
+		private final FileChannel[] channels;
+
+		/**
+		 * Lines per second and file outside of bursts.
+		 */
+		private final double rate;
+
+		/**
+		 * Bytes per line including the line feed.
+		 */
+		private final int lineSize;
+
+		/**
+		 * @param directory
+		 *            Directory to write files to.
+		 * @param files
+		 *            Number of files.
+		 */
+		Generator(Path directory, int files) throws IOException {
+			super("Load generator");
+			paths = new Path[files];
+			channels = new FileChannel[files];
+			for (int index = 0; index < files; index = index + 1) {
+				paths[index] = directory.resolve("file" + index + ".log");
+				channels[index] = open(paths[index]);
+			}
+			rate = Double.parseDouble(option("rate")) / files;
+			lineSize = Integer.parseInt(option("line-size"));
+		}
+
+		@Override
+		public void run() {
+			long burstInterval = TimeUnit.SECONDS.toNanos(Long
+					.parseLong(option("burst-interval")));
+			long burstDuration = TimeUnit.SECONDS.toNanos(Long
+					.parseLong(option("burst-duration")));
+			double burstFactor = Double.parseDouble(option("burst-factor"));
+			long rotateInterval = TimeUnit.SECONDS.toNanos(Long
+					.parseLong(option("rotate-interval")));
+			long start = System.nanoTime();
+			long nextRotation = start + rotateInterval;
+			double[] due = new double[paths.length];
+			ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+			try {
+				while (!isInterrupted()) {
+					long now = System.nanoTime();
+					boolean burst = burstInterval > 0
+							&& (now - start) % burstInterval < burstDuration
+							&& now - start >= burstInterval;
+					double lines = rate * TICK / 1000
+							* (burst ? burstFactor : 1);
+					byte[] line = line(now - ORIGIN);
+					for (int index = 0; index < paths.length; index = index + 1) {
+						due[index] = due[index] + lines;
+						write(index, line, (int) due[index], block);
+						due[index] = due[index] - (int) due[index];
+					}
+					if (rotateInterval > 0 && now >= nextRotation) {
+						rotate();
+						nextRotation = now + rotateInterval;
+					}
+					long sleep = TICK - TimeUnit.NANOSECONDS.toMillis(System
+							.nanoTime() - now);
+					if (sleep > 0) {
+						Thread.sleep(sleep);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Test is over.
+			} catch (IOException e) {
+				System.err.println("Failed to write: " + e);
+			}
+			for (FileChannel channel : channels) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close: " + e);
+				}
+			}
+		}
+
+		/**
+		 * @param time
+		 *            Nanoseconds since {@link LoadHarness#ORIGIN}.
+		 * @return Line of the configured size holding the time.
+		 */
+		private byte[] line(long time) {
+			byte[] prefix = (time + " ").getBytes(UTF8);
+			byte[] line = new byte[Math.max(lineSize, prefix.length + 1)];
+			Arrays.fill(line, (byte) 'x');
+			System.arraycopy(prefix, 0, line, 0, prefix.length);
+			line[line.length - 1] = '\n';
+			return line;
+		}
+
+		/**
+		 * Appends copies of a line to a file.
+		 * 
+		 * @param index
+		 *            File to write to.
+		 * @param line
+		 *            Line to write.
+		 * @param count
+		 *            Number of copies.
+		 * @param block
+		 *            Buffer to collect lines in.
+		 */
+		private void write(int index, byte[] line, int count, ByteBuffer block)
+				throws IOException {
+			int remaining = count;
+			while (remaining > 0) {
+				block.clear();
+				while (remaining > 0 && block.remaining() >= line.length) {
+					block.put(line);
+					remaining = remaining - 1;
+				}
+				if (block.position() == 0) {
+					// Line exceeds buffer.
+					block = ByteBuffer.wrap(line);
+					block.position(line.length);
+					remaining = remaining - 1;
+				}
+				block.flip();
+				while (block.hasRemaining()) {
+					channels[index].write(block);
+				}
+			}
+			written.addAndGet(count);
+		}
+
+		/**
+		 * Renames all files and continues with new files, like log rotation
+		 * by renaming.
+		 */
+		private void rotate() throws IOException {
+			for (int index = 0; index < paths.length; index = index + 1) {
+				channels[index].close();
+				Files.move(paths[index],
+						paths[index].resolveSibling(paths[index].getFileName()
+								+ ".1"), StandardCopyOption.REPLACE_EXISTING);
+				channels[index] = open(paths[index]);
+			}
+		}
+
+		/**
+		 * @param path
+		 *            File to append to.
+		 * @return Open file, created if missing.
+		 */
+		private FileChannel open(Path path) throws IOException {
+			return FileChannel.open(path, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            Option name without dashes.
+	 * @return Value of the option.
+	 */
+	private String option(String name) {
+		return options.get(name);
+	}
+
+	/**
+	 * @param arguments
+	 *            Arguments separated by spaces.
+	 * @return Single arguments.
+	 */
+	private static List<String> split(String arguments) {
+		List<String> split = new ArrayList<>();
+		for (String argument : arguments.trim().split("\\s+")) {
+			if (!argument.isEmpty()) {
+				split.add(argument);
+			}
+		}
+		return split;
+	}
+
+	/**
+	 * @param process
+	 *            Started process.
+	 * @return Process id or {@code -1} before Java 9.
+	 */
+	private static long pid(Process process) {
+		try {
+			return (Long) Process.class.getMethod("pid").invoke(process);
+		} catch (ReflectiveOperationException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param pid
+	 *            Process id.
+	 * @return User and system CPU time of the process in clock ticks or
+	 *         {@code 0} if unknown.
+	 */
+	private static long cpuTicks(long pid) {
+		try {
+			String stat = new String(Files.readAllBytes(Paths.get("/proc/"
+					+ pid + "/stat")), UTF8);
+			// Fields after the command name, which may contain spaces.
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(
+					" ");
+			return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+		} catch (IOException | RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param ticks
+	 *            CPU time in clock ticks of 10 ms.
+	 * @param seconds
+	 *            Elapsed time.
+	 * @return Used CPU cores.
+	 */
+	private static String cpu(long ticks, double seconds) {
+		return String.format("%.2f", ticks / 100.0 / seconds);
+	}
+
+	/**
+	 * @param pid
+	 *            Process id.
+	 * @return Resident memory of the process in bytes or {@code 0} if
+	 *         unknown.
+	 */
+	private static long rss(long pid) {
+		try {
+			for (String line : Files.readAllLines(
+					Paths.get("/proc/" + pid + "/status"), UTF8)) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Unknown.
+		}
+		return 0;
+	}
+
+	/**
+	 * @param pid
+	 *            Process id.
+	 * @return Used heap of the process in bytes as reported by {@code jstat}
+	 *         or {@code 0} if unknown.
+	 */
+	private static long heap(long pid) {
+		File jstat = Paths.get(System.getProperty("java.home"), "bin", "jstat")
+				.toFile();
+		if (pid < 0 || !jstat.exists()) {
+			return 0;
+		}
+		try {
+			Process process = new ProcessBuilder(jstat.getPath(), "-gc",
+					String.valueOf(pid)).redirectErrorStream(true).start();
+			try (BufferedReader out = new BufferedReader(new InputStreamReader(
+					process.getInputStream(), UTF8))) {
+				List<String> header = Arrays.asList(out.readLine().trim()
+						.split("\\s+"));
+				String[] values = out.readLine().trim().split("\\s+");
+				double used = 0;
+				for (String column : Arrays.asList("S0U", "S1U", "EU", "OU")) {
+					used = used
+							+ Double.parseDouble(values[header.indexOf(column)]);
+				}
+				return (long) (used * 1024);
+			}
+		} catch (IOException | RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            Amount of memory.
+	 * @return Megabytes or {@code -} if unknown.
+	 */
+	private static String megabytes(long bytes) {
+		return bytes == 0 ? "-" : String.valueOf(bytes / 1024 / 1024);
+	}
+}
@@ -0,0 +1,77 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a rename rotation: the monitored file is renamed, a new file with a
+ * single line takes its place and the next examination drains the old file
+ * and switches to the new one. Includes the file system operations of the
+ * rotation itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RotationBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] LINE = "2024-01-01 12:00:00,000 INFO [main] com.example.Service - request handled in 12 ms\n"
+			.getBytes(UTF8);
+
+	private Path directory;
+
+	private Path path;
+
+	private Path rotated;
+
+	private FileMonitor monitor;
+
+	private final CountingListener listener = new CountingListener();
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("rotation");
+		path = directory.resolve("a.log");
+		rotated = directory.resolve("a.log.1");
+		Files.write(path, LINE);
+		monitor = new FileMonitor();
+		monitor.begin(path, listener);
+		monitor.examineFile(path, UTF8, listener);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		monitor.release();
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(rotated);
+		Files.delete(directory);
+	}
+
+	@Benchmark
+	public long rotate() throws IOException {
+		Files.move(path, rotated, StandardCopyOption.REPLACE_EXISTING);
+		Files.write(path, LINE);
+		monitor.examineFile(path, UTF8, listener);
+		return listener.consumed;
+	}
+}
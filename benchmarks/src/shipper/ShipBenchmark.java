@@ -0,0 +1,152 @@
+package shipper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lines per second from file appends to a local socket that discards all
+ * received bytes. Each operation appends a block of lines, examines the file
+ * and hands the lines to the sender. The sender queue blocks once full, so
+ * the rate is limited by the slowest stage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShipBenchmark {
+	/**
+	 * Lines per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long lines;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			lines = 0;
+		}
+	}
+
+	/**
+	 * Lines appended per operation.
+	 */
+	private static final int LINES = 100;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * One of log4j, binary, deflate (compressed binary) or lz (compressed
+	 * binary).
+	 */
+	@Param({ "log4j", "binary", "deflate", "lz" })
+	public String transport;
+
+	private ServerSocket sink;
+
+	private Sender sender;
+
+	private Path path;
+
+	private FileChannel writer;
+
+	private ByteBuffer append;
+
+	private FileMonitor monitor;
+
+	private ForwardingListener listener;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		sink = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Thread discarding = new Thread("Discarding sink") {
+			@Override
+			public void run() {
+				byte[] received = new byte[64 * 1024];
+				while (!sink.isClosed()) {
+					try (Socket connection = sink.accept();
+							InputStream in = connection.getInputStream()) {
+						while (in.read(received) >= 0) {
+							// Discard.
+						}
+					} catch (IOException e) {
+						// Closed.
+					}
+				}
+			}
+		};
+		discarding.setDaemon(true);
+		discarding.start();
+
+		Transport connection;
+		if ("log4j".equals(transport)) {
+			connection = new Log4jTransport("localhost", sink.getLocalPort());
+		} else {
+			connection = new BinaryTransport("localhost", sink.getLocalPort(),
+					BatchCodec.forName("binary".equals(transport) ? "none"
+							: transport));
+		}
+		sender = new Sender(connection, 65536, 512, 5, null);
+		sender.start();
+
+		StringBuilder lines = new StringBuilder();
+		for (int index = 0; index < LINES; index = index + 1) {
+			lines.append("2024-01-01 12:00:00,000 INFO [main] com.example.Service - request ")
+					.append(index).append(" handled in 12 ms\n");
+		}
+		append = ByteBuffer.wrap(lines.toString().getBytes(UTF8));
+		path = Files.createTempFile("ship", ".log");
+		writer = FileChannel.open(path, StandardOpenOption.APPEND);
+		LineSource source = new LineSource(0, path,
+				Logger.getLogger("shipper.Main.0"), UTF8);
+		listener = new ForwardingListener(source, false, sender);
+		monitor = new FileMonitor();
+		monitor.begin(path, listener);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		sender.interrupt();
+		sender.join();
+		sink.close();
+		writer.close();
+		monitor.release();
+		Files.delete(path);
+	}
+
+	@Benchmark
+	public void ship(Counters counters) throws IOException {
+		append.rewind();
+		writer.write(append);
+		monitor.examineFile(path, UTF8, listener);
+		counters.lines = counters.lines + LINES;
+	}
+}
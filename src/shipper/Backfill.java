@@ -0,0 +1,245 @@
+package shipper;
+
+import static shipper.ShipperLogger.debug;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads large existing file content such as on the first read with
+ * {@code --skip false}.
+ * <p>
+ * The content is split into chunks that are memory-mapped and searched for
+ * line feeds in parallel on a {@link ForkJoinPool}, which is the part of
+ * reading that grows with the file size. The located lines are then reported
+ * in file order on the reading thread by the file's {@link LineFramer}, so
+ * listeners see the same lines as with sequential reads. Lines crossing chunk
+ * borders are carried over by the framer as with regular reads.
+ */
+public class Backfill {
+	/**
+	 * Bytes per chunk.
+	 */
+	static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Minimum bytes left to read for reading in parallel.
+	 */
+	static final long THRESHOLD = 16L * CHUNK_SIZE;
+
+	/**
+	 * Pool for searching chunks or {@code null} to always read sequentially.
+	 */
+	private static volatile ForkJoinPool pool;
+
+	private Backfill() {
+	}
+
+	/**
+	 * Enables parallel reading.
+	 * 
+	 * @param parallelism
+	 *            Number of threads searching chunks or {@code 0} for one per
+	 *            processor. Reading stays sequential with a single thread.
+	 */
+	public static void start(int parallelism) {
+		if (parallelism == 0) {
+			parallelism = Runtime.getRuntime().availableProcessors();
+		}
+		if (parallelism > 1) {
+			pool = new ForkJoinPool(parallelism);
+		}
+	}
+
+	/**
+	 * @param remaining
+	 *            Bytes left to read.
+	 * @return {@code true} if the bytes are read in parallel.
+	 */
+	static boolean isWorthwhile(long remaining) {
+		return pool != null && remaining >= THRESHOLD;
+	}
+
+	/**
+	 * Reports all complete lines between {@code position} and {@code end}.
+	 * 
+	 * @param channel
+	 *            Open file.
+	 * @param position
+	 *            Start of a line.
+	 * @param end
+	 *            Position to read up to.
+	 * @param framer
+	 *            Framer of the file, without carried bytes. Carries the last
+	 *            incomplete line afterwards.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 * @return Number of bytes of reported lines including terminators.
+	 * @throws IOException
+	 *             Failed to read file.
+	 */
+	static long read(FileChannel channel, long position, long end,
+			LineFramer framer, Path path, FileModificationListener listener)
+			throws IOException {
+		return read(channel, position, end, CHUNK_SIZE, framer, path,
+				listener);
+	}
+
+	/**
+	 * Reports all complete lines between {@code position} and {@code end}.
+	 * 
+	 * @param channel
+	 *            Open file.
+	 * @param position
+	 *            Start of a line.
+	 * @param end
+	 *            Position to read up to.
+	 * @param chunkSize
+	 *            Bytes per chunk. Multiple of the code unit size of the
+	 *            encoding.
+	 * @param framer
+	 *            Framer of the file, without carried bytes. Carries the last
+	 *            incomplete line afterwards or is blocked at a line the read
+	 *            budget has no room for.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 * @return Number of bytes of reported lines including terminators.
+	 * @throws IOException
+	 *             Failed to read file.
+	 */
+	static long read(FileChannel channel, long position, long end,
+			int chunkSize, LineFramer framer, Path path,
+			FileModificationListener listener) throws IOException {
+		ForkJoinPool searchers = pool;
+		// Search ahead of reporting, but keep the number of mapped chunks low.
+		int ahead = 2 * searchers.getParallelism();
+		Deque<Future<Chunk>> searched = new ArrayDeque<>(ahead);
+		long next = position;
+		long consumed = 0;
+		try {
+			while (next < end || !searched.isEmpty()) {
+				while (next < end && searched.size() < ahead) {
+					long size = Math.min(chunkSize, end - next);
+					searched.add(searchers.submit(new Chunk(channel, next,
+							(int) size, framer)));
+					next = next + size;
+				}
+				Chunk chunk = searched.removeFirst().get();
+				consumed = consumed
+						+ framer.frame(chunk.content, chunk.newlines, position
+								+ consumed, path, listener);
+				if (framer.isBlocked()) {
+					// Read budget is used up, the caller waits for it.
+					cancel(searched);
+					return consumed;
+				}
+			}
+		} catch (ExecutionException | InternalError e) {
+			// Mapped content is no longer accessible, such as after the file
+			// was truncated. Continue reading sequentially.
+			if (e instanceof InternalError) {
+				// Failed within a chunk, whose lines so far were reported.
+				consumed = framer.reported() - position;
+			}
+			debug("Stopping parallel read of " + path + " at "
+					+ (position + consumed) + ": " + e);
+			cancel(searched);
+			framer.reset();
+			return consumed;
+		} catch (InterruptedException e) {
+			cancel(searched);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted reading " + path, e);
+		}
+		return consumed;
+	}
+
+	/**
+	 * Cancels searches whose result will not be used.
+	 * 
+	 * @param searched
+	 *            Pending searches.
+	 */
+	private static void cancel(Deque<Future<Chunk>> searched) {
+		for (Future<Chunk> search : searched) {
+			search.cancel(false);
+		}
+		searched.clear();
+	}
+
+	/**
+	 * Content of a chunk and its line feeds.
+	 */
+	private static class Chunk implements Callable<Chunk> {
+		/**
+		 * Open file.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * Position of the chunk within the file.
+		 */
+		private final long position;
+
+		/**
+		 * Length of the chunk.
+		 */
+		private final int size;
+
+		/**
+		 * Framer to locate line feeds with.
+		 */
+		private final LineFramer framer;
+
+		/**
+		 * Mapped content. Available after searching.
+		 */
+		private MappedByteBuffer content;
+
+		/**
+		 * Positions of line feeds within {@link #content}. Available after
+		 * searching.
+		 */
+		private int[] newlines;
+
+		/**
+		 * @param channel
+		 *            Open file.
+		 * @param position
+		 *            Position of the chunk within the file.
+		 * @param size
+		 *            Length of the chunk.
+		 * @param framer
+		 *            Framer to locate line feeds with.
+		 */
+		Chunk(FileChannel channel, long position, int size, LineFramer framer) {
+			this.channel = channel;
+			this.position = position;
+			this.size = size;
+			this.framer = framer;
+		}
+
+		/**
+		 * Maps the chunk and locates its line feeds.
+		 */
+		@Override
+		public Chunk call() throws IOException {
+			content = channel.map(MapMode.READ_ONLY, position, size);
+			newlines = framer.index(content);
+			return this;
+		}
+	}
+}
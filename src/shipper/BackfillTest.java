@@ -0,0 +1,92 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Test;
+
+import shipper.TestSupport.CollectingListener;
+
+public class BackfillTest {
+
+	@Test
+	public void test() throws IOException {
+		Backfill.start(4);
+		check(Charset.forName("UTF-8"));
+		check(Charset.forName("UTF-16LE"));
+	}
+
+	/**
+	 * Compares lines read in parallel with lines read sequentially.
+	 * 
+	 * @param encoding
+	 *            Encoding of the file.
+	 */
+	private void check(Charset encoding) throws IOException {
+		// Lines of all lengths, some longer than a chunk.
+		Random random = new Random(42);
+		StringBuilder content = new StringBuilder();
+		for (int line = 0; line < 2000; line = line + 1) {
+			int length = random.nextInt(line % 100 == 0 ? 300 : 40);
+			for (int i = 0; i < length; i = i + 1) {
+				content.append((char) ('a' + random.nextInt(26)));
+			}
+			content.append(random.nextInt(10) == 0 ? "ä\r\n" : "\n");
+		}
+		content.append("incomplete");
+
+		Path path = Files.createTempFile(null, null);
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(content.toString()
+					.getBytes(encoding)));
+
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			LineFramer framer = new LineFramer(encoding, buffer);
+			CollectingListener sequential = new CollectingListener();
+			long position = 0;
+			while (channel.read(buffer, position + framer.pending()) > 0) {
+				buffer.flip();
+				position = position + framer.frame(position, path, sequential);
+				buffer.clear();
+			}
+
+			framer = new LineFramer(encoding, buffer);
+			CollectingListener parallel = new CollectingListener();
+			long consumed = Backfill.read(channel, 0, channel.size(), 64,
+					framer, path, parallel);
+			org.junit.Assert.assertEquals(position, consumed);
+			org.junit.Assert.assertEquals(2000, parallel.lines.size());
+			org.junit.Assert.assertEquals(sequential.lines, parallel.lines);
+			org.junit.Assert.assertEquals(sequential.offsets, parallel.offsets);
+			org.junit.Assert.assertEquals(
+					"incomplete".getBytes(encoding).length, framer.pending());
+
+			// Sequential reading continues after the lines reported before a
+			// failure within a chunk.
+			framer = new LineFramer(encoding, buffer);
+			CollectingListener failing = new CollectingListener();
+			failing.failAt = 1234;
+			consumed = Backfill.read(channel, 0, channel.size(), 64, framer,
+					path, failing);
+			org.junit.Assert.assertEquals(1234, failing.lines.size());
+			org.junit.Assert.assertEquals(0, framer.pending());
+			while (channel.read(buffer, consumed + framer.pending()) > 0) {
+				buffer.flip();
+				consumed = consumed + framer.frame(consumed, path, failing);
+				buffer.clear();
+			}
+			org.junit.Assert.assertEquals(position, consumed);
+			org.junit.Assert.assertEquals(sequential.lines, failing.lines);
+			org.junit.Assert.assertEquals(sequential.offsets, failing.offsets);
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
@@ -0,0 +1,480 @@
+package shipper;
+
+import static shipper.ShipperLogger.error;
+import static shipper.ShipperLogger.info;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Spreads batches over several log servers, called collectors, so that the
+ * throughput grows with their number and a single failing collector does not
+ * stall shipping.
+ * <p>
+ * Every collector has a persistent connection that is written by a thread of
+ * its own. {@link #write(List)} hands a batch to the connected collector with
+ * the fewest bytes not written yet and returns, so a slow collector receives
+ * fewer batches. It only waits while all connected collectors have
+ * {@link #MAX_PENDING} batches waiting. If a collector fails, its waiting
+ * batches are handed to the remaining collectors and it keeps reconnecting on
+ * its own thread, with growing delays, until it takes batches again.
+ * <p>
+ * Lines of a file may arrive out of order at different collectors.
+ */
+public class BalancingTransport implements Transport {
+	/**
+	 * Batches waiting per collector before {@link #write(List)} waits.
+	 */
+	static final int MAX_PENDING = 4;
+
+	/**
+	 * Milliseconds {@link #connect()} waits for any collector to connect.
+	 */
+	static final long CONNECT_WAIT = 2000;
+
+	/**
+	 * Initial delay between connection attempts.
+	 */
+	private static final long MIN_RECONNECT_DELAY = 500;
+
+	/**
+	 * Maximum delay between connection attempts.
+	 */
+	private static final long MAX_RECONNECT_DELAY = 30000;
+
+	/**
+	 * Bytes counted per line in addition to its content.
+	 */
+	private static final int LINE_OVERHEAD = 32;
+
+	/**
+	 * Log servers.
+	 */
+	private final List<Collector> collectors = new ArrayList<>();
+
+	/**
+	 * Guards the assignment of batches.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a collector connected, failed or wrote a batch.
+	 */
+	private final Condition changed = lock.newCondition();
+
+	/**
+	 * Batches of failed collectors while no collector is connected.
+	 */
+	private final Deque<List<ShipEvent>> orphans = new ArrayDeque<>();
+
+	/**
+	 * {@code true} once the collector threads run.
+	 */
+	private boolean started = false;
+
+	/**
+	 * @param transports
+	 *            Connections to the log servers.
+	 */
+	public BalancingTransport(List<Transport> transports) {
+		for (Transport transport : transports) {
+			collectors.add(new Collector(transport));
+		}
+	}
+
+	/**
+	 * Publishes the state of each collector via JMX as
+	 * {@code shipper:type=Collector,name=<host:port>}.
+	 */
+	public void register() {
+		for (Collector collector : collectors) {
+			collector.register();
+		}
+	}
+
+	/**
+	 * Starts connecting to all collectors and waits until one is connected.
+	 * Collectors that are not reachable are connected later on.
+	 */
+	@Override
+	public void connect() throws IOException {
+		lock.lock();
+		try {
+			if (!started) {
+				for (Collector collector : collectors) {
+					collector.thread.start();
+				}
+				started = true;
+			}
+			long remaining = TimeUnit.MILLISECONDS.toNanos(CONNECT_WAIT);
+			while (!isConnected()) {
+				if (remaining <= 0) {
+					throw new IOException("None of " + this + " is reachable.");
+				}
+				remaining = changed.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted connecting to "
+					+ this);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		for (Collector collector : collectors) {
+			if (collector.healthy) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Assigns a batch to the connected collector with the fewest outstanding
+	 * bytes. Returns before the batch is written.
+	 * 
+	 * @throws IOException
+	 *             No collector is connected.
+	 */
+	@Override
+	public void write(List<ShipEvent> batch) throws IOException {
+		// Caller reuses its list.
+		List<ShipEvent> assigned = new ArrayList<>(batch);
+		lock.lock();
+		try {
+			while (true) {
+				Collector least = null;
+				for (Collector collector : collectors) {
+					if (collector.healthy
+							&& collector.pending.size() < MAX_PENDING
+							&& (least == null || collector.outstanding < least
+									.outstanding)) {
+						least = collector;
+					}
+				}
+				if (least != null) {
+					least.assign(assigned);
+					return;
+				}
+				if (!isConnected()) {
+					throw new IOException("None of " + this + " is connected.");
+				}
+				changed.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted sending to " + this);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Does nothing as collectors reconnect on their own. Batches that were not
+	 * written yet are kept.
+	 */
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder names = new StringBuilder();
+		for (Collector collector : collectors) {
+			names.append(names.length() == 0 ? "" : ", ").append(
+					collector.transport);
+		}
+		return names.toString();
+	}
+
+	/**
+	 * @param batch
+	 *            Lines.
+	 * @return Bytes counted for the batch.
+	 */
+	private static long size(List<ShipEvent> batch) {
+		long size = 0;
+		for (ShipEvent event : batch) {
+			size = size + event.line.length + LINE_OVERHEAD;
+		}
+		return size;
+	}
+
+	/**
+	 * Connection to a single log server, written by a thread of its own.
+	 */
+	private class Collector implements Runnable, CollectorMBean {
+		/**
+		 * Connection to the log server.
+		 */
+		private final Transport transport;
+
+		/**
+		 * Writer of {@link #transport}.
+		 */
+		private final Thread thread;
+
+		/**
+		 * Batches assigned to this collector, including the one being written.
+		 * Guarded by {@link BalancingTransport#lock}.
+		 */
+		private final Deque<List<ShipEvent>> pending = new ArrayDeque<>();
+
+		/**
+		 * Bytes of {@link #pending}. Guarded by
+		 * {@link BalancingTransport#lock}.
+		 */
+		private long outstanding = 0;
+
+		/**
+		 * {@code true} while connected.
+		 */
+		private volatile boolean healthy = false;
+
+		/**
+		 * Written batches.
+		 */
+		private final LongAdder batches = new LongAdder();
+
+		/**
+		 * Written lines.
+		 */
+		private final LongAdder lines = new LongAdder();
+
+		/**
+		 * Failed attempts to connect or write.
+		 */
+		private final LongAdder failures = new LongAdder();
+
+		/**
+		 * @param transport
+		 *            Connection to the log server.
+		 */
+		Collector(Transport transport) {
+			this.transport = transport;
+			thread = new Thread(this, "Sender to " + transport);
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * Publishes the state via JMX.
+		 */
+		void register() {
+			String properties = "type=Collector,name="
+					+ ObjectName.quote(transport.toString());
+			try {
+				// Class name does not follow the standard MBean convention.
+				Metrics.register(new StandardMBean(this, CollectorMBean.class),
+						properties);
+			} catch (NotCompliantMBeanException e) {
+				error("Failed to publish metrics " + properties + ".", e);
+			}
+		}
+
+		/**
+		 * Connects and writes assigned batches until the program ends.
+		 */
+		@Override
+		public void run() {
+			long delay = MIN_RECONNECT_DELAY;
+			boolean failed = false;
+			while (true) {
+				try {
+					if (!transport.isConnected()) {
+						transport.connect();
+						connected();
+						if (failed) {
+							info("Reconnected to " + transport + ".");
+							failed = false;
+						}
+						delay = MIN_RECONNECT_DELAY;
+					}
+					List<ShipEvent> batch = next();
+					transport.write(batch);
+					written(batch);
+				} catch (IOException e) {
+					failures.increment();
+					if (!failed) {
+						error("Failed to send to " + transport
+								+ ". Sending to other collectors meanwhile.",
+								e);
+						failed = true;
+					}
+					transport.close();
+					failed();
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException stopped) {
+						return;
+					}
+					delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Adds a batch to the pending batches. Requires
+		 * {@link BalancingTransport#lock}.
+		 * 
+		 * @param batch
+		 *            Lines to write.
+		 */
+		void assign(List<ShipEvent> batch) {
+			pending.addLast(batch);
+			outstanding = outstanding + size(batch);
+			changed.signalAll();
+		}
+
+		/**
+		 * Takes over batches of collectors that failed while no collector
+		 * was connected.
+		 */
+		private void connected() {
+			lock.lock();
+			try {
+				healthy = true;
+				while (!orphans.isEmpty()) {
+					assign(orphans.removeFirst());
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Waits for a batch to write.
+		 * 
+		 * @return Oldest pending batch. Stays pending until written.
+		 * @throws InterruptedException
+		 *             Program ends.
+		 */
+		private List<ShipEvent> next() throws InterruptedException {
+			lock.lock();
+			try {
+				while (pending.isEmpty()) {
+					changed.await();
+				}
+				return pending.getFirst();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Removes a written batch from the pending batches.
+		 * 
+		 * @param batch
+		 *            Written lines.
+		 */
+		private void written(List<ShipEvent> batch) {
+			lock.lock();
+			try {
+				pending.removeFirst();
+				outstanding = outstanding - size(batch);
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			batches.increment();
+			lines.add(batch.size());
+		}
+
+		/**
+		 * Hands all pending and unacknowledged batches to the connected
+		 * collectors with the fewest outstanding bytes or keeps them until any
+		 * collector connects.
+		 */
+		private void failed() {
+			lock.lock();
+			try {
+				healthy = false;
+				// Written batches that might not have arrived go first.
+				if (transport instanceof BinaryTransport) {
+					List<List<ShipEvent>> unacknowledged = ((BinaryTransport) transport)
+							.takeUnacknowledged();
+					for (int index = unacknowledged.size() - 1; index >= 0; index--) {
+						pending.addFirst(unacknowledged.get(index));
+					}
+				}
+				while (!pending.isEmpty()) {
+					List<ShipEvent> batch = pending.removeFirst();
+					Collector least = null;
+					for (Collector collector : collectors) {
+						if (collector.healthy
+								&& (least == null || collector.outstanding < least
+										.outstanding)) {
+							least = collector;
+						}
+					}
+					if (least != null) {
+						least.assign(batch);
+					} else {
+						orphans.addLast(batch);
+					}
+				}
+				outstanding = 0;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		@Override
+		public int getPendingBatches() {
+			lock.lock();
+			try {
+				return pending.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public long getOutstandingBytes() {
+			lock.lock();
+			try {
+				return outstanding;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public long getBatches() {
+			return batches.sum();
+		}
+
+		@Override
+		public long getLines() {
+			return lines.sum();
+		}
+
+		@Override
+		public long getFailures() {
+			return failures.sum();
+		}
+	}
+}
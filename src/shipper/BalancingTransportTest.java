@@ -0,0 +1,163 @@
+package shipper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BalancingTransportTest {
+
+	/**
+	 * Collects written lines in memory.
+	 */
+	private static class MemoryTransport implements Transport {
+		private final String name;
+		private final List<String> lines = Collections
+				.synchronizedList(new ArrayList<String>());
+		private volatile boolean reachable = true;
+		private volatile boolean connected = false;
+		private final Semaphore writes = new Semaphore(Integer.MAX_VALUE);
+
+		MemoryTransport(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			if (!reachable) {
+				throw new IOException(name + " unreachable");
+			}
+			connected = true;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public void write(List<ShipEvent> batch) throws IOException {
+			writes.acquireUninterruptibly();
+			if (!reachable) {
+				throw new IOException(name + " failed");
+			}
+			for (ShipEvent event : batch) {
+				lines.add(event.text());
+			}
+		}
+
+		@Override
+		public void close() {
+			connected = false;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private static List<ShipEvent> batch(String line) {
+		return Arrays.asList(TestSupport.event(line));
+	}
+
+	private static void await(List<String> lines, int count)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (lines.size() < count && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		org.junit.Assert.assertEquals(count, lines.size());
+	}
+
+	@Test
+	public void balance() throws Exception {
+		MemoryTransport slow = new MemoryTransport("slow");
+		MemoryTransport fast = new MemoryTransport("fast");
+		BalancingTransport transport = new BalancingTransport(Arrays.asList(
+				(Transport) slow, fast));
+		transport.connect();
+		while (!slow.isConnected() || !fast.isConnected()) {
+			Thread.sleep(10);
+		}
+
+		// Blocked collector does not stall writes.
+		slow.writes.drainPermits();
+		for (int line = 0; line < 20; line = line + 1) {
+			transport.write(batch(String.valueOf(line)));
+		}
+		Thread.sleep(100);
+		org.junit.Assert.assertEquals(0, slow.lines.size());
+		org.junit.Assert.assertTrue(fast.lines.size() >= 20
+				- BalancingTransport.MAX_PENDING);
+		slow.writes.release(Integer.MAX_VALUE);
+		await(slow.lines, 20 - fast.lines.size());
+	}
+
+	@Test
+	public void failover() throws Exception {
+		MemoryTransport failing = new MemoryTransport("failing");
+		MemoryTransport remaining = new MemoryTransport("remaining");
+		BalancingTransport transport = new BalancingTransport(Arrays.asList(
+				(Transport) failing, remaining));
+		transport.connect();
+		while (!failing.isConnected() || !remaining.isConnected()) {
+			Thread.sleep(10);
+		}
+
+		failing.reachable = false;
+		for (int line = 0; line < 10; line = line + 1) {
+			transport.write(batch(String.valueOf(line)));
+		}
+		// Batches of the failed collector are written by the other one.
+		await(remaining.lines, 10);
+		org.junit.Assert.assertTrue(transport.isConnected());
+
+		// Failed collector takes batches again once reachable.
+		failing.reachable = true;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!failing.isConnected() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		remaining.writes.drainPermits();
+		for (int line = 0; line < 2 * BalancingTransport.MAX_PENDING; line++) {
+			transport.write(batch("x"));
+		}
+		Thread.sleep(100);
+		org.junit.Assert
+				.assertTrue(failing.lines.size() >= BalancingTransport.MAX_PENDING);
+		remaining.writes.release(Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void unreachable() throws Exception {
+		MemoryTransport first = new MemoryTransport("first");
+		MemoryTransport second = new MemoryTransport("second");
+		first.reachable = false;
+		second.reachable = false;
+		BalancingTransport transport = new BalancingTransport(Arrays.asList(
+				(Transport) first, second));
+		try {
+			transport.connect();
+			org.junit.Assert.fail("Expected no collector to connect.");
+		} catch (IOException e) {
+			org.junit.Assert.assertFalse(transport.isConnected());
+		}
+		try {
+			transport.write(batch("a"));
+			org.junit.Assert.fail("Expected write to fail.");
+		} catch (IOException e) {
+			// Sender spools or retries.
+		}
+
+		second.reachable = true;
+		transport.connect();
+		transport.write(batch("a"));
+		await(second.lines, 1);
+	}
+}
@@ -0,0 +1,101 @@
+package shipper;
+
+import java.io.IOException;
+
+/**
+ * Compression of whole batches for {@link BinaryTransport}. Instances keep
+ * their working memory between batches and must not be shared between
+ * threads.
+ */
+public abstract class BatchCodec {
+	/**
+	 * Identifier of {@link DeflateCodec} on the wire.
+	 */
+	static final byte DEFLATE = 1;
+
+	/**
+	 * Identifier of {@link LzCodec} on the wire.
+	 */
+	static final byte LZ = 2;
+
+	/**
+	 * @return Identifier of codec on the wire.
+	 */
+	public abstract byte id();
+
+	/**
+	 * @param length
+	 *            Number of bytes to compress.
+	 * @return Size of output buffer that is sufficient for compressing
+	 *         {@code length} bytes.
+	 */
+	public abstract int maxCompressedLength(int length);
+
+	/**
+	 * @param source
+	 *            Bytes to compress, starting at index 0.
+	 * @param length
+	 *            Number of bytes to compress.
+	 * @param target
+	 *            Output buffer of at least {@link #maxCompressedLength(int)}
+	 *            bytes.
+	 * @return Number of compressed bytes or {@code -1} if the input did not
+	 *         fit the output buffer.
+	 */
+	public abstract int compress(byte[] source, int length, byte[] target);
+
+	/**
+	 * @param source
+	 *            Compressed bytes.
+	 * @param offset
+	 *            Start of compressed bytes within {@code source}.
+	 * @param length
+	 *            Number of compressed bytes.
+	 * @param target
+	 *            Output buffer, filled from index 0.
+	 * @param rawLength
+	 *            Number of bytes before compression.
+	 * @throws IOException
+	 *             Input is corrupt.
+	 */
+	public abstract void decompress(byte[] source, int offset, int length,
+			byte[] target, int rawLength) throws IOException;
+
+	/**
+	 * @param name
+	 *            Name as given on the command line.
+	 * @return New codec or {@code null} for {@code none}.
+	 * @throws IllegalArgumentException
+	 *             Unknown name.
+	 */
+	public static BatchCodec forName(String name) {
+		switch (name) {
+		case "none":
+			return null;
+		case "deflate":
+			return new DeflateCodec();
+		case "lz":
+			return new LzCodec();
+		default:
+			throw new IllegalArgumentException("Unknown compression " + name);
+		}
+	}
+
+	/**
+	 * @param id
+	 *            Identifier of codec on the wire.
+	 * @return New codec.
+	 * @throws IOException
+	 *             Unknown identifier.
+	 */
+	public static BatchCodec forId(byte id) throws IOException {
+		switch (id) {
+		case DEFLATE:
+			return new DeflateCodec();
+		case LZ:
+			return new LzCodec();
+		default:
+			throw new IOException("Unknown compression " + id);
+		}
+	}
+}
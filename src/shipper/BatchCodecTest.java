@@ -0,0 +1,39 @@
+package shipper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BatchCodecTest {
+
+	@Test
+	public void test() throws IOException {
+		Random random = new Random(1);
+		byte[] noise = new byte[70000];
+		random.nextBytes(noise);
+		StringBuilder log = new StringBuilder();
+		for (int index = 0; index < 2000; index = index + 1) {
+			log.append("2026-01-01 12:00:00 INFO request " + index
+					+ " handled\n");
+		}
+		byte[][] inputs = { new byte[0], "a".getBytes(),
+				"abcabcabcabcabcabcabc".getBytes(), new byte[100000], noise,
+				log.toString().getBytes() };
+
+		for (BatchCodec codec : Arrays.asList(new DeflateCodec(),
+				new LzCodec())) {
+			for (byte[] input : inputs) {
+				byte[] compressed = new byte[codec
+						.maxCompressedLength(input.length)];
+				int length = codec.compress(input, input.length, compressed);
+				org.junit.Assert.assertTrue(length >= 0);
+				byte[] restored = new byte[input.length];
+				codec.decompress(compressed, 0, length, restored, input.length);
+				org.junit.Assert.assertArrayEquals(input, restored);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,253 @@
+package shipper;
+
+import static shipper.ShipperLogger.debug;
+import static shipper.ShipperLogger.error;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+
+/**
+ * Reference receiver for {@link BinaryTransport}. Accepts any number of
+ * connections and hands received lines to a {@link Handler}. Batches are
+ * acknowledged once the handler returned for all their lines.
+ */
+public class BinaryReceiver extends Thread {
+	/**
+	 * Consumer of received lines. Called concurrently for different
+	 * connections.
+	 */
+	public interface Handler {
+		/**
+		 * A line was received.
+		 * 
+		 * @param path
+		 *            Path of monitored file on the sending host.
+		 * @param offset
+		 *            Position of the line within the file.
+		 * @param timestamp
+		 *            Milliseconds since epoch when the line was read.
+		 * @param level
+		 *            Level of the line, INFO if the sender did not tell.
+		 * @param line
+		 *            Line content as found in the file.
+		 */
+		public void record(String path, long offset, long timestamp,
+				Level level, byte[] line);
+	}
+
+	/**
+	 * Socket accepting connections.
+	 */
+	private final ServerSocket server;
+
+	/**
+	 * Consumer of received lines.
+	 */
+	private final Handler handler;
+
+	/**
+	 * @param port
+	 *            Port to listen on. {@code 0} to pick a free port.
+	 * @param handler
+	 *            Consumer of received lines.
+	 * @throws IOException
+	 *             Port not available.
+	 */
+	public BinaryReceiver(int port, Handler handler) throws IOException {
+		super("Binary receiver");
+		this.server = new ServerSocket(port);
+		this.handler = handler;
+		setDaemon(true);
+	}
+
+	/**
+	 * @return Port connections are accepted on.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until closed.
+	 */
+	@Override
+	public void run() {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				Thread connection = new Thread("Connection from "
+						+ socket.getRemoteSocketAddress()) {
+					@Override
+					public void run() {
+						receive(socket);
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			} catch (SocketException e) {
+				// Closed.
+			} catch (IOException e) {
+				error("Failed to accept connection.", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections.
+	 */
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {
+			error("Failed to close receiver.", e);
+		}
+	}
+
+	/**
+	 * Reads frames of a single connection until it is closed.
+	 * 
+	 * @param socket
+	 *            Accepted connection.
+	 */
+	private void receive(Socket socket) {
+		Map<Integer, String> paths = new HashMap<>();
+		Map<Byte, BatchCodec> codecs = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+				DataOutputStream acks = new DataOutputStream(
+						socket.getOutputStream())) {
+			if (in.readInt() != BinaryTransport.MAGIC) {
+				error("Unsupported protocol from "
+						+ socket.getRemoteSocketAddress());
+				return;
+			}
+			byte version = in.readByte();
+			if (version < 1 || version > BinaryTransport.VERSION) {
+				error("Unsupported protocol version " + version + " from "
+						+ socket.getRemoteSocketAddress());
+				return;
+			}
+			while (true) {
+				frame(in, acks, version, paths, codecs);
+			}
+		} catch (EOFException e) {
+			debug("Connection from " + socket.getRemoteSocketAddress()
+					+ " closed.");
+		} catch (IOException e) {
+			error("Connection from " + socket.getRemoteSocketAddress()
+					+ " failed.", e);
+		}
+	}
+
+	/**
+	 * Reads a single frame.
+	 * 
+	 * @param in
+	 *            Stream positioned at frame start.
+	 * @param acks
+	 *            Stream to sender for acknowledgements.
+	 * @param version
+	 *            Protocol version of the connection.
+	 * @param paths
+	 *            Announced paths of connection by file id.
+	 * @param codecs
+	 *            Decompressors of connection by codec id.
+	 * @throws IOException
+	 *             Failed to read frame.
+	 */
+	private void frame(DataInputStream in, DataOutputStream acks,
+			byte version, Map<Integer, String> paths,
+			Map<Byte, BatchCodec> codecs) throws IOException {
+		int length = in.readInt();
+		byte type = in.readByte();
+		if (type == BinaryTransport.SOURCE) {
+			int fileId = in.readInt();
+			byte[] path = new byte[length - 1 - 4];
+			in.readFully(path);
+			paths.put(fileId, new String(path, BinaryTransport.UTF8));
+		} else if (type == BinaryTransport.RECORD) {
+			int fileId = in.readInt();
+			long offset = in.readLong();
+			long timestamp = in.readLong();
+			Level level = Level.INFO;
+			int header = BinaryTransport.RECORD_HEADER;
+			if (version < 4) {
+				// No level.
+				header = header - 1;
+			} else {
+				level = SeverityClassifier.level(in.readByte());
+			}
+			byte[] line = new byte[length - header];
+			in.readFully(line);
+			handler.record(paths.get(fileId), offset, timestamp, level, line);
+		} else if (type == BinaryTransport.COMPRESSED) {
+			byte codecId = in.readByte();
+			int rawLength = in.readInt();
+			byte[] compressed = new byte[length - 1 - 1 - 4];
+			in.readFully(compressed);
+			BatchCodec codec = codecs.get(codecId);
+			if (codec == null) {
+				codec = BatchCodec.forId(codecId);
+				codecs.put(codecId, codec);
+			}
+			byte[] raw = new byte[rawLength];
+			codec.decompress(compressed, 0, compressed.length, raw, rawLength);
+			DataInputStream batch = new DataInputStream(
+					new ByteArrayInputStream(raw));
+			while (batch.available() > 0) {
+				frame(batch, acks, version, paths, codecs);
+			}
+		} else if (type == BinaryTransport.BATCH) {
+			// Lines before were handled.
+			acks.writeLong(in.readLong());
+			acks.flush();
+		} else {
+			// Frame of later protocol revision.
+			in.readFully(new byte[length - 1]);
+		}
+	}
+
+	/**
+	 * Prints received lines to standard output.
+	 * 
+	 * @param args
+	 *            Port and optionally the encoding of lines.
+	 * @throws IOException
+	 *             Port not available.
+	 * @throws InterruptedException
+	 *             Interrupted while receiving.
+	 */
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length == 0) {
+			System.err
+					.println("Usage: java -cp shipper.jar shipper.BinaryReceiver port [encoding]");
+			System.exit(1);
+		}
+		final Charset encoding = Charset.forName(args.length > 1 ? args[1]
+				: "UTF-8");
+		BinaryReceiver receiver = new BinaryReceiver(
+				Integer.parseInt(args[0]), new Handler() {
+					@Override
+					public synchronized void record(String path, long offset,
+							long timestamp, Level level, byte[] line) {
+						System.out.println(path + ":" + offset + " " + level
+								+ " " + new String(line, encoding));
+					}
+				});
+		receiver.start();
+		receiver.join();
+	}
+}
@@ -0,0 +1,536 @@
+package shipper;
+
+import static shipper.ShipperLogger.error;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends lines as compact length-prefixed frames over a plain socket.
+ * <p>
+ * A connection starts with {@link #MAGIC} and {@link #VERSION}. It continues
+ * with frames made of the frame length (int, excluding the length itself), the
+ * frame type (byte) and the payload. Before the first record of a file a
+ * {@link #SOURCE} frame announces the file. {@link #RECORD} frames carry the
+ * raw line bytes as found in the file and their level. With a
+ * {@link BatchCodec}, the frames of a batch are compressed together and sent
+ * as a single {@link #COMPRESSED} frame. See {@link BinaryReceiver} for the
+ * receiving side.
+ * <p>
+ * With an acknowledgement window, every batch ends with a {@link #BATCH}
+ * frame and the log server answers with the batch's sequence once it handled
+ * the batch. Up to the window size of batches are written before waiting for
+ * an answer, so round trips do not limit the throughput. Lines count as
+ * delivered once acknowledged. Batches that were not acknowledged when the
+ * connection failed are written again after reconnecting, so the log server
+ * might receive them twice.
+ */
+public class BinaryTransport implements Transport {
+	/**
+	 * Start of stream.
+	 */
+	static final int MAGIC = 0x53485031;
+
+	/**
+	 * Protocol version.
+	 */
+	static final byte VERSION = 4;
+
+	/**
+	 * Frame announcing a file. Payload: file id (int), UTF-8 encoded path.
+	 */
+	static final byte SOURCE = 1;
+
+	/**
+	 * Frame holding a line. Payload: file id (int), offset (long), timestamp
+	 * (long), syslog severity of the line's level (byte, since version 4),
+	 * line bytes.
+	 */
+	static final byte RECORD = 2;
+
+	/**
+	 * Frame holding compressed frames. Payload: codec id (byte), length of
+	 * uncompressed frames (int), compressed frames.
+	 */
+	static final byte COMPRESSED = 3;
+
+	/**
+	 * Frame ending a batch that the log server has to acknowledge. Payload:
+	 * batch sequence (long). The log server answers with the sequence (long)
+	 * once it handled all frames before.
+	 */
+	static final byte BATCH = 4;
+
+	/**
+	 * Bytes of a record frame before the line, excluding the frame length.
+	 */
+	static final int RECORD_HEADER = 1 + 4 + 8 + 8 + 1;
+
+	/**
+	 * Encoding of paths.
+	 */
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Bytes buffered before writing to the socket.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Batches smaller than this are not worth compressing.
+	 */
+	private static final int MIN_COMPRESSED_SIZE = 256;
+
+	/**
+	 * Milliseconds to wait for an acknowledgement while the window is full.
+	 */
+	private static final long ACK_TIMEOUT = 30000;
+
+	/**
+	 * Buffer exposing its content without copying.
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(BUFFER_SIZE);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Batch written but not acknowledged yet.
+	 */
+	private static class Unacknowledged {
+		/**
+		 * Sequence of the batch on the current connection.
+		 */
+		long sequence;
+
+		/**
+		 * Lines of the batch.
+		 */
+		final List<ShipEvent> events;
+
+		Unacknowledged(long sequence, List<ShipEvent> events) {
+			this.sequence = sequence;
+			this.events = events;
+		}
+	}
+
+	/**
+	 * Log server name.
+	 */
+	private final String host;
+
+	/**
+	 * Log server port.
+	 */
+	private final int port;
+
+	/**
+	 * Connection to log server. {@code null} if not connected.
+	 */
+	private Socket socket;
+
+	/**
+	 * Buffered stream to {@link #socket}.
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * Files announced on the current connection.
+	 */
+	private final Set<Integer> announced = new HashSet<>();
+
+	/**
+	 * Compression of batches. {@code null} to not compress.
+	 */
+	private final BatchCodec codec;
+
+	/**
+	 * Uncompressed frames of current batch. Reused for all batches.
+	 */
+	private final FrameBuffer frames = new FrameBuffer();
+
+	/**
+	 * Writer of {@link #frames}.
+	 */
+	private final DataOutputStream framesOut = new DataOutputStream(frames);
+
+	/**
+	 * Compressed frames of current batch. Reused for all batches.
+	 */
+	private byte[] compressed = new byte[0];
+
+	/**
+	 * Batches written before waiting for acknowledgements. {@code 0} to
+	 * count lines as delivered once written.
+	 */
+	private final int window;
+
+	/**
+	 * Batches written but not acknowledged yet, oldest first. Guarded by
+	 * {@link #lock}.
+	 */
+	private final Deque<Unacknowledged> unacknowledged = new ArrayDeque<>();
+
+	/**
+	 * Sequence of the next batch. Guarded by {@link #lock}.
+	 */
+	private long nextSequence = 0;
+
+	/**
+	 * Failure reading acknowledgements of the current connection or
+	 * {@code null}. Guarded by {@link #lock}.
+	 */
+	private IOException acknowledgeFailure;
+
+	/**
+	 * Guards the acknowledgement state, which is shared with the thread
+	 * reading acknowledgements.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when batches were acknowledged or reading acknowledgements
+	 * failed.
+	 */
+	private final Condition acknowledged = lock.newCondition();
+
+	/**
+	 * @param host
+	 *            Log server name.
+	 * @param port
+	 *            Log server port.
+	 * @param codec
+	 *            Compression of batches. {@code null} to not compress.
+	 */
+	public BinaryTransport(String host, int port, BatchCodec codec) {
+		this(host, port, codec, 0);
+	}
+
+	/**
+	 * @param host
+	 *            Log server name.
+	 * @param port
+	 *            Log server port.
+	 * @param codec
+	 *            Compression of batches. {@code null} to not compress.
+	 * @param window
+	 *            Batches written before waiting for acknowledgements.
+	 *            {@code 0} to count lines as delivered once written.
+	 */
+	public BinaryTransport(String host, int port, BatchCodec codec,
+			int window) {
+		if (window < 0) {
+			throw new IllegalArgumentException(
+					"Acknowledgement window must not be negative.");
+		}
+		this.host = host;
+		this.port = port;
+		this.codec = codec;
+		this.window = window;
+	}
+
+	/**
+	 * Connects and writes the batches that were not acknowledged on the
+	 * previous connection again.
+	 */
+	@Override
+	public void connect() throws IOException {
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port));
+			out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(), BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			if (window > 0) {
+				receiveAcknowledgements(socket);
+				resend();
+			}
+			out.flush();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket != null;
+	}
+
+	/**
+	 * Writes a batch. With an acknowledgement window, waits while the window
+	 * is full and returns before the batch is acknowledged.
+	 */
+	@Override
+	public void write(List<ShipEvent> batch) throws IOException {
+		if (window == 0) {
+			writeFrames(batch, -1);
+			ShipLatency.written(batch);
+			ShipEvent.delivered(batch);
+			return;
+		}
+
+		Unacknowledged pending;
+		lock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT);
+			while (acknowledgeFailure == null
+					&& unacknowledged.size() >= window) {
+				if (remaining <= 0) {
+					throw new IOException("No acknowledgement from " + this
+							+ " within " + ACK_TIMEOUT + " ms.");
+				}
+				remaining = acknowledged.awaitNanos(remaining);
+			}
+			if (acknowledgeFailure != null) {
+				throw acknowledgeFailure;
+			}
+			// Caller reuses its list.
+			pending = new Unacknowledged(nextSequence,
+					new ArrayList<>(batch));
+			nextSequence = nextSequence + 1;
+			unacknowledged.addLast(pending);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for "
+					+ this);
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writeFrames(pending.events, pending.sequence);
+			ShipLatency.written(pending.events);
+		} catch (IOException e) {
+			// Caller writes the batch again.
+			lock.lock();
+			try {
+				unacknowledged.remove(pending);
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Hands over the batches that were not acknowledged, so another
+	 * connection writes them. Only called while not connected.
+	 * 
+	 * @return Unacknowledged batches, oldest first.
+	 */
+	List<List<ShipEvent>> takeUnacknowledged() {
+		lock.lock();
+		try {
+			List<List<ShipEvent>> batches = new ArrayList<>();
+			for (Unacknowledged pending : unacknowledged) {
+				batches.add(pending.events);
+			}
+			unacknowledged.clear();
+			return batches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes a batch and flushes it.
+	 * 
+	 * @param batch
+	 *            Lines to write.
+	 * @param sequence
+	 *            Sequence of batch to acknowledge or {@code -1} to not
+	 *            request an acknowledgement.
+	 * @throws IOException
+	 *             Connection failed.
+	 */
+	private void writeFrames(List<ShipEvent> batch, long sequence)
+			throws IOException {
+		frames.reset();
+		for (ShipEvent event : batch) {
+			LineSource source = event.source;
+			if (announced.add(source.fileId)) {
+				byte[] path = source.path.toString().getBytes(UTF8);
+				framesOut.writeInt(1 + 4 + path.length);
+				framesOut.writeByte(SOURCE);
+				framesOut.writeInt(source.fileId);
+				framesOut.write(path);
+			}
+			framesOut.writeInt(RECORD_HEADER + event.line.length);
+			framesOut.writeByte(RECORD);
+			framesOut.writeInt(source.fileId);
+			framesOut.writeLong(event.offset);
+			framesOut.writeLong(event.timestamp);
+			framesOut.writeByte(event.level.getSyslogEquivalent());
+			framesOut.write(event.line);
+		}
+		if (sequence >= 0) {
+			framesOut.writeInt(1 + 8);
+			framesOut.writeByte(BATCH);
+			framesOut.writeLong(sequence);
+		}
+
+		int rawLength = frames.size();
+		if (codec != null && rawLength >= MIN_COMPRESSED_SIZE) {
+			int bound = codec.maxCompressedLength(rawLength);
+			if (compressed.length < bound) {
+				compressed = new byte[bound];
+			}
+			int length = codec.compress(frames.array(), rawLength,
+					compressed);
+			if (length >= 0 && length < rawLength) {
+				out.writeInt(1 + 1 + 4 + length);
+				out.writeByte(COMPRESSED);
+				out.writeByte(codec.id());
+				out.writeInt(rawLength);
+				out.write(compressed, 0, length);
+				out.flush();
+				return;
+			}
+		}
+		// Not compressible.
+		out.write(frames.array(), 0, rawLength);
+		out.flush();
+	}
+
+	/**
+	 * Writes the unacknowledged batches on a new connection.
+	 * 
+	 * @throws IOException
+	 *             Connection failed.
+	 */
+	private void resend() throws IOException {
+		List<Unacknowledged> batches;
+		lock.lock();
+		try {
+			for (Unacknowledged pending : unacknowledged) {
+				pending.sequence = nextSequence;
+				nextSequence = nextSequence + 1;
+			}
+			batches = new ArrayList<>(unacknowledged);
+		} finally {
+			lock.unlock();
+		}
+		for (Unacknowledged pending : batches) {
+			writeFrames(pending.events, pending.sequence);
+		}
+	}
+
+	/**
+	 * Starts a thread reporting acknowledged batches as delivered until the
+	 * connection fails.
+	 * 
+	 * @param connection
+	 *            Connection to log server.
+	 * @throws IOException
+	 *             Connection failed.
+	 */
+	private void receiveAcknowledgements(final Socket connection)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				connection.getInputStream()));
+		lock.lock();
+		try {
+			acknowledgeFailure = null;
+		} finally {
+			lock.unlock();
+		}
+		Thread receiver = new Thread("Acknowledgements from " + this) {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						acknowledge(connection, in.readLong());
+					}
+				} catch (IOException e) {
+					lock.lock();
+					try {
+						if (!connection.isClosed()) {
+							acknowledgeFailure = e;
+						}
+						acknowledged.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Reports batches as delivered.
+	 * 
+	 * @param connection
+	 *            Connection the acknowledgement was received on.
+	 * @param sequence
+	 *            Sequence of the last handled batch. All batches before were
+	 *            handled, too.
+	 */
+	private void acknowledge(Socket connection, long sequence) {
+		List<List<ShipEvent>> delivered = new ArrayList<>();
+		lock.lock();
+		try {
+			if (connection.isClosed()) {
+				// Batches get written again.
+				return;
+			}
+			while (!unacknowledged.isEmpty()
+					&& unacknowledged.getFirst().sequence <= sequence) {
+				delivered.add(unacknowledged.removeFirst().events);
+			}
+			acknowledged.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (List<ShipEvent> events : delivered) {
+			ShipEvent.delivered(events);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (socket != null) {
+			// Acknowledgements of closed connection are ignored.
+			lock.lock();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				error("Failed to close connection to " + host + ":" + port, e);
+			} finally {
+				lock.unlock();
+			}
+			socket = null;
+			out = null;
+			announced.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
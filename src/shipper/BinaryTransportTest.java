@@ -0,0 +1,191 @@
+package shipper;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class BinaryTransportTest {
+
+	@Test
+	public void test() throws IOException, InterruptedException {
+		roundTrip(null);
+	}
+
+	@Test
+	public void deflate() throws IOException, InterruptedException {
+		roundTrip(new DeflateCodec());
+	}
+
+	@Test
+	public void lz() throws IOException, InterruptedException {
+		roundTrip(new LzCodec());
+	}
+
+	private void roundTrip(BatchCodec codec) throws IOException,
+			InterruptedException {
+		final List<String> received = new ArrayList<>();
+		final CountDownLatch done = new CountDownLatch(4);
+		BinaryReceiver receiver = new BinaryReceiver(0,
+				new BinaryReceiver.Handler() {
+					@Override
+					public synchronized void record(String path, long offset,
+							long timestamp, Level level, byte[] line) {
+						received.add(path + ":" + offset + ":" + timestamp
+								+ ":" + level + ":" + new String(line));
+						done.countDown();
+					}
+				});
+		receiver.start();
+
+		LineSource source = new LineSource(0, Paths.get("/var/log/test"),
+				Logger.getLogger("shipper.Main.0"), Charset.forName("UTF-8"));
+		BinaryTransport transport = new BinaryTransport("localhost",
+				receiver.getPort(), codec);
+		transport.connect();
+		transport.write(Arrays.asList(
+				new ShipEvent(source, 0, 10, "first".getBytes()),
+				new ShipEvent(source, 6, 11, "".getBytes())));
+		ShipEvent error = new ShipEvent(source, 7, 12, "third".getBytes());
+		error.level = Level.ERROR;
+		transport.write(Arrays.asList(error));
+		StringBuilder repetitive = new StringBuilder();
+		for (int index = 0; index < 100; index = index + 1) {
+			repetitive.append("repeated content ");
+		}
+		transport.write(Arrays.asList(new ShipEvent(source, 13, 13,
+				repetitive.toString().getBytes())));
+		transport.close();
+
+		org.junit.Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		receiver.close();
+		org.junit.Assert.assertEquals(Arrays.asList(
+				"/var/log/test:0:10:INFO:first", "/var/log/test:6:11:INFO:",
+				"/var/log/test:7:12:ERROR:third", "/var/log/test:13:13:INFO:"
+						+ repetitive), received);
+	}
+
+	@Test
+	public void acknowledged() throws IOException, InterruptedException {
+		final CountDownLatch firstReceived = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> received = Collections
+				.synchronizedList(new ArrayList<String>());
+		BinaryReceiver receiver = new BinaryReceiver(0,
+				new BinaryReceiver.Handler() {
+					@Override
+					public void record(String path, long offset,
+							long timestamp, Level level, byte[] line) {
+						if (firstReceived.getCount() > 0) {
+							// First connection never acknowledges.
+							firstReceived.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						received.add(new String(line));
+					}
+				});
+		receiver.start();
+		Path registry = Files.createTempFile(null, null);
+		Files.delete(registry);
+		Path monitored = Files.createTempFile(null, null);
+		try (FileWriter w = new FileWriter(monitored.toFile())) {
+			w.append("a\nb\n");
+		}
+
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			LineSource source = new LineSource(0, monitored,
+					Logger.getLogger("shipper.Main.0"),
+					Charset.forName("UTF-8"), store);
+			BinaryTransport transport = new BinaryTransport("localhost",
+					receiver.getPort(), null, 2);
+			transport.connect();
+			transport.write(Arrays.asList(TestSupport.tracked(source, 0, "a")));
+			store.update(monitored, 2, -1);
+			org.junit.Assert.assertTrue(firstReceived.await(10,
+					TimeUnit.SECONDS));
+			org.junit.Assert.assertEquals(-1, store.restore(monitored));
+
+			// Lost connection, unacknowledged batch is written again.
+			transport.close();
+			transport.connect();
+			transport.write(Arrays.asList(TestSupport.tracked(source, 2, "b")));
+			store.update(monitored, 4, -1);
+			awaitPosition(store, monitored, 4);
+			org.junit.Assert.assertEquals(Arrays.asList("a", "b"), received);
+			transport.close();
+		} finally {
+			release.countDown();
+			receiver.close();
+			Files.delete(monitored);
+			Files.delete(registry);
+		}
+	}
+
+	@Test
+	public void window() throws IOException, InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1000);
+		BinaryReceiver receiver = new BinaryReceiver(0,
+				new BinaryReceiver.Handler() {
+					@Override
+					public void record(String path, long offset,
+							long timestamp, Level level, byte[] line) {
+						done.countDown();
+					}
+				});
+		receiver.start();
+		Path registry = Files.createTempFile(null, null);
+		Files.delete(registry);
+		Path monitored = Files.createTempFile(null, null);
+		Files.write(monitored, new byte[100]);
+
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			LineSource source = new LineSource(0, monitored,
+					Logger.getLogger("shipper.Main.0"),
+					Charset.forName("UTF-8"), store);
+			BinaryTransport transport = new BinaryTransport("localhost",
+					receiver.getPort(), new LzCodec(), 4);
+			transport.connect();
+			for (int batch = 0; batch < 100; batch = batch + 1) {
+				List<ShipEvent> events = new ArrayList<>();
+				for (int line = 0; line < 10; line = line + 1) {
+					events.add(TestSupport.tracked(source, 0, "line " + line));
+				}
+				transport.write(events);
+				store.update(monitored, batch, -1);
+			}
+			org.junit.Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+			awaitPosition(store, monitored, 99);
+			transport.close();
+		} finally {
+			receiver.close();
+			Files.delete(monitored);
+			Files.delete(registry);
+		}
+	}
+
+	private static void awaitPosition(CheckpointStore store, Path path,
+			long position) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (store.restore(path) != position
+				&& System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		org.junit.Assert.assertEquals(position, store.restore(path));
+	}
+}
@@ -0,0 +1,370 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the lines sent for a single file while an application floods it,
+ * such as in an error loop.
+ * <p>
+ * Repeats of the previous line are counted instead of passed on. Once the
+ * repetition ends, the next listener receives
+ * {@code last message repeated <count> times} like syslog does, at least once
+ * per second while it lasts. Lines are compared by their undecoded bytes,
+ * which stops at the first difference, so unrelated lines cost little.
+ * <p>
+ * Above a threshold of lines per second, only one of a fixed number of lines
+ * is passed on for the rest of the second. Afterwards the next listener
+ * receives {@code dropped <count> of <lines> lines by sampling}, so the
+ * volume of the burst stays visible.
+ */
+public class BurstLimiter implements LineSliceListener,
+		HoldingListener {
+	/**
+	 * Thread passing on pending counts of idle files. Shared by all limiters.
+	 */
+	private static final ScheduledExecutorService SUMMARIZER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread summarizer = new Thread(r, "Burst limit summarizer");
+					summarizer.setDaemon(true);
+					return summarizer;
+				}
+			});
+
+	/**
+	 * Nanoseconds between passing on counts of held back lines. Also the
+	 * window that sampling applies to.
+	 */
+	static final long INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Receiver of limited lines.
+	 */
+	private final FileModificationListener next;
+
+	/**
+	 * Settings and counters.
+	 */
+	private final BurstLimits limits;
+
+	/**
+	 * Encoding of file content.
+	 */
+	private final Charset encoding;
+
+	/**
+	 * Content of the previous line.
+	 */
+	private byte[] previous = new byte[256];
+
+	/**
+	 * Length of the previous line or {@code -1} if there was none.
+	 */
+	private int previousLength = -1;
+
+	/**
+	 * Repeats of the previous line that were not passed on yet.
+	 */
+	private long repeats = 0;
+
+	/**
+	 * {@link System#nanoTime()} when repeats were last passed on or the
+	 * repeated line was passed on.
+	 */
+	private long repeatsSummarized;
+
+	/**
+	 * {@link System#nanoTime()} of the start of the sampling window.
+	 */
+	private long windowStart;
+
+	/**
+	 * Lines of the sampling window, excluding repeats.
+	 */
+	private long windowLines = 0;
+
+	/**
+	 * Lines of the sampling window that were dropped.
+	 */
+	private long windowDropped = 0;
+
+	/**
+	 * Path of held back lines.
+	 */
+	private Path path;
+
+	/**
+	 * Guards the limiter state against concurrent checks of idle files.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * {@code true} while a check of pending counts is scheduled.
+	 */
+	private boolean summaryScheduled = false;
+
+	/**
+	 * Passes on pending counts that are due, otherwise checks again later.
+	 */
+	private final Runnable summaryCheck = new Runnable() {
+		@Override
+		public void run() {
+			lock.lock();
+			try {
+				summaryScheduled = false;
+				long now = System.nanoTime();
+				if (repeats > 0 && now - repeatsSummarized >= INTERVAL) {
+					summarizeRepeats(now);
+				}
+				if (windowDropped > 0 && now - windowStart >= INTERVAL) {
+					summarizeSampling(now);
+				}
+				if (repeats > 0 || windowDropped > 0) {
+					scheduleSummary();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	};
+
+	/**
+	 * @param next
+	 *            Receiver of limited lines.
+	 * @param limits
+	 *            Settings and counters.
+	 * @param encoding
+	 *            Encoding of file content.
+	 */
+	public BurstLimiter(FileModificationListener next, BurstLimits limits,
+			Charset encoding) {
+		this.next = next;
+		this.limits = limits;
+		this.encoding = encoding;
+		this.windowStart = System.nanoTime();
+	}
+
+	@Override
+	public void lineAdded(Path path, LineSlice line) {
+		lock.lock();
+		try {
+			add(path, line.bytes(), line, null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void lineAdded(Path path, String lineContent) {
+		lock.lock();
+		try {
+			add(path, ByteBuffer.wrap(lineContent.getBytes(encoding)), null,
+					lineContent);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void completelyRead(Path path) {
+		next.completelyRead(path);
+	}
+
+	@Override
+	public void noSuchFile(Path path) {
+		lock.lock();
+		try {
+			summarize();
+			next.noSuchFile(path);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void fileRotated(Path path) {
+		lock.lock();
+		try {
+			summarize();
+			next.fileRotated(path);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void resumed(Path path, long position) {
+		lock.lock();
+		try {
+			summarize();
+			next.resumed(path, position);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Passes a line on unless it is a repeat or sampled out.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param content
+	 *            Encoded line between position and limit.
+	 * @param slice
+	 *            Line to pass on or {@code null} to pass on {@code string}.
+	 * @param string
+	 *            Decoded line or {@code null} to pass on {@code slice}.
+	 */
+	private void add(Path path, ByteBuffer content, LineSlice slice,
+			String string) {
+		this.path = path;
+		long now = System.nanoTime();
+		if (limits.collapse != BurstLimits.Collapse.NONE) {
+			if (isRepeat(content)) {
+				repeats = repeats + 1;
+				limits.collapsed.increment();
+				if (now - repeatsSummarized >= INTERVAL) {
+					summarizeRepeats(now);
+				} else if (!summaryScheduled) {
+					scheduleSummary();
+				}
+				return;
+			}
+			summarizeRepeats(now);
+			remember(content);
+		}
+
+		if (limits.threshold > 0) {
+			if (now - windowStart >= INTERVAL) {
+				summarizeSampling(now);
+			}
+			windowLines = windowLines + 1;
+			long excess = windowLines - limits.threshold;
+			if (excess > 0 && (excess - 1) % limits.ratio != 0) {
+				windowDropped = windowDropped + 1;
+				limits.sampledOut.increment();
+				if (!summaryScheduled) {
+					scheduleSummary();
+				}
+				return;
+			}
+		}
+
+		if (slice != null && next instanceof LineSliceListener) {
+			((LineSliceListener) next).lineAdded(path, slice);
+		} else {
+			next.lineAdded(path, string != null ? string : slice.toString());
+		}
+	}
+
+	/**
+	 * @param content
+	 *            Encoded line between position and limit.
+	 * @return {@code true} if the line repeats the previous line.
+	 */
+	private boolean isRepeat(ByteBuffer content) {
+		int start = content.position();
+		int length = content.remaining();
+		if (length != previousLength) {
+			return false;
+		}
+		boolean digits = limits.collapse == BurstLimits.Collapse.DIGITS;
+		for (int index = 0; index < length; index = index + 1) {
+			byte current = content.get(start + index);
+			byte earlier = previous[index];
+			if (current != earlier
+					&& !(digits && isDigit(current) && isDigit(earlier))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return {@code true} for an ASCII digit.
+	 */
+	private static boolean isDigit(byte value) {
+		return value >= '0' && value <= '9';
+	}
+
+	/**
+	 * Keeps a line to compare later lines with.
+	 * 
+	 * @param content
+	 *            Encoded line between position and limit. The position is
+	 *            not changed.
+	 */
+	private void remember(ByteBuffer content) {
+		int length = content.remaining();
+		if (length > previous.length) {
+			previous = new byte[Math.max(length, previous.length * 2)];
+		}
+		content.duplicate().get(previous, 0, length);
+		previousLength = length;
+	}
+
+	/**
+	 * Passes on all pending counts.
+	 */
+	private void summarize() {
+		long now = System.nanoTime();
+		summarizeRepeats(now);
+		summarizeSampling(now);
+		// Lines after the file change are not repeats.
+		previousLength = -1;
+	}
+
+	/**
+	 * Passes on the number of pending repeats, if any, and starts counting
+	 * again.
+	 * 
+	 * @param now
+	 *            Current {@link System#nanoTime()}.
+	 */
+	private void summarizeRepeats(long now) {
+		if (repeats > 0) {
+			next.lineAdded(path, "last message repeated " + repeats + " times");
+			repeats = 0;
+		}
+		repeatsSummarized = now;
+	}
+
+	/**
+	 * Passes on the number of lines dropped by sampling, if any, and starts
+	 * a new sampling window.
+	 * 
+	 * @param now
+	 *            Current {@link System#nanoTime()}.
+	 */
+	private void summarizeSampling(long now) {
+		if (windowDropped > 0) {
+			next.lineAdded(path, "dropped " + windowDropped + " of "
+					+ windowLines + " lines by sampling");
+			windowDropped = 0;
+		}
+		windowLines = 0;
+		windowStart = now;
+	}
+
+	/**
+	 * Checks for due counts later.
+	 */
+	private void scheduleSummary() {
+		summaryScheduled = true;
+		SUMMARIZER.schedule(summaryCheck, INTERVAL, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public long heldOffset(Path path) {
+		return next instanceof HoldingListener ? ((HoldingListener) next)
+				.heldOffset(path) : -1;
+	}
+}
@@ -0,0 +1,77 @@
+package shipper;
+
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import shipper.TestSupport.CollectingListener;
+
+public class BurstLimiterTest {
+
+	@Test
+	public void collapse() throws InterruptedException {
+		Path path = Paths.get("a.log");
+		CollectingListener collector = new CollectingListener();
+		BurstLimits limits = new BurstLimits(BurstLimits.Collapse.EXACT, 0, 1);
+		BurstLimiter limiter = new BurstLimiter(collector, limits,
+				Charset.forName("UTF-8"));
+
+		limiter.lineAdded(path, "a");
+		limiter.lineAdded(path, "b");
+		limiter.lineAdded(path, "b");
+		limiter.lineAdded(path, "b");
+		limiter.lineAdded(path, "c");
+		limiter.lineAdded(path, "c");
+		limiter.fileRotated(path);
+		limiter.lineAdded(path, "c");
+		org.junit.Assert.assertEquals(Arrays.asList("a", "b",
+				"last message repeated 2 times", "c",
+				"last message repeated 1 times", "c"), collector.lines);
+		org.junit.Assert.assertEquals(3, limits.getCollapsedLines());
+
+		// Pending repeats of an idle file are passed on later.
+		limiter.lineAdded(path, "c");
+		Thread.sleep(1500);
+		synchronized (collector) {
+			org.junit.Assert.assertEquals("last message repeated 1 times",
+					collector.lines.get(6));
+		}
+	}
+
+	@Test
+	public void digits() {
+		Path path = Paths.get("a.log");
+		CollectingListener collector = new CollectingListener();
+		BurstLimiter limiter = new BurstLimiter(collector, new BurstLimits(
+				BurstLimits.Collapse.DIGITS, 0, 1), Charset.forName("UTF-16LE"));
+
+		limiter.lineAdded(path, "12:00:01 ERROR Connection refused");
+		limiter.lineAdded(path, "12:00:02 ERROR Connection refused");
+		limiter.lineAdded(path, "12:00:03 ERROR Connection reset");
+		limiter.noSuchFile(path);
+		org.junit.Assert.assertEquals(Arrays.asList(
+				"12:00:01 ERROR Connection refused",
+				"last message repeated 1 times",
+				"12:00:03 ERROR Connection reset"), collector.lines);
+	}
+
+	@Test
+	public void sample() {
+		Path path = Paths.get("a.log");
+		CollectingListener collector = new CollectingListener();
+		BurstLimits limits = new BurstLimits(BurstLimits.Collapse.NONE, 3, 4);
+		BurstLimiter limiter = new BurstLimiter(collector, limits,
+				Charset.forName("UTF-8"));
+
+		for (int line = 0; line < 12; line = line + 1) {
+			limiter.lineAdded(path, String.valueOf(line));
+		}
+		limiter.fileRotated(path);
+		org.junit.Assert.assertEquals(Arrays.asList("0", "1", "2", "3", "7",
+				"11", "dropped 6 of 12 lines by sampling"), collector.lines);
+		org.junit.Assert.assertEquals(6, limits.getSampledOutLines());
+	}
+}
@@ -0,0 +1,96 @@
+package shipper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settings of the {@link BurstLimiter}s of all files and their counters of
+ * held back lines.
+ */
+public class BurstLimits implements BurstLimitsMBean {
+	/**
+	 * Ways to detect repeated lines.
+	 */
+	public static enum Collapse {
+		/**
+		 * Every line is sent.
+		 */
+		NONE,
+		/**
+		 * Lines equal to the previous line are repeats.
+		 */
+		EXACT,
+		/**
+		 * Lines that differ from the previous line in ASCII digits only, such
+		 * as timestamps or counters, are repeats.
+		 */
+		DIGITS
+	}
+
+	/**
+	 * Detection of repeated lines.
+	 */
+	final Collapse collapse;
+
+	/**
+	 * Lines per second and file that are sent before sampling starts.
+	 * {@code 0} to never sample.
+	 */
+	final int threshold;
+
+	/**
+	 * One of this many lines is sent while sampling.
+	 */
+	final int ratio;
+
+	/**
+	 * Repeated lines that were counted instead of sent.
+	 */
+	final LongAdder collapsed = new LongAdder();
+
+	/**
+	 * Lines dropped by sampling.
+	 */
+	final LongAdder sampledOut = new LongAdder();
+
+	/**
+	 * @param collapse
+	 *            Detection of repeated lines.
+	 * @param threshold
+	 *            Lines per second and file that are sent before sampling
+	 *            starts. {@code 0} to never sample.
+	 * @param ratio
+	 *            One of this many lines is sent while sampling.
+	 */
+	public BurstLimits(Collapse collapse, int threshold, int ratio) {
+		if (ratio < 1) {
+			throw new IllegalArgumentException("Sample ratio must be positive.");
+		}
+		this.collapse = collapse;
+		this.threshold = threshold;
+		this.ratio = ratio;
+	}
+
+	/**
+	 * @return {@code true} if lines might be held back at all.
+	 */
+	public boolean isLimiting() {
+		return collapse != Collapse.NONE || threshold > 0;
+	}
+
+	/**
+	 * Publishes the counters of held back lines via JMX.
+	 */
+	public void register() {
+		Metrics.register(this, "type=BurstLimits");
+	}
+
+	@Override
+	public long getCollapsedLines() {
+		return collapsed.sum();
+	}
+
+	@Override
+	public long getSampledOutLines() {
+		return sampledOut.sum();
+	}
+}
@@ -0,0 +1,16 @@
+package shipper;
+
+/**
+ * Lines held back by {@link BurstLimiter}s as published via JMX.
+ */
+public interface BurstLimitsMBean {
+	/**
+	 * @return Repeated lines that were counted instead of sent.
+	 */
+	long getCollapsedLines();
+
+	/**
+	 * @return Lines dropped by sampling.
+	 */
+	long getSampledOutLines();
+}
@@ -0,0 +1,701 @@
+package shipper;
+
+import static shipper.ShipperLogger.debug;
+import static shipper.ShipperLogger.error;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent registry of read positions so monitoring resumes at the last
+ * processed byte after a program restart.
+ * <p>
+ * The registry is a memory-mapped file made of fixed size slots, one per
+ * monitored path. Each slot holds the path, the identity of the file that was
+ * read and the position up to which it was processed. Updates only write to the
+ * mapped memory. A fingerprint of the file head guards against identities that
+ * got reused by another file. A background thread forces dirty pages to disk
+ * periodically so that all updates of an interval share a single disk
+ * synchronization.
+ * <p>
+ * Paths with a {@link Delivery} only advance their position once all lines
+ * read before it have been {@link #delivered(List)}. Until then, updates wait
+ * in memory, so lines that were read but lost on their way to the log server
+ * are read again after a restart.
+ */
+public class CheckpointStore implements Closeable {
+	/**
+	 * Marker at the start of registry files.
+	 */
+	private static final int MAGIC = 0x53484350;
+
+	/**
+	 * Layout version of registry files.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Bytes before the first slot.
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * Bytes per slot.
+	 */
+	private static final int SLOT_SIZE = 512;
+
+	/**
+	 * Number of slots in a newly created registry.
+	 */
+	private static final int DEFAULT_SLOT_COUNT = 4096;
+
+	/**
+	 * Maximum length of an encoded path.
+	 */
+	private static final int MAX_PATH_BYTES = 382;
+
+	/**
+	 * Maximum length of an encoded file identity.
+	 */
+	private static final int MAX_KEY_BYTES = 110;
+
+	/**
+	 * Slot layout: position, path length, identity length, path, identity,
+	 * fingerprint.
+	 */
+	private static final int POSITION_OFFSET = 0;
+	private static final int PATH_LENGTH_OFFSET = 8;
+	private static final int KEY_LENGTH_OFFSET = 10;
+	private static final int PATH_OFFSET = 12;
+	private static final int KEY_OFFSET = PATH_OFFSET + MAX_PATH_BYTES;
+	private static final int FINGERPRINT_OFFSET = KEY_OFFSET + MAX_KEY_BYTES;
+
+	/**
+	 * Marks a stored fingerprint. Slots written before fingerprints were
+	 * recorded hold 0.
+	 */
+	private static final long FINGERPRINT_PRESENT = 1L << 32;
+
+	/**
+	 * Encoding of paths and identities within the registry.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Channel to registry file.
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Mapped content of the registry file.
+	 */
+	private final MappedByteBuffer registry;
+
+	/**
+	 * Number of slots within the registry.
+	 */
+	private final int slotCount;
+
+	/**
+	 * Slot index by absolute path.
+	 */
+	private final Map<String, Integer> slots = new HashMap<>();
+
+	/**
+	 * Unused slot indexes, the next to use first.
+	 */
+	private final Deque<Integer> free = new ArrayDeque<>();
+
+	/**
+	 * Delivery state by absolute path.
+	 */
+	private final Map<String, Delivery> deliveries = new HashMap<>();
+
+	/**
+	 * Guards {@link #slots}, {@link #free} and slot contents. Not a monitor as
+	 * restoring reads files, which would pin the carrier of a virtual thread.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Background thread committing changes to disk.
+	 */
+	private final Thread committer;
+
+	/**
+	 * {@code true} if the mapped memory contains changes that have not yet
+	 * been forced to disk.
+	 */
+	private volatile boolean dirty = false;
+
+	/**
+	 * @param registryFile
+	 *            File to keep positions in. Gets created if missing.
+	 * @param commitInterval
+	 *            Milliseconds between forcing changes to disk.
+	 * @throws IOException
+	 *             Registry file could not be opened or is not a registry.
+	 */
+	public CheckpointStore(Path registryFile, final long commitInterval)
+			throws IOException {
+		channel = FileChannel.open(registryFile, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean created = channel.size() == 0;
+		if (created) {
+			slotCount = DEFAULT_SLOT_COUNT;
+		} else {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			if (header.remaining() < HEADER_SIZE
+					|| header.getInt() != MAGIC || header.getInt() != VERSION) {
+				channel.close();
+				throw new IOException(registryFile
+						+ " is not a checkpoint registry.");
+			}
+			slotCount = header.getInt();
+		}
+		registry = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE
+				+ (long) slotCount * SLOT_SIZE);
+		if (created) {
+			registry.putInt(0, MAGIC);
+			registry.putInt(4, VERSION);
+			registry.putInt(8, slotCount);
+			registry.force();
+		}
+
+		// Index occupied slots.
+		for (int slot = 0; slot < slotCount; slot = slot + 1) {
+			int pathLength = registry.getShort(slotStart(slot)
+					+ PATH_LENGTH_OFFSET);
+			if (pathLength > 0) {
+				slots.put(readString(slotStart(slot) + PATH_OFFSET, pathLength),
+						slot);
+			} else {
+				free.add(slot);
+			}
+		}
+		debug("Loaded " + slots.size() + " checkpoints from " + registryFile);
+
+		committer = new Thread("Checkpoint committer") {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					try {
+						Thread.sleep(commitInterval);
+					} catch (InterruptedException e) {
+						// Closing, commit a last time.
+						interrupt();
+					}
+					commit();
+				}
+			}
+		};
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Looks up the position up to which a file was processed.
+	 *
+	 * @param path
+	 *            Monitored path.
+	 * @return Position to continue reading from or {@code -1} if there is no
+	 *         checkpoint for the file currently found at {@code path}.
+	 * @throws IOException
+	 *             Failed to read file attributes.
+	 */
+	public long restore(Path path) throws IOException {
+		lock.lock();
+		try {
+			Integer slot = slots.get(key(path));
+			if (slot == null) {
+				return -1;
+			}
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(path,
+						BasicFileAttributes.class);
+			} catch (NoSuchFileException e) {
+				return -1;
+			}
+			int start = slotStart(slot);
+			String identity = readString(start + KEY_OFFSET,
+					registry.getShort(start + KEY_LENGTH_OFFSET));
+			long position = registry.getLong(start + POSITION_OFFSET);
+			if (!identity.equals(identity(attributes.fileKey()))) {
+				debug("Checkpoint of " + path + " belongs to another file.");
+				return -1;
+			}
+			if (attributes.size() < position) {
+				debug("Checkpoint of " + path + " is beyond the file end.");
+				return -1;
+			}
+			long fingerprint = registry.getLong(start + FINGERPRINT_OFFSET);
+			if (fingerprint != 0) {
+				long current;
+				try (FileChannel file = FileChannel.open(path,
+						StandardOpenOption.READ)) {
+					current = Fingerprint.of(file,
+							Fingerprint.length(position));
+				} catch (NoSuchFileException e) {
+					return -1;
+				}
+				if ((fingerprint & ~FINGERPRINT_PRESENT) != current) {
+					debug("Checkpoint of " + path
+							+ " belongs to a file with other content.");
+					return -1;
+				}
+			}
+			return position;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts tracking which lines of a path were delivered. Later
+	 * {@link #update(Path, long, long)}s of the path wait for the lines that
+	 * were {@link Delivery#sent()} before.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @return Delivery state of the path. The same for equal paths.
+	 */
+	public Delivery delivery(Path path) {
+		lock.lock();
+		try {
+			String key = key(path);
+			Delivery delivery = deliveries.get(key);
+			if (delivery == null) {
+				delivery = new Delivery();
+				deliveries.put(key, delivery);
+			}
+			return delivery;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the position up to which a file was processed. Only touches
+	 * memory, the change reaches disk with the next commit. For a path with
+	 * a {@link Delivery}, the position is recorded once the lines sent so far
+	 * were delivered.
+	 *
+	 * @param path
+	 *            Monitored path.
+	 * @param position
+	 *            Position up to which the file was processed.
+	 * @param fingerprint
+	 *            {@link Fingerprint} of the first
+	 *            {@link Fingerprint#length(long)} bytes of the file or
+	 *            {@code -1} if unknown.
+	 * @throws IOException
+	 *             Failed to read file attributes.
+	 */
+	public void update(Path path, long position, long fingerprint)
+			throws IOException {
+		lock.lock();
+		try {
+			String key = key(path);
+			Object fileKey;
+			try {
+				fileKey = Files.readAttributes(path, BasicFileAttributes.class)
+						.fileKey();
+			} catch (NoSuchFileException e) {
+				// File vanished, checkpoint of next file gets written later.
+				return;
+			}
+			Integer slot = slots.get(key);
+			if (slot == null) {
+				slot = allocate(key);
+				if (slot == null) {
+					return;
+				}
+			}
+			// Identity is taken now as the path might name another file once
+			// the lines are delivered.
+			byte[] identity = identity(fileKey).getBytes(UTF8);
+			Delivery delivery = deliveries.get(key);
+			if (delivery == null || delivery.isComplete()) {
+				write(slot, identity, position, fingerprint);
+			} else {
+				delivery.await(new Checkpoint(slot, identity, position,
+						fingerprint));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets the position and delivery state of a path that is no longer
+	 * monitored. Its slot is reused for other paths.
+	 * 
+	 * @param path
+	 *            Path that is no longer monitored.
+	 */
+	public void release(Path path) {
+		lock.lock();
+		try {
+			String key = key(path);
+			Delivery delivery = deliveries.remove(key);
+			if (delivery != null) {
+				// Lines still in flight must not write to a reused slot.
+				delivery.waiting.clear();
+			}
+			Integer slot = slots.remove(key);
+			if (slot != null) {
+				registry.putShort(slotStart(slot) + PATH_LENGTH_OFFSET,
+						(short) 0);
+				free.addFirst(slot);
+				dirty = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records lines as delivered and writes the positions that waited for
+	 * them. Lines without a {@link ShipEvent#sequence} are ignored, as are
+	 * lines delivered before.
+	 * 
+	 * @param batch
+	 *            Lines the log server received.
+	 */
+	public void delivered(List<ShipEvent> batch) {
+		lock.lock();
+		try {
+			for (ShipEvent event : batch) {
+				Delivery delivery = event.source.delivery;
+				if (delivery != null && event.sequence >= 0) {
+					delivery.delivered(event.sequence);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records a line that will never be delivered. Positions of its file no
+	 * longer advance beyond the line, so it is read again after a restart.
+	 * Lines without a {@link ShipEvent#sequence} are ignored.
+	 * 
+	 * @param event
+	 *            Line that was not sent.
+	 */
+	public void dropped(ShipEvent event) {
+		lock.lock();
+		try {
+			Delivery delivery = event.source.delivery;
+			if (delivery != null && event.sequence >= 0) {
+				delivery.dropped(event.sequence);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a slot. Requires {@link #lock}.
+	 * 
+	 * @param slot
+	 *            Slot index.
+	 * @param identity
+	 *            Encoded file identity.
+	 * @param position
+	 *            Position up to which the file was processed.
+	 * @param fingerprint
+	 *            Fingerprint of file head or {@code -1} if unknown.
+	 */
+	private void write(int slot, byte[] identity, long position,
+			long fingerprint) {
+		int start = slotStart(slot);
+		if (identity.length <= MAX_KEY_BYTES) {
+			registry.putShort(start + KEY_LENGTH_OFFSET,
+					(short) identity.length);
+			writeBytes(start + KEY_OFFSET, identity);
+		} else {
+			registry.putShort(start + KEY_LENGTH_OFFSET, (short) 0);
+		}
+		registry.putLong(start + POSITION_OFFSET, position);
+		registry.putLong(start + FINGERPRINT_OFFSET,
+				fingerprint < 0 ? 0 : FINGERPRINT_PRESENT | fingerprint);
+		dirty = true;
+	}
+
+	/**
+	 * Forces pending changes to disk.
+	 */
+	public void commit() {
+		if (dirty) {
+			dirty = false;
+			registry.force();
+		}
+	}
+
+	/**
+	 * Commits pending changes and releases the registry file.
+	 */
+	@Override
+	public void close() throws IOException {
+		committer.interrupt();
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			error("Interrupted waiting for last checkpoint commit.", e);
+		}
+		commit();
+		channel.close();
+	}
+
+	/**
+	 * Claims an unused slot for a path.
+	 *
+	 * @param key
+	 *            Absolute path.
+	 * @return Slot index or {@code null} if the path cannot be stored.
+	 */
+	private Integer allocate(String key) {
+		byte[] path = key.getBytes(UTF8);
+		if (path.length > MAX_PATH_BYTES) {
+			debug("Path too long for checkpoint: " + key);
+			return null;
+		}
+		Integer slot = free.poll();
+		if (slot == null) {
+			error("Checkpoint registry is full, not recording position of "
+					+ key);
+			return null;
+		}
+		int start = slotStart(slot);
+		writeBytes(start + PATH_OFFSET, path);
+		registry.putShort(start + PATH_LENGTH_OFFSET, (short) path.length);
+		slots.put(key, slot);
+		return slot;
+	}
+
+	/**
+	 * @param slot
+	 *            Slot index.
+	 * @return Position of slot within the registry.
+	 */
+	private static int slotStart(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * @param path
+	 *            Monitored path.
+	 * @return Key of path within the registry.
+	 */
+	private static String key(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * @param fileKey
+	 *            File identity as reported by the file system.
+	 * @return Textual form of identity. Empty if the file system does not
+	 *         support identities.
+	 */
+	private static String identity(Object fileKey) {
+		return fileKey == null ? "" : fileKey.toString();
+	}
+
+	private String readString(int position, int length) {
+		byte[] bytes = new byte[length];
+		for (int index = 0; index < length; index = index + 1) {
+			bytes[index] = registry.get(position + index);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private void writeBytes(int position, byte[] bytes) {
+		for (int index = 0; index < bytes.length; index = index + 1) {
+			registry.put(position + index, bytes[index]);
+		}
+	}
+
+	/**
+	 * Position waiting for lines to be delivered.
+	 */
+	private static class Checkpoint {
+		/**
+		 * Lines before this sequence have to be delivered first.
+		 */
+		long boundary;
+
+		/**
+		 * Slot index.
+		 */
+		final int slot;
+
+		/**
+		 * Encoded identity of the file when the position was reached.
+		 */
+		final byte[] identity;
+
+		/**
+		 * Position up to which the file was processed.
+		 */
+		final long position;
+
+		/**
+		 * Fingerprint of file head or {@code -1} if unknown.
+		 */
+		final long fingerprint;
+
+		Checkpoint(int slot, byte[] identity, long position, long fingerprint) {
+			this.slot = slot;
+			this.identity = identity;
+			this.position = position;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	/**
+	 * Numbers the lines of a path in the order they are handed to the sender
+	 * and tracks which of them were delivered. Lines might be delivered out
+	 * of order, such as by several log servers, and more than once.
+	 */
+	public class Delivery {
+		/**
+		 * Sequence of the next line handed to the sender.
+		 */
+		private final AtomicLong next = new AtomicLong();
+
+		/**
+		 * All lines before this sequence were delivered. Guarded by
+		 * {@link CheckpointStore#lock}.
+		 */
+		private long delivered = 0;
+
+		/**
+		 * Delivered lines after {@link #delivered}. Guarded by
+		 * {@link CheckpointStore#lock}.
+		 */
+		private final Set<Long> early = new HashSet<>();
+
+		/**
+		 * Positions waiting for lines to be delivered, oldest first. Guarded
+		 * by {@link CheckpointStore#lock}.
+		 */
+		private final Deque<Checkpoint> waiting = new ArrayDeque<>();
+
+		/**
+		 * Sequence of the first line that will never be delivered. Positions
+		 * after it are not recorded. Guarded by {@link CheckpointStore#lock}.
+		 */
+		private long dropped = Long.MAX_VALUE;
+
+		/**
+		 * Numbers a line handed to the sender.
+		 * 
+		 * @return Sequence of the line.
+		 */
+		public long sent() {
+			return next.getAndIncrement();
+		}
+
+		/**
+		 * @return Registry the positions are recorded in.
+		 */
+		CheckpointStore store() {
+			return CheckpointStore.this;
+		}
+
+		/**
+		 * @return {@code true} if all lines sent so far were delivered.
+		 */
+		private boolean isComplete() {
+			return delivered == next.get() && waiting.isEmpty();
+		}
+
+		/**
+		 * Keeps a position until the lines sent so far were delivered.
+		 * 
+		 * @param checkpoint
+		 *            Position of a file read up to the last sent line.
+		 */
+		private void await(Checkpoint checkpoint) {
+			checkpoint.boundary = next.get();
+			if (checkpoint.boundary > dropped) {
+				// Would skip the dropped line.
+				return;
+			}
+			if (!waiting.isEmpty()
+					&& waiting.getLast().boundary == checkpoint.boundary) {
+				// No line in between, the later position supersedes.
+				waiting.removeLast();
+			}
+			waiting.addLast(checkpoint);
+		}
+
+		/**
+		 * Drops the positions beyond a line that will never be delivered.
+		 * 
+		 * @param sequence
+		 *            Sequence of the dropped line.
+		 */
+		private void dropped(long sequence) {
+			if (sequence >= dropped) {
+				return;
+			}
+			dropped = sequence;
+			while (!waiting.isEmpty()
+					&& waiting.getLast().boundary > sequence) {
+				waiting.removeLast();
+			}
+		}
+
+		/**
+		 * Records a line as delivered and writes the positions that do not
+		 * wait for other lines anymore.
+		 * 
+		 * @param sequence
+		 *            Sequence of the delivered line.
+		 */
+		private void delivered(long sequence) {
+			if (sequence < delivered || sequence > dropped) {
+				return;
+			}
+			if (sequence > delivered) {
+				early.add(sequence);
+				return;
+			}
+			delivered = delivered + 1;
+			while (!early.isEmpty() && early.remove(delivered)) {
+				delivered = delivered + 1;
+			}
+			while (!waiting.isEmpty()
+					&& waiting.getFirst().boundary <= delivered) {
+				Checkpoint checkpoint = waiting.removeFirst();
+				write(checkpoint.slot, checkpoint.identity,
+						checkpoint.position, checkpoint.fingerprint);
+			}
+		}
+	}
+}
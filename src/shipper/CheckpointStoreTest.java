@@ -0,0 +1,142 @@
+package shipper;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class CheckpointStoreTest {
+
+	@Test
+	public void test() throws IOException {
+		Path registry = Files.createTempFile(null, null);
+		Files.delete(registry);
+		Path monitored = Files.createTempFile(null, null);
+		try (FileWriter w = new FileWriter(monitored.toFile())) {
+			w.append("line\nline\n");
+		}
+
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			org.junit.Assert.assertEquals(-1, store.restore(monitored));
+			try (FileChannel file = FileChannel.open(monitored,
+					StandardOpenOption.READ)) {
+				store.update(monitored, 5, Fingerprint.of(file, 5));
+			}
+		}
+
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			// Position survives reopening.
+			org.junit.Assert.assertEquals(5, store.restore(monitored));
+
+			// Same file with other content is not continued.
+			try (FileWriter w = new FileWriter(monitored.toFile())) {
+				w.append("LINE\nline\n");
+			}
+			org.junit.Assert.assertEquals(-1, store.restore(monitored));
+
+			// Replaced file is a different file.
+			Path replacement = Files.createTempFile(null, null);
+			try (FileWriter w = new FileWriter(replacement.toFile())) {
+				w.append("other content\n");
+			}
+			Files.move(replacement, monitored,
+					StandardCopyOption.REPLACE_EXISTING);
+			org.junit.Assert.assertEquals(-1, store.restore(monitored));
+		} finally {
+			Files.delete(monitored);
+			Files.delete(registry);
+		}
+	}
+
+	@Test
+	public void delivery() throws IOException {
+		Path registry = Files.createTempFile(null, null);
+		Files.delete(registry);
+		Path monitored = Files.createTempFile(null, null);
+		try (FileWriter w = new FileWriter(monitored.toFile())) {
+			w.append("a\nb\nc\n");
+		}
+
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			LineSource source = new LineSource(0, monitored,
+					Logger.getLogger("test"), Charset.forName("UTF-8"), store);
+			ShipEvent a = TestSupport.tracked(source, 0, "a");
+			ShipEvent b = TestSupport.tracked(source, 2, "b");
+			store.update(monitored, 4, -1);
+			ShipEvent c = TestSupport.tracked(source, 4, "c");
+			store.update(monitored, 6, -1);
+
+			// Nothing delivered yet.
+			org.junit.Assert.assertEquals(-1, store.restore(monitored));
+
+			// Position waits for the earlier line.
+			store.delivered(Arrays.asList(b));
+			org.junit.Assert.assertEquals(-1, store.restore(monitored));
+			store.delivered(Arrays.asList(a));
+			org.junit.Assert.assertEquals(4, store.restore(monitored));
+
+			// Repeated delivery changes nothing.
+			store.delivered(Arrays.asList(a, b));
+			org.junit.Assert.assertEquals(4, store.restore(monitored));
+			store.delivered(Arrays.asList(c));
+			org.junit.Assert.assertEquals(6, store.restore(monitored));
+
+			// Without lines in flight, positions are recorded at once.
+			store.update(monitored, 2, -1);
+			org.junit.Assert.assertEquals(2, store.restore(monitored));
+		} finally {
+			Files.delete(monitored);
+			Files.delete(registry);
+		}
+	}
+
+	@Test
+	public void release() throws IOException {
+		Path registry = Files.createTempFile(null, null);
+		Files.delete(registry);
+		Path directory = Files.createTempDirectory(null);
+		List<Path> monitored = new ArrayList<>();
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			// One path more than the registry has slots.
+			for (int index = 0; index <= 4096; index = index + 1) {
+				Path path = Files.write(directory.resolve(index + ".log"),
+						"line\n".getBytes());
+				monitored.add(path);
+				store.update(path, 5, -1);
+			}
+			Path last = monitored.get(4096);
+			org.junit.Assert.assertEquals(-1, store.restore(last));
+
+			// Released slot is reused, delivery state is dropped.
+			Path first = monitored.get(0);
+			CheckpointStore.Delivery delivery = store.delivery(first);
+			store.release(first);
+			org.junit.Assert.assertEquals(-1, store.restore(first));
+			org.junit.Assert.assertTrue(delivery != store.delivery(first));
+			store.update(last, 5, -1);
+			org.junit.Assert.assertEquals(5, store.restore(last));
+		}
+
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			org.junit.Assert.assertEquals(-1, store.restore(monitored.get(0)));
+			org.junit.Assert.assertEquals(5,
+					store.restore(monitored.get(4096)));
+		} finally {
+			for (Path path : monitored) {
+				Files.delete(path);
+			}
+			Files.delete(directory);
+			Files.delete(registry);
+		}
+	}
+}
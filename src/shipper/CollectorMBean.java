@@ -0,0 +1,38 @@
+package shipper;
+
+/**
+ * State of a single log server of a {@link BalancingTransport} as published
+ * via JMX.
+ */
+public interface CollectorMBean {
+	/**
+	 * @return {@code true} while connected and receiving batches.
+	 */
+	boolean isHealthy();
+
+	/**
+	 * @return Batches assigned to the log server that were not written yet.
+	 */
+	int getPendingBatches();
+
+	/**
+	 * @return Bytes of lines assigned to the log server that were not written
+	 *         yet.
+	 */
+	long getOutstandingBytes();
+
+	/**
+	 * @return Batches written to the log server.
+	 */
+	long getBatches();
+
+	/**
+	 * @return Lines written to the log server.
+	 */
+	long getLines();
+
+	/**
+	 * @return Failed attempts to connect or write.
+	 */
+	long getFailures();
+}
@@ -0,0 +1,64 @@
+package shipper;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses batches with {@link Deflater} at its fastest level. Good ratio,
+ * moderate CPU cost.
+ */
+public class DeflateCodec extends BatchCodec {
+	/**
+	 * Reused compressor.
+	 */
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+	/**
+	 * Reused decompressor.
+	 */
+	private final Inflater inflater = new Inflater();
+
+	@Override
+	public byte id() {
+		return DEFLATE;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + (length >> 12) + (length >> 14) + 64;
+	}
+
+	@Override
+	public int compress(byte[] source, int length, byte[] target) {
+		deflater.reset();
+		deflater.setInput(source, 0, length);
+		deflater.finish();
+		int compressed = deflater.deflate(target, 0, target.length);
+		return deflater.finished() ? compressed : -1;
+	}
+
+	@Override
+	public void decompress(byte[] source, int offset, int length,
+			byte[] target, int rawLength) throws IOException {
+		inflater.reset();
+		inflater.setInput(source, offset, length);
+		try {
+			int inflated = 0;
+			while (inflated < rawLength && !inflater.finished()) {
+				int count = inflater.inflate(target, inflated, rawLength
+						- inflated);
+				if (count == 0 && inflater.needsInput()) {
+					break;
+				}
+				inflated = inflated + count;
+			}
+			if (inflated != rawLength) {
+				throw new IOException("Truncated batch.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt batch.", e);
+		}
+	}
+}
@@ -1,64 +1,68 @@
 package shipper;
 
 import static shipper.ShipperLogger.error;
-import static shipper.ShipperLogger.info;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Path;
-
-import org.apache.log4j.Logger;
 
 /**
- * Monitor on a file that forwards file contents to a {@link Logger}.
+ * Monitor on a file that passes file contents to a listener such as a
+ * {@link ForwardingListener}. Runs on a platform or virtual thread of its own,
+ * see {@link Threads}.
  */
-public class FileListenerThread extends Thread {
+public class FileListenerThread implements Runnable {
 	/**
-	 * Categories of messages to user.
+	 * File to monitor for changes.
 	 */
-	private static enum MessageCategory {
-		SENDING, NO_SUCH_FILE, FILE_ROTATED
-	}
+	private LineSource source;
 
 	/**
-	 * File to monitor for changes.
+	 * Handler for detected events.
 	 */
-	private Path file;
+	private FileModificationListener listener;
 
 	/**
-	 * Target for content forwarding.
+	 * Persisted read positions. {@code null} if positions are not persisted.
 	 */
-	private Logger logger;
+	private CheckpointStore checkpoints;
 
 	/**
-	 * File encoding.
+	 * Milliseconds to collect modifications before reading.
 	 */
-	private Charset encoding;
+	private long debounce;
 
 	/**
-	 * If {@code true} encountered messages are ignored.
+	 * @param source
+	 *            File to monitor for changes.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @param checkpoints
+	 *            Persisted read positions. May be {@code null} to not persist
+	 *            positions.
 	 */
-	private boolean skip;
+	public FileListenerThread(LineSource source,
+			FileModificationListener listener, CheckpointStore checkpoints) {
+		this(source, listener, checkpoints, 0);
+	}
 
 	/**
-	 * @param file
+	 * @param source
 	 *            File to monitor for changes.
-	 * @param logger
-	 *            Target for content forwarding.
-	 * @param encoding
-	 *            File encoding.
-	 * @param skip
-	 *            When {@code true}, ignore the current file content. Additions
-	 *            still are forwarded.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @param checkpoints
+	 *            Persisted read positions. May be {@code null} to not persist
+	 *            positions.
+	 * @param debounce
+	 *            Milliseconds to collect modifications before reading.
+	 *            {@code 0} to read at once.
 	 */
-	public FileListenerThread(Path file, Logger logger, Charset encoding,
-			boolean skip) {
-		this.file = file;
-		this.logger = logger;
-		this.encoding = encoding;
-		this.skip = skip;
-
-		setName("Monitor on " + file);
+	public FileListenerThread(LineSource source,
+			FileModificationListener listener, CheckpointStore checkpoints,
+			long debounce) {
+		this.source = source;
+		this.listener = listener;
+		this.checkpoints = checkpoints;
+		this.debounce = debounce;
 	}
 
 	/**
@@ -66,74 +70,14 @@ public class FileListenerThread extends Thread {
 	 */
 	@Override
 	public void run() {
+		FileStats stats = new FileStats(source.path);
+		stats.register();
 		try {
-			new FileMonitor().watch(file, encoding,
-					new FileModificationListener() {
-						/**
-						 * Category of last emitted message.
-						 */
-						private MessageCategory lastCategory = MessageCategory.SENDING;
-
-						@Override
-						public void noSuchFile(Path path) {
-							println(MessageCategory.NO_SUCH_FILE,
-									"File at "
-											+ path.toAbsolutePath()
-											+ " is not existent. Path will be monitored for newly added files.");
-							// Disable skipping as a newly created to be found
-							// file will
-							// only contain new data.
-							skip = false;
-						}
-
-						@Override
-						public void lineAdded(Path path, String lineContent) {
-							if (!skip) {
-								println(MessageCategory.SENDING,
-										"Sending lines of "
-												+ path.toAbsolutePath()
-												+ " (after non-normal state).");
-
-								// Send encountered message to target host.
-								logger.info(lineContent);
-							}
-						}
-
-						@Override
-						public void fileRotated(Path path) {
-							println(MessageCategory.FILE_ROTATED,
-									"File at "
-											+ path.toAbsolutePath()
-											+ " was rotated. Will send all lines of new file.");
-						}
-
-						@Override
-						public void completelyRead(Path file) {
-							// File end was reached, disable skipping to begin
-							// sending
-							// newly added messages.
-							skip = false;
-						}
-
-						/**
-						 * Shows message to user if category changes.
-						 * 
-						 * @param newCategory
-						 *            Message category.
-						 * @param message
-						 *            Text to display.
-						 */
-						private void println(MessageCategory newCategory,
-								String message) {
-							if (!lastCategory.equals(newCategory)) {
-								info(message);
-								lastCategory = newCategory;
-							}
-						}
-					});
+			new FileMonitor(checkpoints, stats, debounce).watch(source.path,
+					source.encoding, listener);
 		} catch (IOException e) {
-			error("Failed to monitor " + file
+			error("Failed to monitor " + source.path
 					+ ". Please file an issue including the dumped stack.", e);
 		}
 	}
-}
\ No newline at end of file
+}
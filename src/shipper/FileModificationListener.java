@@ -40,4 +40,15 @@ public interface FileModificationListener {
 	 *            Monitored path.
 	 */
 	public void fileRotated(Path path);
+
+	/**
+	 * Reading continues from a checkpoint of an earlier run instead of the
+	 * file beginning.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param position
+	 *            Position where reading continues.
+	 */
+	public void resumed(Path path, long position);
 }
@@ -3,11 +3,9 @@ package shipper;
 import static shipper.ShipperLogger.debug;
 import static shipper.ShipperLogger.error;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -18,6 +16,8 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Monitors a path to a file for changes.
@@ -29,6 +29,119 @@ public class FileMonitor {
 	long fileEndPosition = 0;
 	private boolean watching = false;
 
+	/**
+	 * Size of read buffer.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Open file at monitored path. {@code null} while not reading a file.
+	 */
+	private FileChannel channel;
+
+	/**
+	 * Identity of the last read file. {@code null} if not supported by the
+	 * file system.
+	 */
+	private Object fileKey;
+
+	/**
+	 * {@link Fingerprint} of the first {@link #fingerprintLength} bytes of the
+	 * read file.
+	 */
+	private long fingerprint;
+
+	/**
+	 * Number of bytes covered by {@link #fingerprint}. Smaller than
+	 * {@link Fingerprint#length(long)} of the read position while the
+	 * fingerprint needs to be extended.
+	 */
+	private int fingerprintLength = 0;
+
+	/**
+	 * Bytes read from the file. Reused for all reads.
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Splits content of {@link #buffer} into lines. Created for the encoding
+	 * in use.
+	 */
+	private LineFramer framer;
+
+	/**
+	 * Encoding {@link #framer} was created for.
+	 */
+	private Charset framerEncoding;
+
+	/**
+	 * Persisted read positions. {@code null} if positions are not persisted.
+	 */
+	private final CheckpointStore checkpoints;
+
+	/**
+	 * Reading progress published via JMX. {@code null} if not published.
+	 */
+	private final FileStats stats;
+
+	/**
+	 * Bytes of lines read since the last update of {@link #stats}.
+	 */
+	private long readBytes = 0;
+
+	/**
+	 * {@link System#nanoTime()} the next examination was requested at or
+	 * {@code 0} if requested when it starts.
+	 */
+	long requested = 0;
+
+	/**
+	 * Nanoseconds {@link #watch(Path, Charset, FileModificationListener)}
+	 * collects modifications before reading. {@code 0} to read at once.
+	 */
+	private final long debounce;
+
+	public FileMonitor() {
+		this(null);
+	}
+
+	/**
+	 * @param checkpoints
+	 *            Persisted read positions to resume from and to update. May be
+	 *            {@code null} to always start at the file beginning.
+	 */
+	public FileMonitor(CheckpointStore checkpoints) {
+		this(checkpoints, null);
+	}
+
+	/**
+	 * @param checkpoints
+	 *            Persisted read positions to resume from and to update. May be
+	 *            {@code null} to always start at the file beginning.
+	 * @param stats
+	 *            Reading progress to update. May be {@code null}.
+	 */
+	public FileMonitor(CheckpointStore checkpoints, FileStats stats) {
+		this(checkpoints, stats, 0);
+	}
+
+	/**
+	 * @param checkpoints
+	 *            Persisted read positions to resume from and to update. May be
+	 *            {@code null} to always start at the file beginning.
+	 * @param stats
+	 *            Reading progress to update. May be {@code null}.
+	 * @param debounce
+	 *            Milliseconds to collect modifications before reading while
+	 *            watching. {@code 0} to read at once.
+	 */
+	public FileMonitor(CheckpointStore checkpoints, FileStats stats,
+			long debounce) {
+		this.checkpoints = checkpoints;
+		this.stats = stats;
+		this.debounce = TimeUnit.MILLISECONDS.toNanos(debounce);
+	}
+
 	/**
 	 * @param path
 	 *            Path to monitor.
@@ -41,15 +154,11 @@ public class FileMonitor {
 	 */
 	public void watch(Path path, Charset fileEncoding,
 			FileModificationListener listener) throws IOException {
-		// Read file from beginning.
-		fileEndPosition = 0;
 		watching = true;
 
 		WatchService ws;
 
-		if (!Files.exists(path)) {
-			listener.noSuchFile(path);
-		}
+		begin(path, listener);
 
 		try {
 			ws = path.getFileSystem().newWatchService();
@@ -88,11 +197,25 @@ public class FileMonitor {
 				// parent folder moves).
 				examineFile(path, fileEncoding, listener);
 			}
+			// Modifications waiting for the debounce window to pass.
+			boolean modified = false;
+			long due = 0;
 			awaitKeys: while (watching) {
 				WatchKey res = null;
 				try {
 					// Await the presence of new events on the watched folder.
-					res = ws.take();
+					if (!modified) {
+						res = ws.take();
+					} else {
+						res = ws.poll(due - System.nanoTime(),
+								TimeUnit.NANOSECONDS);
+						if (res == null) {
+							// Read all modifications of the window at once.
+							modified = false;
+							examineFile(path, fileEncoding, listener);
+							continue;
+						}
+					}
 
 					for (WatchEvent<?> candidate : res.pollEvents()) {
 						// Skip over unknown events.
@@ -101,6 +224,7 @@ public class FileMonitor {
 							// Java lost events. Make sure to process existing
 							// file to avoid missing additions.
 							if (Files.exists(path)) {
+								modified = false;
 								examineFile(path, fileEncoding, listener);
 							}
 							continue;
@@ -115,15 +239,30 @@ public class FileMonitor {
 							if (event.context().getName(0)
 									.equals(path.getFileName())) {
 								// Something happened to the monitored file.
-								if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+								if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY
+										&& stats != null) {
+									stats.notified();
+								}
+								if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY
+										&& debounce > 0) {
+									// Collect further modifications. The
+									// first one is the time of detection.
+									if (!modified) {
+										modified = true;
+										requested = System.nanoTime();
+										due = requested + debounce;
+									}
+								} else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
 										|| event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
 									debug(path + " was created or modified.");
 									// Read the file's content and notify
 									// listener.
+									modified = false;
 									examineFile(path, fileEncoding, listener);
 								} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
 									debug(path + " was deleted.");
-									listener.noSuchFile(path);
+									modified = false;
+									vanished(path, listener);
 								}
 							}
 						} else {
@@ -156,9 +295,43 @@ public class FileMonitor {
 		}
 	}
 
+	/**
+	 * Resets the read position and reports the initial state of the monitored
+	 * path.
+	 * 
+	 * @param path
+	 *            Path to monitor.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @throws IOException
+	 *             Failed to restore checkpoint.
+	 */
+	void begin(Path path, FileModificationListener listener)
+			throws IOException {
+		// Read file from beginning.
+		closeChannel();
+		if (framer != null) {
+			framer.reset();
+		}
+		fileEndPosition = 0;
+		fileKey = null;
+		fingerprintLength = 0;
+
+		if (!Files.exists(path)) {
+			listener.noSuchFile(path);
+		} else if (checkpoints != null) {
+			// Continue after the last processed byte of an earlier run.
+			long checkpoint = checkpoints.restore(path);
+			if (checkpoint >= 0) {
+				fileEndPosition = checkpoint;
+				listener.resumed(path, checkpoint);
+			}
+		}
+	}
+
 	/**
 	 * Polling based file watching. Used in case {@link WatchService} is not
-	 * available.
+	 * available. Only examines the file if its metadata changed.
 	 * 
 	 * @param path
 	 *            Path to monitor.
@@ -171,16 +344,21 @@ public class FileMonitor {
 	 */
 	private void polling(Path path, Charset fileEncoding,
 			FileModificationListener listener) throws IOException {
-
-		while (true) {
+		PolledFile polled = new PolledFile(path, null);
+		if (Files.exists(path)) {
 			examineFile(path, fileEncoding, listener);
-
-			// Wait some time to prevent overly high load.
+		}
+		while (watching) {
+			// Wait until the file is due, depending on its recent activity.
 			try {
-				Thread.sleep(500);
+				Thread.sleep(polled.getInterval());
 			} catch (InterruptedException e) {
 				// Idle delay passed.
 			}
+
+			if (polled.changed()) {
+				examineFile(path, fileEncoding, listener);
+			}
 		}
 	}
 
@@ -196,44 +374,291 @@ public class FileMonitor {
 	 * @throws IOException
 	 *             Errors other than {@link NoSuchFileException}.
 	 */
-	private void examineFile(Path path, Charset fileEncoding,
+	void examineFile(Path path, Charset fileEncoding,
 			FileModificationListener listener) throws IOException {
-		if (Files.isRegularFile(path)) {
-			// Open file with read option only to allow for file deletion and
-			// modifications from other programs.
-			try (InputStream is = Files.newInputStream(path,
-					StandardOpenOption.READ)) {
-				File file = path.toFile();
-
-				if (file.length() >= fileEndPosition) {
-					// Skip over already processed lines.
-					is.skip(fileEndPosition);
-				} else {
-					// After rotation, so not skip but process whole file.
-					listener.fileRotated(path);
+		long started = requested != 0 ? requested : System.nanoTime();
+		requested = 0;
+		if (framer != null) {
+			framer.detected = started;
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			vanished(path, listener);
+			return;
+		}
+		if (!attributes.isRegularFile()) {
+			// File is not readable as text file.
+			vanished(path, listener);
+			return;
+		}
+
+		Object key = attributes.fileKey();
+		if (channel != null) {
+			if (key != null ? !key.equals(fileKey) : isReplaced(path)) {
+				// Another file took over the path. Lines might have been added
+				// to the previous file after the last read.
+				debug(path + " is a different file now.");
+				readToEnd(path, listener);
+				closeChannel();
+				// Last line of previous file will not get completed anymore.
+				flushIncompleteLine(path, listener);
+				if (!open(path, key, attributes.size(), listener, true)) {
+					return;
 				}
+			} else if (attributes.size() < fileEndPosition) {
+				// After truncation, so process whole file.
+				flushIncompleteLine(path, listener);
+				fileEndPosition = 0;
+				fingerprintLength = 0;
+				rotated(path, listener);
+			}
+		} else if (!open(path, key, attributes.size(), listener, false)) {
+			return;
+		}
 
-				InputStreamReader reader = new InputStreamReader(is,
-						fileEncoding);
-				BufferedReader lineReader = new BufferedReader(reader);
+		if (!fileEncoding.equals(framerEncoding)) {
+			framer = new LineFramer(fileEncoding, buffer, ReadLimits.get());
+			framer.detected = started;
+			framerEncoding = fileEncoding;
+		}
 
-				// Process all lines.
-				String line;
-				while ((line = lineReader.readLine()) != null) {
-					listener.lineAdded(path, line);
+		readToEnd(path, listener);
+		if (fingerprintLength < Fingerprint.length(fileEndPosition)) {
+			fingerprintLength = Fingerprint.length(fileEndPosition);
+			fingerprint = Fingerprint.of(channel, fingerprintLength);
+		}
+		if (checkpoints != null) {
+			// Lines held back by listeners are not processed yet.
+			long processed = fileEndPosition;
+			if (listener instanceof HoldingListener) {
+				long held = ((HoldingListener) listener).heldOffset(path);
+				if (held >= 0 && held < processed) {
+					processed = held;
 				}
-				fileEndPosition = file.length();
+			}
+			checkpoints.update(path, processed,
+					fingerprintLength > 0 ? fingerprint : -1);
+		}
+		if (stats != null) {
+			stats.read(framer.lines, readBytes, fileEndPosition, started);
+		}
+		framer.lines = 0;
+		readBytes = 0;
+
+		listener.completelyRead(path);
+	}
+
+	/**
+	 * Processes all complete lines. The position only advances by bytes of
+	 * complete lines, an incomplete last line is kept back until its
+	 * terminator is written. Large amounts of content are read by
+	 * {@link Backfill}. Waits while the read budget has no room for a line.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @throws IOException
+	 *             Failed to read file.
+	 */
+	private void readToEnd(Path path, FileModificationListener listener)
+			throws IOException {
+		if (framer == null) {
+			// Nothing was read so far.
+			return;
+		}
+		long size = channel.size();
+		if (framer.pending() == 0
+				&& Backfill.isWorthwhile(size - fileEndPosition)) {
+			debug("Reading " + path + " in parallel from " + fileEndPosition
+					+ ".");
+			long consumed = Backfill.read(channel, fileEndPosition, size,
+					framer, path, listener);
+			fileEndPosition = fileEndPosition + consumed;
+			readBytes = readBytes + consumed;
+		}
+		buffer.clear();
+		while (awaitBudget(path)
+				&& channel.read(buffer, fileEndPosition + framer.pending()) > 0) {
+			buffer.flip();
+			long consumed = framer.frame(fileEndPosition, path, listener);
+			fileEndPosition = fileEndPosition + consumed;
+			readBytes = readBytes + consumed;
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Waits until the read budget has room for the line framing stopped at.
+	 * The line is read again from its start afterwards.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @return {@code false} if interrupted while waiting. The line is read
+	 *         with the next examination then.
+	 */
+	private boolean awaitBudget(Path path) {
+		if (!framer.isBlocked()) {
+			return true;
+		}
+		debug("Waiting for read budget to continue " + path + " at "
+				+ fileEndPosition + ".");
+		try {
+			framer.await();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
 
-				// Avoid keeping the file open whilst the delay passes.
-				is.close();
+	/**
+	 * Reports that another file took over the path or the file was truncated.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected events.
+	 */
+	private void rotated(Path path, FileModificationListener listener) {
+		if (stats != null) {
+			stats.rotated();
+		}
+		listener.fileRotated(path);
+	}
 
-				listener.completelyRead(path);
-			} catch (NoSuchFileException e) {
-				listener.noSuchFile(path);
+	/**
+	 * Opens the file at the monitored path. Continues at the read position if
+	 * the head of the file matches the fingerprint of the previously read file,
+	 * otherwise reads the file from its beginning.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param key
+	 *            Identity of the file.
+	 * @param size
+	 *            Size of the file.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @param replacing
+	 *            {@code true} if the file replaced the previously read file,
+	 *            {@code false} if the path held no file before.
+	 * @return {@code false} if the file vanished meanwhile.
+	 * @throws IOException
+	 *             Failed to read file.
+	 */
+	private boolean open(Path path, Object key, long size,
+			FileModificationListener listener, boolean replacing)
+			throws IOException {
+		// Open file with read option only to allow for file deletion and
+		// modifications from other programs.
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			vanished(path, listener);
+			return false;
+		}
+		Object previousKey = fileKey;
+		fileKey = key;
+
+		if (fileEndPosition > 0 && fingerprintLength == 0) {
+			// Position was restored from a checkpoint that verified the file.
+			return true;
+		}
+		if (fileEndPosition > 0 && size >= fileEndPosition
+				&& Fingerprint.of(channel, fingerprintLength) == fingerprint) {
+			if (key == null || !key.equals(previousKey)) {
+				debug(path + " holds the previously read file.");
+				listener.resumed(path, fileEndPosition);
 			}
-		} else {
-			// File is not readable as text file.
-			listener.noSuchFile(path);
+			// Otherwise reopened after release.
+			return true;
+		}
+		fileEndPosition = 0;
+		fingerprintLength = 0;
+		if (replacing) {
+			rotated(path, listener);
+		}
+		return true;
+	}
+
+	/**
+	 * Compares the head of the file at the monitored path with the read file.
+	 * Used if the file system does not provide file identities.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @return {@code true} if another file took over the path.
+	 * @throws IOException
+	 *             Failed to read file.
+	 */
+	private boolean isReplaced(Path path) throws IOException {
+		if (fingerprintLength == 0) {
+			return false;
+		}
+		try (FileChannel current = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			return Fingerprint.of(current, fingerprintLength) != fingerprint;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Releases the file as it is no longer available at the monitored path.
+	 * Lines added before the file vanished are still read. A file appearing
+	 * later on is read from its beginning unless its head matches the
+	 * fingerprint of the vanished file.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @throws IOException
+	 *             Failed to read or close file.
+	 */
+	private void vanished(Path path, FileModificationListener listener)
+			throws IOException {
+		if (channel != null) {
+			readToEnd(path, listener);
+			closeChannel();
+		}
+		// Last line of vanished file will not get completed anymore.
+		flushIncompleteLine(path, listener);
+		// Identities of deleted files get reused, so they cannot tell whether
+		// a reappearing file is the same.
+		fileKey = null;
+		listener.noSuchFile(path);
+	}
+
+	/**
+	 * Reports a carried incomplete line as the last line of a file.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected events.
+	 */
+	private void flushIncompleteLine(Path path,
+			FileModificationListener listener) {
+		if (framer != null) {
+			framer.flush(fileEndPosition, path, listener);
+		}
+	}
+
+	/**
+	 * Closes the channel to the monitored file so it can be removed by other
+	 * programs.
+	 * 
+	 * @throws IOException
+	 *             Failed to close file.
+	 */
+	private void closeChannel() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
 		}
 	}
 
@@ -242,7 +667,7 @@ public class FileMonitor {
 	 *            Path to file or folder. Its existence is not required on disk.
 	 * @return Most specific, but existing parent.
 	 */
-	private Path getClosestWatchable(Path path) {
+	static Path getClosestWatchable(Path path) {
 		debug("Trying to find watchable parent for " + path);
 		Path parent = path.getParent();
 		if (parent == null) {
@@ -269,6 +694,31 @@ public class FileMonitor {
 		}
 	}
 
+	/**
+	 * Closes the file to free resources while it is not modified. Reading
+	 * continues at the same position with the next examination.
+	 * 
+	 * @throws IOException
+	 *             Failed to close file.
+	 */
+	void release() throws IOException {
+		closeChannel();
+	}
+
+	/**
+	 * Closes the file and returns its buffers to the read budget once the
+	 * file is no longer monitored.
+	 * 
+	 * @throws IOException
+	 *             Failed to close file.
+	 */
+	void close() throws IOException {
+		closeChannel();
+		if (framer != null) {
+			framer.release();
+		}
+	}
+
 	public void abortWatching() {
 		watching = false;
 	}
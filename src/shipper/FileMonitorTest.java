@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
@@ -39,7 +41,7 @@ public class FileMonitorTest {
 
 							try (FileWriter w = new FileWriter(tempFile
 									.toFile())) {
-								w.append("new");
+								w.append("new\n");
 							} catch (IOException e) {
 								throw new RuntimeException(e);
 							}
@@ -73,13 +75,18 @@ public class FileMonitorTest {
 							events.add(Events.FILE_ROTATED);
 						}
 
+						@Override
+						public void resumed(Path file, long position) {
+							org.junit.Assert.fail("No checkpoints in use.");
+						}
+
 						@Override
 						public void completelyRead(Path file) {
 							if (step == 0) {
 								org.junit.Assert.assertEquals(0, events.size());
 								try (FileWriter w = new FileWriter(tempFile
 										.toFile())) {
-									w.append("initial");
+									w.append("initial\n");
 								} catch (IOException e) {
 									throw new RuntimeException(e);
 								}
@@ -99,4 +106,74 @@ public class FileMonitorTest {
 		}
 	}
 
+	@Test
+	public void rotation() throws IOException {
+		final List<String> lines = new ArrayList<>();
+		final List<Events> events = new ArrayList<>();
+		FileModificationListener listener = new FileModificationListener() {
+			@Override
+			public void lineAdded(Path file, String lineContent) {
+				lines.add(lineContent);
+			}
+
+			@Override
+			public void completelyRead(Path file) {
+			}
+
+			@Override
+			public void noSuchFile(Path file) {
+				events.add(Events.NO_SUCH_FILE);
+			}
+
+			@Override
+			public void fileRotated(Path file) {
+				events.add(Events.FILE_ROTATED);
+			}
+
+			@Override
+			public void resumed(Path file, long position) {
+				lines.add("resumed at " + position);
+			}
+		};
+
+		Path directory = Files.createTempDirectory(null);
+		Path path = directory.resolve("a.log");
+		Path rotated = directory.resolve("a.log.1");
+		Charset utf8 = Charset.forName("UTF-8");
+		try {
+			FileMonitor monitor = new FileMonitor();
+			Files.write(path, "1\n".getBytes(utf8));
+			monitor.begin(path, listener);
+			monitor.examineFile(path, utf8, listener);
+
+			// Lines added before rename rotation are not lost.
+			Files.write(path, "2\n".getBytes(utf8), StandardOpenOption.APPEND);
+			Files.move(path, rotated);
+			Files.write(path, "3\n".getBytes(utf8));
+			monitor.examineFile(path, utf8, listener);
+			org.junit.Assert.assertEquals(Arrays.asList("1", "2", "3"), lines);
+			org.junit.Assert.assertEquals(Arrays.asList(Events.FILE_ROTATED),
+					events);
+
+			// Nor are lines added before deletion.
+			Files.write(path, "4\n".getBytes(utf8), StandardOpenOption.APPEND);
+			Files.move(path, directory.resolve("moved"));
+			monitor.examineFile(path, utf8, listener);
+			org.junit.Assert.assertEquals(Arrays.asList("1", "2", "3", "4"),
+					lines);
+
+			// A file that only moved away is continued.
+			Files.write(directory.resolve("moved"), "5\n".getBytes(utf8),
+					StandardOpenOption.APPEND);
+			Files.move(directory.resolve("moved"), path);
+			monitor.examineFile(path, utf8, listener);
+			org.junit.Assert.assertEquals(Arrays.asList("1", "2", "3", "4",
+					"resumed at 4", "5"), lines);
+		} finally {
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(rotated);
+			Files.delete(directory);
+		}
+	}
+
 }
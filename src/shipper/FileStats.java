@@ -0,0 +1,214 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Reading progress of a monitored file. Updated by the {@link FileMonitor}
+ * once per read, so counting costs nothing per line.
+ */
+public class FileStats implements FileStatsMBean {
+	/**
+	 * Monitored path.
+	 */
+	private final Path path;
+
+	/**
+	 * Lines read.
+	 */
+	private final Meter lines = new Meter();
+
+	/**
+	 * Bytes read.
+	 */
+	private final Meter bytes = new Meter();
+
+	/**
+	 * Replacements and truncations of the file.
+	 */
+	private final LongAdder rotations = new LongAdder();
+
+	/**
+	 * Examinations of the file.
+	 */
+	private final LongAdder reads = new LongAdder();
+
+	/**
+	 * Modification notifications of the file.
+	 */
+	private final LongAdder notifications = new LongAdder();
+
+	/**
+	 * Position up to which lines were read.
+	 */
+	private volatile long position = 0;
+
+	/**
+	 * {@link System#currentTimeMillis()} a line was last read at or {@code 0}.
+	 */
+	private volatile long lastLineTime = 0;
+
+	/**
+	 * Nanoseconds from change notification until the end of the last read.
+	 */
+	private volatile long lastReadLatency = 0;
+
+	/**
+	 * Maximum of {@link #lastReadLatency}.
+	 */
+	private volatile long maxReadLatency = 0;
+
+	/**
+	 * Name of the published MBean or {@code null} if not published.
+	 */
+	private ObjectName name;
+
+	/**
+	 * @param path
+	 *            Monitored path.
+	 */
+	public FileStats(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * Publishes the statistics via JMX as
+	 * {@code shipper:type=File,path="<path>"}.
+	 */
+	public void register() {
+		name = Metrics.register(this,
+				"type=File,path=" + ObjectName.quote(path.toString()));
+	}
+
+	/**
+	 * Stops publishing the statistics once the file is no longer monitored.
+	 */
+	public void unregister() {
+		Metrics.unregister(name);
+		name = null;
+		lines.stop();
+		bytes.stop();
+	}
+
+	/**
+	 * Records a read of the file. Called by a single thread at a time.
+	 * 
+	 * @param lines
+	 *            Number of lines read.
+	 * @param bytes
+	 *            Number of bytes read.
+	 * @param position
+	 *            Position up to which lines were read.
+	 * @param requested
+	 *            {@link System#nanoTime()} the read was requested at.
+	 */
+	void read(long lines, long bytes, long position, long requested) {
+		long latency = System.nanoTime() - requested;
+		reads.increment();
+		if (lines > 0) {
+			this.lines.mark(lines);
+			lastLineTime = System.currentTimeMillis();
+		}
+		if (bytes > 0) {
+			this.bytes.mark(bytes);
+		}
+		this.position = position;
+		lastReadLatency = latency;
+		if (latency > maxReadLatency) {
+			maxReadLatency = latency;
+		}
+	}
+
+	/**
+	 * Records a modification notification of the file.
+	 */
+	void notified() {
+		notifications.increment();
+	}
+
+	/**
+	 * Records a replacement or truncation of the file.
+	 */
+	void rotated() {
+		rotations.increment();
+	}
+
+	@Override
+	public String getPath() {
+		return path.toString();
+	}
+
+	@Override
+	public long getPosition() {
+		return position;
+	}
+
+	@Override
+	public long getLagBytes() {
+		try {
+			return Math.max(0, Files.size(path) - position);
+		} catch (NoSuchFileException e) {
+			return 0;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public long getLines() {
+		return lines.getCount();
+	}
+
+	@Override
+	public double getLinesPerSecond() {
+		return lines.getRate();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.getCount();
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return bytes.getRate();
+	}
+
+	@Override
+	public long getRotations() {
+		return rotations.sum();
+	}
+
+	@Override
+	public long getReads() {
+		return reads.sum();
+	}
+
+	@Override
+	public long getModifications() {
+		return notifications.sum();
+	}
+
+	@Override
+	public Date getLastLineTime() {
+		long time = lastLineTime;
+		return time == 0 ? null : new Date(time);
+	}
+
+	@Override
+	public long getLastReadLatencyMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(lastReadLatency);
+	}
+
+	@Override
+	public long getMaxReadLatencyMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxReadLatency);
+	}
+}
@@ -0,0 +1,77 @@
+package shipper;
+
+import java.util.Date;
+
+/**
+ * Reading progress of a monitored file as published via JMX.
+ */
+public interface FileStatsMBean {
+	/**
+	 * @return Monitored path.
+	 */
+	String getPath();
+
+	/**
+	 * @return Position up to which lines were read.
+	 */
+	long getPosition();
+
+	/**
+	 * @return Bytes between the read position and the end of the file, that is
+	 *         how far reading is behind writing.
+	 */
+	long getLagBytes();
+
+	/**
+	 * @return Lines read since monitoring started.
+	 */
+	long getLines();
+
+	/**
+	 * @return Lines read per second, averaged over about a minute.
+	 */
+	double getLinesPerSecond();
+
+	/**
+	 * @return Bytes read since monitoring started.
+	 */
+	long getBytes();
+
+	/**
+	 * @return Bytes read per second, averaged over about a minute.
+	 */
+	double getBytesPerSecond();
+
+	/**
+	 * @return Number of times the file was replaced or truncated.
+	 */
+	long getRotations();
+
+	/**
+	 * @return Number of times the file was examined for new lines.
+	 */
+	long getReads();
+
+	/**
+	 * @return Modification notifications received for the file. Exceeds
+	 *         {@link #getReads()} as far as notifications were coalesced.
+	 */
+	long getModifications();
+
+	/**
+	 * @return Time a line was last read or {@code null} if none was read yet.
+	 */
+	Date getLastLineTime();
+
+	/**
+	 * @return Microseconds from the last change notification until the file
+	 *         was read to its end.
+	 */
+	long getLastReadLatencyMicros();
+
+	/**
+	 * @return Longest {@link #getLastReadLatencyMicros()} since monitoring
+	 *         started.
+	 */
+	long getMaxReadLatencyMicros();
+}
@@ -0,0 +1,107 @@
+package shipper;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class FileStatsTest {
+
+	@Test
+	public void reading() throws Exception {
+		Path path = Files.createTempFile(null, null);
+		Charset utf8 = Charset.forName("UTF-8");
+		FileStats stats = new FileStats(path);
+		try {
+			FileMonitor monitor = new FileMonitor(null, stats);
+			Files.write(path, "a\nbc\nincomplete".getBytes(utf8));
+			monitor.begin(path, new Collector());
+			monitor.examineFile(path, utf8, new Collector());
+			org.junit.Assert.assertEquals(2, stats.getLines());
+			org.junit.Assert.assertEquals(5, stats.getBytes());
+			org.junit.Assert.assertEquals(5, stats.getPosition());
+			org.junit.Assert.assertEquals(10, stats.getLagBytes());
+			org.junit.Assert.assertNotNull(stats.getLastLineTime());
+
+			// Truncation counts as rotation and completes the last line.
+			Files.write(path, "d\n".getBytes(utf8));
+			monitor.examineFile(path, utf8, new Collector());
+			org.junit.Assert.assertEquals(1, stats.getRotations());
+			org.junit.Assert.assertEquals(4, stats.getLines());
+			org.junit.Assert.assertEquals(0, stats.getLagBytes());
+
+			Files.write(path, "e\n".getBytes(utf8), StandardOpenOption.APPEND);
+			monitor.examineFile(path, utf8, new Collector());
+			org.junit.Assert.assertEquals(5, stats.getLines());
+			org.junit.Assert.assertEquals(9, stats.getBytes());
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void publishing() throws Exception {
+		Path path = Files.createTempFile(null, null);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("shipper:type=File,path="
+				+ ObjectName.quote(path.toString()));
+		FileStats stats = new FileStats(path);
+		try {
+			stats.register();
+			org.junit.Assert.assertEquals(path.toString(),
+					server.getAttribute(name, "Path"));
+			org.junit.Assert.assertEquals(0L,
+					server.getAttribute(name, "LagBytes"));
+			stats.unregister();
+			org.junit.Assert.assertFalse(server.isRegistered(name));
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void rate() {
+		Meter meter = new Meter();
+		meter.stop();
+		meter.mark(Meter.TICK_INTERVAL * 10);
+		meter.tick();
+		org.junit.Assert.assertEquals(10.0, meter.getRate(), 0.001);
+		// Rate decays without occurrences.
+		meter.tick();
+		org.junit.Assert.assertTrue(meter.getRate() < 10);
+		org.junit.Assert.assertTrue(meter.getRate() > 5);
+		org.junit.Assert.assertEquals(Meter.TICK_INTERVAL * 10,
+				meter.getCount());
+	}
+
+	/**
+	 * Ignores all events.
+	 */
+	private static class Collector implements FileModificationListener {
+		@Override
+		public void lineAdded(Path file, String lineContent) {
+		}
+
+		@Override
+		public void completelyRead(Path file) {
+		}
+
+		@Override
+		public void noSuchFile(Path file) {
+		}
+
+		@Override
+		public void fileRotated(Path file) {
+		}
+
+		@Override
+		public void resumed(Path file, long position) {
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package shipper;
+
+import java.nio.file.Path;
+
+/**
+ * Passes only lines accepted by a {@link LineFilter} to the next listener.
+ * Lines are checked on their undecoded bytes where possible.
+ */
+public class FilteringListener implements LineSliceListener,
+		HoldingListener {
+	/**
+	 * Receiver of accepted lines.
+	 */
+	private final FileModificationListener next;
+
+	/**
+	 * Decides which lines are passed on.
+	 */
+	private final LineFilter filter;
+
+	/**
+	 * @param next
+	 *            Receiver of accepted lines.
+	 * @param filter
+	 *            Decides which lines are passed on.
+	 */
+	public FilteringListener(FileModificationListener next, LineFilter filter) {
+		this.next = next;
+		this.filter = filter;
+	}
+
+	@Override
+	public void lineAdded(Path path, LineSlice line) {
+		if (filter.accept(line)) {
+			if (next instanceof LineSliceListener) {
+				((LineSliceListener) next).lineAdded(path, line);
+			} else {
+				next.lineAdded(path, line.toString());
+			}
+		}
+	}
+
+	@Override
+	public void lineAdded(Path path, String lineContent) {
+		if (filter.accept(lineContent)) {
+			next.lineAdded(path, lineContent);
+		}
+	}
+
+	@Override
+	public void completelyRead(Path path) {
+		next.completelyRead(path);
+	}
+
+	@Override
+	public void noSuchFile(Path path) {
+		next.noSuchFile(path);
+	}
+
+	@Override
+	public void fileRotated(Path path) {
+		next.fileRotated(path);
+	}
+
+	@Override
+	public void resumed(Path path, long position) {
+		next.resumed(path, position);
+	}
+
+	@Override
+	public long heldOffset(Path path) {
+		return next instanceof HoldingListener ? ((HoldingListener) next)
+				.heldOffset(path) : -1;
+	}
+}
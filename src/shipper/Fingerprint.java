@@ -0,0 +1,55 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Checksum of the first bytes of a file. Tells whether a file found at a path
+ * is the file that was read before, also if the file system does not provide
+ * file identities or reuses them.
+ */
+public final class Fingerprint {
+	/**
+	 * Maximum number of bytes covered by a fingerprint.
+	 */
+	static final int SIZE = 1024;
+
+	private Fingerprint() {
+	}
+
+	/**
+	 * @param position
+	 *            Position up to which a file was read.
+	 * @return Number of bytes the fingerprint of a file read up to
+	 *         {@code position} covers.
+	 */
+	static int length(long position) {
+		return (int) Math.min(position, SIZE);
+	}
+
+	/**
+	 * Computes the checksum of the file head.
+	 * 
+	 * @param channel
+	 *            Open file.
+	 * @param length
+	 *            Number of bytes to cover, at most {@link #SIZE}.
+	 * @return Checksum or {@code -1} if the file is shorter than
+	 *         {@code length}.
+	 * @throws IOException
+	 *             Failed to read file.
+	 */
+	static long of(FileChannel channel, int length) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(length);
+		while (head.hasRemaining()) {
+			if (channel.read(head, head.position()) < 0) {
+				return -1;
+			}
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(head.array(), 0, length);
+		return checksum.getValue();
+	}
+}
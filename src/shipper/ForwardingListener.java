@@ -0,0 +1,169 @@
+package shipper;
+
+import static shipper.ShipperLogger.info;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Forwards lines of a monitored file to a {@link Sender} or directly to the
+ * appenders of a {@link Logger}.
+ */
+public class ForwardingListener implements LineSliceListener {
+	/**
+	 * Categories of messages to user.
+	 */
+	private static enum MessageCategory {
+		SENDING, NO_SUCH_FILE, FILE_ROTATED, RESUMED
+	}
+
+	/**
+	 * File the lines belong to.
+	 */
+	private LineSource source;
+
+	/**
+	 * Target for content forwarding. {@code null} to pass lines to the
+	 * appenders of the source's logger.
+	 */
+	private Sender sender;
+
+	/**
+	 * If {@code true} encountered messages are ignored.
+	 */
+	private boolean skip;
+
+	/**
+	 * Category of last emitted message.
+	 */
+	private MessageCategory lastCategory = MessageCategory.SENDING;
+
+	/**
+	 * @param source
+	 *            File the lines belong to.
+	 * @param skip
+	 *            When {@code true}, ignore the current file content. Additions
+	 *            still are forwarded.
+	 * @param sender
+	 *            Target for content forwarding. {@code null} to pass lines to
+	 *            the appenders of the source's logger.
+	 */
+	public ForwardingListener(LineSource source, boolean skip, Sender sender) {
+		this.source = source;
+		this.skip = skip;
+		this.sender = sender;
+	}
+
+	@Override
+	public void noSuchFile(Path path) {
+		println(MessageCategory.NO_SUCH_FILE,
+				"File at "
+						+ path.toAbsolutePath()
+						+ " is not existent. Path will be monitored for newly added files.");
+		// Disable skipping as a newly created to be found file will only
+		// contain new data.
+		skip = false;
+	}
+
+	@Override
+	public void lineAdded(Path path, String lineContent) {
+		if (!skip) {
+			println(MessageCategory.SENDING, "Sending lines of "
+					+ path.toAbsolutePath() + " (after non-normal state).");
+
+			// Send encountered message to target host.
+			byte[] content = null;
+			Level level = Level.INFO;
+			if (source.severity.isClassifying() || sender != null) {
+				content = lineContent.getBytes(source.encoding);
+				level = source.severity.classify(ByteBuffer.wrap(content));
+			}
+			if (sender == null) {
+				source.logger.log(level, lineContent);
+			} else if (source.logger.isEnabledFor(level)) {
+				ShipEvent event = new ShipEvent(source, -1,
+						System.currentTimeMillis(), content);
+				event.level = level;
+				event.read = System.nanoTime();
+				send(event);
+			}
+		}
+	}
+
+	@Override
+	public void lineAdded(Path path, LineSlice line) {
+		if (!skip) {
+			println(MessageCategory.SENDING, "Sending lines of "
+					+ path.toAbsolutePath() + " (after non-normal state).");
+
+			// Send encountered message to target host. Skipped lines are
+			// never decoded, the sender decodes off the reading thread.
+			Level level = source.severity.classify(line.bytes());
+			if (sender == null) {
+				source.logger.log(level, line.toString());
+			} else if (source.logger.isEnabledFor(level)) {
+				byte[] content = new byte[line.length()];
+				line.bytes().get(content);
+				ShipEvent event = new ShipEvent(source, line.offset(),
+						System.currentTimeMillis(), content);
+				event.level = level;
+				event.detected = line.detected();
+				event.read = line.read();
+				send(event);
+			}
+		}
+	}
+
+	@Override
+	public void fileRotated(Path path) {
+		println(MessageCategory.FILE_ROTATED, "File at "
+				+ path.toAbsolutePath()
+				+ " was rotated. Will send all lines of new file.");
+	}
+
+	@Override
+	public void resumed(Path path, long position) {
+		println(MessageCategory.RESUMED, "Resuming " + path.toAbsolutePath()
+				+ " at byte " + position + ".");
+		// Lines after the checkpoint have not been sent yet.
+		skip = false;
+	}
+
+	@Override
+	public void completelyRead(Path file) {
+		// File end was reached, disable skipping to begin sending newly added
+		// messages.
+		skip = false;
+	}
+
+	/**
+	 * Numbers a line for delivery tracking and queues it.
+	 * 
+	 * @param event
+	 *            Line to send.
+	 */
+	private void send(ShipEvent event) {
+		if (source.delivery != null) {
+			event.sequence = source.delivery.sent();
+		}
+		sender.enqueue(event);
+	}
+
+	/**
+	 * Shows message to user if category changes.
+	 * 
+	 * @param newCategory
+	 *            Message category.
+	 * @param message
+	 *            Text to display.
+	 */
+	private void println(MessageCategory newCategory, String message) {
+		if (!lastCategory.equals(newCategory)) {
+			info(message);
+			lastCategory = newCategory;
+		}
+	}
+}
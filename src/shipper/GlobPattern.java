@@ -0,0 +1,140 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pattern for paths of monitored files such as {@code /var/log/app/*.log},
+ * see {@link FileSystem#getPathMatcher(String)} for the syntax.
+ * <p>
+ * The leading part of the pattern without wildcards is the root directory.
+ * Only the root, its ancestors and directories below the root that can hold
+ * matching files are relevant, so watching a pattern does not cover unrelated
+ * parts of the directory tree.
+ */
+public class GlobPattern {
+	/**
+	 * Characters that make a path a pattern.
+	 */
+	private static final String WILDCARDS = "*?[{";
+
+	/**
+	 * Pattern as given.
+	 */
+	final String pattern;
+
+	/**
+	 * Deepest directory without wildcards.
+	 */
+	final Path root;
+
+	/**
+	 * Matcher of absolute file paths.
+	 */
+	private final PathMatcher matcher;
+
+	/**
+	 * Maximum number of names between the root and matching files.
+	 * {@link Integer#MAX_VALUE} if the pattern crosses directories.
+	 */
+	private final int depth;
+
+	/**
+	 * @param fileSystem
+	 *            File system of monitored files.
+	 * @param pattern
+	 *            Glob pattern of paths.
+	 */
+	public GlobPattern(FileSystem fileSystem, String pattern) {
+		Path absolute = fileSystem.getPath(pattern).toAbsolutePath();
+		this.pattern = absolute.toString();
+		Path prefix = absolute.getRoot();
+		int index = 0;
+		while (index < absolute.getNameCount()
+				&& !isPattern(absolute.getName(index).toString())) {
+			prefix = prefix.resolve(absolute.getName(index));
+			index = index + 1;
+		}
+		root = prefix;
+		matcher = fileSystem.getPathMatcher("glob:" + this.pattern);
+		depth = this.pattern.contains("**") ? Integer.MAX_VALUE : absolute
+				.getNameCount() - index;
+	}
+
+	/**
+	 * @param path
+	 *            Value of {@code --file}.
+	 * @return {@code true} if the value contains wildcards.
+	 */
+	public static boolean isPattern(String path) {
+		for (int index = 0; index < path.length(); index = index + 1) {
+			if (WILDCARDS.indexOf(path.charAt(index)) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param file
+	 *            Absolute path.
+	 * @return {@code true} if the file is matched by the pattern.
+	 */
+	public boolean matches(Path file) {
+		return matcher.matches(file);
+	}
+
+	/**
+	 * @param directory
+	 *            Absolute path of a directory.
+	 * @return {@code true} if the directory leads to the root or may hold
+	 *         matching files.
+	 */
+	public boolean isRelevant(Path directory) {
+		if (root.startsWith(directory)) {
+			return true;
+		}
+		return directory.startsWith(root)
+				&& root.relativize(directory).getNameCount() < depth;
+	}
+
+	/**
+	 * @return Currently existing files matched by the pattern.
+	 * @throws IOException
+	 *             Failed to list directory.
+	 */
+	public List<Path> findMatches() throws IOException {
+		List<Path> matches = new ArrayList<>();
+		if (Files.isDirectory(root)) {
+			collect(root, matches);
+		}
+		return matches;
+	}
+
+	private void collect(Path directory, List<Path> matches)
+			throws IOException {
+		try (DirectoryStream<Path> entries = Files
+				.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (Files.isDirectory(entry)) {
+					if (isRelevant(entry)) {
+						collect(entry, matches);
+					}
+				} else if (matches(entry)) {
+					matches.add(entry);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
@@ -0,0 +1,39 @@
+package shipper;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+
+import org.junit.Test;
+
+public class GlobPatternTest {
+
+	@Test
+	public void test() {
+		FileSystem fs = FileSystems.getDefault();
+		org.junit.Assert.assertFalse(GlobPattern.isPattern("/var/log/a.log"));
+		org.junit.Assert.assertTrue(GlobPattern.isPattern("/var/log/*.log"));
+
+		GlobPattern flat = new GlobPattern(fs, "/var/log/app/*/*.log");
+		org.junit.Assert.assertEquals(fs.getPath("/var/log/app"), flat.root);
+		org.junit.Assert.assertTrue(flat.matches(fs
+				.getPath("/var/log/app/a/b.log")));
+		org.junit.Assert.assertFalse(flat.matches(fs
+				.getPath("/var/log/app/b.log")));
+		// Ancestors of the root lead to it.
+		org.junit.Assert.assertTrue(flat.isRelevant(fs.getPath("/var")));
+		org.junit.Assert.assertTrue(flat.isRelevant(fs
+				.getPath("/var/log/app")));
+		org.junit.Assert.assertTrue(flat.isRelevant(fs
+				.getPath("/var/log/app/a")));
+		org.junit.Assert.assertFalse(flat.isRelevant(fs
+				.getPath("/var/log/app/a/b")));
+		org.junit.Assert.assertFalse(flat.isRelevant(fs.getPath("/var/lib")));
+
+		GlobPattern deep = new GlobPattern(fs, "/var/log/app/**.log");
+		org.junit.Assert.assertTrue(deep.matches(fs
+				.getPath("/var/log/app/a/b/c.log")));
+		org.junit.Assert.assertTrue(deep.isRelevant(fs
+				.getPath("/var/log/app/a/b/c")));
+	}
+
+}
@@ -0,0 +1,19 @@
+package shipper;
+
+import java.nio.file.Path;
+
+/**
+ * Listener that keeps lines back before passing them on. Read positions must
+ * not be recorded beyond such lines, otherwise they were lost if the program
+ * stopped before passing them on.
+ */
+public interface HoldingListener extends FileModificationListener {
+	/**
+	 * @param path
+	 *            Monitored path.
+	 * @return Position of the oldest line of the path that was received but
+	 *         not passed on yet, also by later listeners, or {@code -1} if
+	 *         there is none.
+	 */
+	public long heldOffset(Path path);
+}
@@ -0,0 +1,127 @@
+package shipper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of latencies in microseconds with a relative error of
+ * about 6%. Values are counted in logarithmic buckets that are split into 16
+ * linear sub-buckets each, so the memory is fixed regardless of the number
+ * and range of values.
+ */
+public class LatencyHistogram {
+	/**
+	 * Linear sub-buckets per power of two.
+	 */
+	private static final int SUB_BUCKETS = 16;
+
+	/**
+	 * Counts per bucket.
+	 */
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	/**
+	 * Counts a latency.
+	 * 
+	 * @param micros
+	 *            Latency in microseconds. Negative values count as zero.
+	 */
+	public void record(long micros) {
+		counts.incrementAndGet(index(Math.max(0, micros)));
+	}
+
+	/**
+	 * @return Number of counted latencies.
+	 */
+	public long count() {
+		long count = 0;
+		for (int index = 0; index < counts.length(); index = index + 1) {
+			count = count + counts.get(index);
+		}
+		return count;
+	}
+
+	/**
+	 * @param percentile
+	 *            Percentile between 0 and 100.
+	 * @return Upper bound of the bucket holding the percentile in
+	 *         microseconds or {@code 0} if nothing was counted.
+	 */
+	public long percentile(double percentile) {
+		long total = count();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int index = 0; index < counts.length(); index = index + 1) {
+			seen = seen + counts.get(index);
+			if (seen >= rank) {
+				return upperBound(index);
+			}
+		}
+		return upperBound(counts.length() - 1);
+	}
+
+	/**
+	 * Adds all counts of another histogram.
+	 * 
+	 * @param other
+	 *            Histogram to add.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int index = 0; index < counts.length(); index = index + 1) {
+			counts.addAndGet(index, other.counts.get(index));
+		}
+	}
+
+	/**
+	 * Removes the counts of an earlier copy, leaving the latencies counted
+	 * since.
+	 * 
+	 * @param earlier
+	 *            Copy of this histogram taken earlier.
+	 */
+	public void subtract(LatencyHistogram earlier) {
+		for (int index = 0; index < counts.length(); index = index + 1) {
+			counts.addAndGet(index, -earlier.counts.get(index));
+		}
+	}
+
+	/**
+	 * @return Histogram with the current counts. Latencies counted
+	 *         concurrently might be missing.
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(this);
+		return copy;
+	}
+
+	/**
+	 * @param value
+	 *            Non-negative latency.
+	 * @return Bucket of the latency.
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+		return (exponent - 3) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param index
+	 *            Bucket.
+	 * @return Largest latency counted in the bucket.
+	 */
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + 3;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+	}
+}
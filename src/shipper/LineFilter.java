@@ -0,0 +1,259 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which lines are sent based on include and exclude patterns. A line
+ * is sent if it contains no exclude pattern and, if include patterns are
+ * given, contains at least one of them. Shared by the listeners of all files.
+ * <p>
+ * Patterns are regular expressions searched anywhere in the line. Patterns
+ * without regular expression syntax, which are the common case, are matched
+ * as literals on the undecoded line bytes by a {@link LiteralMatcher}. Only
+ * the remaining patterns are combined into a single regular expression, which
+ * requires decoding the line.
+ */
+public class LineFilter implements LineFilterMBean {
+	/**
+	 * Characters with special meaning in regular expressions.
+	 */
+	private static final String SPECIAL = "\\.[]{}()*+?^$|";
+
+	/**
+	 * Encoding of file content.
+	 */
+	private final Charset encoding;
+
+	/**
+	 * Literal include patterns or {@code null} if there are none.
+	 */
+	private final LiteralMatcher includeLiterals;
+
+	/**
+	 * Include patterns that are no literals or {@code null} if there are
+	 * none.
+	 */
+	private final Pattern includeExpressions;
+
+	/**
+	 * Literal exclude patterns or {@code null} if there are none.
+	 */
+	private final LiteralMatcher excludeLiterals;
+
+	/**
+	 * Exclude patterns that are no literals or {@code null} if there are
+	 * none.
+	 */
+	private final Pattern excludeExpressions;
+
+	/**
+	 * Lines passed on.
+	 */
+	private final LongAdder passed = new LongAdder();
+
+	/**
+	 * Lines dropped by exclude patterns.
+	 */
+	private final LongAdder excluded = new LongAdder();
+
+	/**
+	 * Lines dropped by not matching any include pattern.
+	 */
+	private final LongAdder notIncluded = new LongAdder();
+
+	/**
+	 * @param includes
+	 *            Patterns of lines to send. All lines are sent if empty.
+	 * @param excludes
+	 *            Patterns of lines to drop.
+	 * @param encoding
+	 *            Encoding of file content.
+	 */
+	public LineFilter(List<String> includes, List<String> excludes,
+			Charset encoding) {
+		this.encoding = encoding;
+		int unit = LineFramer.encodeUnit(encoding, '\n').length;
+
+		List<byte[]> literals = new ArrayList<>();
+		StringBuilder expressions = new StringBuilder();
+		split(includes, literals, expressions);
+		includeLiterals = literals.isEmpty() ? null : new LiteralMatcher(
+				literals, unit);
+		includeExpressions = expressions.length() == 0 ? null : Pattern
+				.compile(expressions.toString());
+
+		literals.clear();
+		expressions.setLength(0);
+		split(excludes, literals, expressions);
+		excludeLiterals = literals.isEmpty() ? null : new LiteralMatcher(
+				literals, unit);
+		excludeExpressions = expressions.length() == 0 ? null : Pattern
+				.compile(expressions.toString());
+	}
+
+	/**
+	 * Publishes the counters of dropped lines via JMX.
+	 */
+	public void register() {
+		Metrics.register(this, "type=Filter");
+	}
+
+	/**
+	 * @param line
+	 *            Line to check. Decoded only if needed.
+	 * @return {@code true} if the line is sent.
+	 */
+	public boolean accept(LineSlice line) {
+		ByteBuffer bytes = line.bytes();
+		return accept(bytes, bytes.position(), bytes.limit(), line, null);
+	}
+
+	/**
+	 * @param line
+	 *            Line to check.
+	 * @return {@code true} if the line is sent.
+	 */
+	public boolean accept(String line) {
+		ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(encoding));
+		return accept(bytes, 0, bytes.limit(), null, line);
+	}
+
+	@Override
+	public long getLines() {
+		return passed.sum() + excluded.sum() + notIncluded.sum();
+	}
+
+	@Override
+	public long getPassedLines() {
+		return passed.sum();
+	}
+
+	@Override
+	public long getExcludedLines() {
+		return excluded.sum();
+	}
+
+	@Override
+	public long getNotIncludedLines() {
+		return notIncluded.sum();
+	}
+
+	/**
+	 * Checks a line and counts the outcome.
+	 * 
+	 * @param bytes
+	 *            Buffer holding the undecoded line.
+	 * @param start
+	 *            Position of the first byte of the line.
+	 * @param end
+	 *            Position after the last byte of the line.
+	 * @param slice
+	 *            Line to decode when needed or {@code null} if {@code chars}
+	 *            is given.
+	 * @param chars
+	 *            Decoded line or {@code null} to decode {@code slice}.
+	 * @return {@code true} if the line is sent.
+	 */
+	private boolean accept(ByteBuffer bytes, int start, int end,
+			LineSlice slice, CharSequence chars) {
+		if (matches(excludeLiterals, excludeExpressions, bytes, start, end,
+				slice, chars)) {
+			excluded.increment();
+			return false;
+		}
+		if ((includeLiterals != null || includeExpressions != null)
+				&& !matches(includeLiterals, includeExpressions, bytes, start,
+						end, slice, chars)) {
+			notIncluded.increment();
+			return false;
+		}
+		passed.increment();
+		return true;
+	}
+
+	/**
+	 * @return {@code true} if the line contains any of the literals or
+	 *         matches the expression. Literals are checked first so lines are
+	 *         only decoded if they do not decide.
+	 */
+	private static boolean matches(LiteralMatcher literals,
+			Pattern expressions, ByteBuffer bytes, int start, int end,
+			LineSlice slice, CharSequence chars) {
+		if (literals != null && literals.find(bytes, start, end)) {
+			return true;
+		}
+		return expressions != null
+				&& expressions.matcher(chars == null ? slice.chars() : chars)
+						.find();
+	}
+
+	/**
+	 * Sorts patterns into literals and regular expressions.
+	 * 
+	 * @param patterns
+	 *            Patterns. Empty patterns are ignored.
+	 * @param literals
+	 *            Receives encoded literals.
+	 * @param expressions
+	 *            Receives the alternation of all other patterns.
+	 */
+	private void split(List<String> patterns, List<byte[]> literals,
+			StringBuilder expressions) {
+		for (String pattern : patterns) {
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			String literal = literal(pattern);
+			if (literal != null) {
+				literals.add(encode(literal));
+			} else {
+				expressions.append(expressions.length() == 0 ? "" : "|")
+						.append("(?:").append(pattern).append(')');
+			}
+		}
+	}
+
+	/**
+	 * @param pattern
+	 *            Regular expression.
+	 * @return Text matched by the pattern or {@code null} if the pattern is
+	 *         no literal, possibly with escaped special characters.
+	 */
+	static String literal(String pattern) {
+		StringBuilder literal = new StringBuilder(pattern.length());
+		for (int index = 0; index < pattern.length(); index = index + 1) {
+			char character = pattern.charAt(index);
+			if (character == '\\' && index + 1 < pattern.length()
+					&& SPECIAL.indexOf(pattern.charAt(index + 1)) >= 0) {
+				// Escaped special character.
+				index = index + 1;
+				literal.append(pattern.charAt(index));
+			} else if (SPECIAL.indexOf(character) >= 0) {
+				return null;
+			} else {
+				literal.append(character);
+			}
+		}
+		return literal.toString();
+	}
+
+	/**
+	 * @param text
+	 *            Literal.
+	 * @return Literal in the encoding of file content, without byte order
+	 *         mark.
+	 */
+	private byte[] encode(String text) {
+		byte[] encoded = text.getBytes(encoding);
+		// Encoders may prefix a byte order mark, drop it.
+		int mark = "\n".getBytes(encoding).length
+				- LineFramer.encodeUnit(encoding, '\n').length;
+		return Arrays.copyOfRange(encoded, mark, encoded.length);
+	}
+}
@@ -0,0 +1,26 @@
+package shipper;
+
+/**
+ * Lines dropped by the {@link LineFilter} as published via JMX.
+ */
+public interface LineFilterMBean {
+	/**
+	 * @return Lines checked by the filter.
+	 */
+	long getLines();
+
+	/**
+	 * @return Lines passed on for sending.
+	 */
+	long getPassedLines();
+
+	/**
+	 * @return Lines dropped as they matched an exclude pattern.
+	 */
+	long getExcludedLines();
+
+	/**
+	 * @return Lines dropped as they matched no include pattern.
+	 */
+	long getNotIncludedLines();
+}
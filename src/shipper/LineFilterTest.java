@@ -0,0 +1,62 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import shipper.TestSupport.CollectingListener;
+
+public class LineFilterTest {
+
+	@Test
+	public void test() {
+		for (String encoding : Arrays.asList("UTF-8", "UTF-16LE", "UTF-16")) {
+			Charset charset = Charset.forName(encoding);
+			LineFilter filter = new LineFilter(Arrays.asList("ERROR",
+					"WARN\\s"), Arrays.asList("GET /health", "\\[x\\]",
+					"^#"), charset);
+			CollectingListener collector = new CollectingListener();
+			FilteringListener listener = new FilteringListener(collector,
+					filter);
+
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			buffer.put(("ERROR a\n" + "INFO b\n" + "WARN c\n"
+					+ "ERROR GET /health\n" + "ERROR [x] d\n" + "# ERROR e\n"
+					+ "WARNING f\n").getBytes(charset));
+			buffer.flip();
+			new LineFramer(charset, buffer).frame(0, Paths.get("test"),
+					listener);
+			listener.lineAdded(Paths.get("test"), "x ERROR");
+			org.junit.Assert.assertEquals(
+					Arrays.asList("ERROR a", "WARN c", "x ERROR"),
+					collector.lines);
+			org.junit.Assert.assertEquals(8, filter.getLines());
+			org.junit.Assert.assertEquals(3, filter.getPassedLines());
+			org.junit.Assert.assertEquals(3, filter.getExcludedLines());
+			org.junit.Assert.assertEquals(2, filter.getNotIncludedLines());
+		}
+	}
+
+	@Test
+	public void excludeOnly() {
+		LineFilter filter = new LineFilter(Arrays.asList(""),
+				Collections.singletonList("DEBUG"), Charset.forName("UTF-8"));
+		org.junit.Assert.assertTrue(filter.accept("INFO a"));
+		org.junit.Assert.assertFalse(filter.accept("DEBUG a"));
+	}
+
+	@Test
+	public void literal() {
+		org.junit.Assert.assertEquals("GET /health",
+				LineFilter.literal("GET /health"));
+		org.junit.Assert.assertEquals("a.b[c]",
+				LineFilter.literal("a\\.b\\[c\\]"));
+		org.junit.Assert.assertNull(LineFilter.literal("a.b"));
+		org.junit.Assert.assertNull(LineFilter.literal("\\d+"));
+		org.junit.Assert.assertNull(LineFilter.literal("^INFO"));
+	}
+}
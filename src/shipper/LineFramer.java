@@ -0,0 +1,739 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Splits file content into lines by scanning the undecoded bytes for line
+ * terminators.
+ * <p>
+ * Complete lines are handed out as {@link LineSlice} views on the read buffer.
+ * Bytes of a line whose terminator was not read yet are carried over to the
+ * next call, so lines are only reported once they are complete.
+ * <p>
+ * Lines longer than the maximum line length of {@link ReadLimits} are reported
+ * in parts of that length or truncated to it as soon as it is reached, so the
+ * carried bytes never exceed the maximum line length. The carried bytes are
+ * also taken from the budget of {@link ReadLimits}. While the budget is used
+ * up, framing stops at the start of the line that cannot be carried, so its
+ * bytes wait on disk until {@link #await()} took room for them. Only a line
+ * that exceeds the whole budget is reported in parts.
+ */
+public class LineFramer {
+	/**
+	 * Encoded line feed.
+	 */
+	private final byte[] newline;
+
+	/**
+	 * Encoded carriage return.
+	 */
+	private final byte[] carriageReturn;
+
+	/**
+	 * Bytes per code unit. Terminators are only searched at code unit
+	 * boundaries.
+	 */
+	private final int unit;
+
+	/**
+	 * Buffer that file content is read into.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Reused view on the read buffer.
+	 */
+	private final ByteBuffer bufferView;
+
+	/**
+	 * Initial capacity of {@link #carry}.
+	 */
+	private static final int CARRY_SIZE = 1024;
+
+	/**
+	 * Capacity of {@link #carry} above which it is replaced once empty.
+	 */
+	private static final int SHRINK_SIZE = 64 * 1024;
+
+	/**
+	 * Start of an incomplete line from earlier reads.
+	 */
+	private ByteBuffer carry = ByteBuffer.allocate(CARRY_SIZE);
+
+	/**
+	 * Reused view on {@link #carry}.
+	 */
+	private ByteBuffer carryView = carry.duplicate();
+
+	/**
+	 * Reused line handed to listeners.
+	 */
+	private final LineSlice slice;
+
+	/**
+	 * Limits of line length and carried bytes.
+	 */
+	private final ReadLimits limits;
+
+	/**
+	 * Maximum bytes per line, a multiple of {@link #unit}.
+	 */
+	private final int maxLength;
+
+	/**
+	 * Capacity of {@link #carry} taken from the budget of {@link #limits}.
+	 */
+	private long reserved = 0;
+
+	/**
+	 * Capacity of {@link #carry} the current line needs but could not take
+	 * from the budget, {@code 0} if framing was not stopped.
+	 */
+	private int blocked = 0;
+
+	/**
+	 * {@code true} while the remainder of a truncated line is dropped.
+	 */
+	private boolean skipping = false;
+
+	/**
+	 * {@code true} once a part of the current line was reported.
+	 */
+	private boolean oversized = false;
+
+	/**
+	 * Lines handed to listeners. Reset by the owner when counted.
+	 */
+	long lines = 0;
+
+	/**
+	 * {@link System#nanoTime()} the content to frame was found to be
+	 * appended at or {@code 0} if unknown. Set by the owner before reading.
+	 */
+	long detected = 0;
+
+	/**
+	 * {@link System#nanoTime()} of the current {@code frame} call.
+	 */
+	private long read = 0;
+
+	/**
+	 * Position within the file after the last line the current or last
+	 * {@code frame} call reported or dropped.
+	 */
+	private long reported = 0;
+
+	/**
+	 * @param charset
+	 *            Encoding of file content.
+	 * @param buffer
+	 *            Buffer that file content is read into.
+	 */
+	public LineFramer(Charset charset, ByteBuffer buffer) {
+		this(charset, buffer, ReadLimits.UNLIMITED);
+	}
+
+	/**
+	 * @param charset
+	 *            Encoding of file content.
+	 * @param buffer
+	 *            Buffer that file content is read into.
+	 * @param limits
+	 *            Limits of line length and carried bytes.
+	 */
+	public LineFramer(Charset charset, ByteBuffer buffer, ReadLimits limits) {
+		newline = encodeUnit(charset, '\n');
+		unit = newline.length;
+		carriageReturn = encodeUnit(charset, '\r');
+		this.limits = limits;
+		int max = limits.maxLineLength;
+		maxLength = max == 0 ? Integer.MAX_VALUE : Math.max(unit, max - max
+				% unit);
+
+		this.buffer = buffer;
+		bufferView = buffer.duplicate();
+		slice = new LineSlice(charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE));
+	}
+
+	/**
+	 * Encodes a single character without byte order mark.
+	 * 
+	 * @param charset
+	 *            Encoding.
+	 * @param character
+	 *            Character from the basic multilingual plane.
+	 * @return Encoded character.
+	 */
+	static byte[] encodeUnit(Charset charset, char character) {
+		byte[] single = String.valueOf(character).getBytes(charset);
+		byte[] twice = new String(new char[] { character, character })
+				.getBytes(charset);
+		// Encoders may prefix a byte order mark, ignore it.
+		int length = twice.length - single.length;
+		return Arrays.copyOfRange(single, single.length - length,
+				single.length);
+	}
+
+	/**
+	 * Reports all complete lines to {@code listener}. Consumes the newly read
+	 * bytes between position and limit of the read buffer.
+	 * 
+	 * @param position
+	 *            Position within the file of the first carried byte or, if
+	 *            nothing is carried, of the first newly read byte.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 * @return Number of bytes of reported lines including terminators and
+	 *         carried bytes of earlier calls.
+	 */
+	public long frame(long position, Path path,
+			FileModificationListener listener) {
+		return frame(buffer, bufferView, null, position, path, listener);
+	}
+
+	/**
+	 * Reports all complete lines of a chunk of file content to
+	 * {@code listener} like the regular {@code frame}, but using line feeds
+	 * located by {@link #index(ByteBuffer)} beforehand. Chunks need to be
+	 * passed in file order.
+	 * 
+	 * @param chunk
+	 *            File content between position and limit.
+	 * @param newlines
+	 *            Positions of line feeds within {@code chunk}.
+	 * @param position
+	 *            Position within the file of the first carried byte or, if
+	 *            nothing is carried, of the first byte of the chunk.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 * @return Number of bytes of reported lines including terminators and
+	 *         carried bytes of earlier calls.
+	 */
+	public long frame(ByteBuffer chunk, int[] newlines, long position,
+			Path path, FileModificationListener listener) {
+		return frame(chunk, chunk.duplicate(), newlines, position, path,
+				listener);
+	}
+
+	/**
+	 * Reports all complete lines of {@code content} and consumes it.
+	 * 
+	 * @param content
+	 *            File content between position and limit.
+	 * @param view
+	 *            View on {@code content} to hand out lines with.
+	 * @param newlines
+	 *            Positions of line feeds within {@code content} or
+	 *            {@code null} to search them.
+	 * @param position
+	 *            Position within the file of the first carried byte or, if
+	 *            nothing is carried, of the first byte of {@code content}.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 * @return Number of bytes of reported lines including terminators and
+	 *         carried bytes of earlier calls.
+	 */
+	private long frame(ByteBuffer content, ByteBuffer view, int[] newlines,
+			long position, Path path, FileModificationListener listener) {
+		read = System.nanoTime();
+		reported = position;
+		blocked = 0;
+		long consumed = 0;
+		int start = content.position();
+		int limit = content.limit();
+		int found = 0;
+		while (true) {
+			int end;
+			if (newlines == null) {
+				end = indexOfNewline(content, start, limit);
+			} else {
+				end = found < newlines.length ? newlines[found++] : -1;
+			}
+			if (end < 0) {
+				break;
+			}
+			int next = end + unit;
+			if (skipping) {
+				// End of truncated line.
+				consumed = consumed + carry.position() + next - start;
+				carry.clear();
+				skipping = false;
+			} else if (carry.position() > 0) {
+				// Line started in earlier read.
+				consumed = consumed
+						+ complete(view, start, end, position + consumed,
+								path, listener);
+				if (blocked != 0) {
+					// Line is read again once the budget has room.
+					content.position(limit);
+					return consumed;
+				}
+			} else {
+				emitLine(view, start, end, position + consumed, path,
+						listener);
+				consumed = consumed + next - start;
+			}
+			oversized = false;
+			start = next;
+			reported = position + consumed;
+		}
+		// Keep incomplete line.
+		consumed = consumed
+				+ keep(view, start, limit, position + consumed, path, listener);
+		reported = position + consumed;
+		content.position(limit);
+		return consumed;
+	}
+
+	/**
+	 * Reports a line that started in an earlier read.
+	 * 
+	 * @param view
+	 *            View on file content.
+	 * @param start
+	 *            Position of the first byte after the carried bytes.
+	 * @param end
+	 *            Position of the line feed.
+	 * @param offset
+	 *            Position of the line within the file.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 * @return Number of bytes of the line including carried bytes and the
+	 *         terminator, {@code 0} if the budget has no room for the line.
+	 */
+	private long complete(ByteBuffer view, int start, int end, long offset,
+			Path path, FileModificationListener listener) {
+		int carried = carry.position();
+		int length = carried + end - start;
+		int room = room(length);
+		if (blocked != 0) {
+			stall();
+			return 0;
+		}
+		if (length <= room) {
+			append(view, start, end);
+			emit(carryView, 0, length, offset, true, path, listener);
+		} else {
+			// Report carried start as first part.
+			int rest = start + room - carried;
+			append(view, start, rest);
+			emit(carryView, 0, room, offset, false, path, listener);
+			if (!limits.truncate) {
+				emitLine(view, rest, end, offset + room, path, listener);
+			}
+		}
+		carry.clear();
+		shrink();
+		return length + unit;
+	}
+
+	/**
+	 * Reports a line that is completely within the read content.
+	 * 
+	 * @param view
+	 *            View on file content.
+	 * @param start
+	 *            Position of first byte.
+	 * @param end
+	 *            Position of the line feed.
+	 * @param offset
+	 *            Position of the line within the file.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 */
+	private void emitLine(ByteBuffer view, int start, int end, long offset,
+			Path path, FileModificationListener listener) {
+		if (end - start > maxLength && limits.truncate) {
+			emit(view, start, start + maxLength, offset, false, path,
+					listener);
+			return;
+		}
+		while (end - start > maxLength) {
+			emit(view, start, start + maxLength, offset, false, path,
+					listener);
+			start = start + maxLength;
+			offset = offset + maxLength;
+		}
+		emit(view, start, end, offset, true, path, listener);
+	}
+
+	/**
+	 * Carries the start of an incomplete line over to the next read. Reports
+	 * parts of it as far as it exceeds the maximum line length or the whole
+	 * budget. Carries nothing if the budget has no room for the line.
+	 * 
+	 * @param view
+	 *            View on file content.
+	 * @param start
+	 *            Position of the first byte after the carried bytes.
+	 * @param limit
+	 *            End of read content.
+	 * @param offset
+	 *            Position within the file of the first carried byte or, if
+	 *            nothing is carried, of {@code start}.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 * @return Number of bytes reported or dropped.
+	 */
+	private long keep(ByteBuffer view, int start, int limit, long offset,
+			Path path, FileModificationListener listener) {
+		long consumed = 0;
+		if (!skipping) {
+			int length = carry.position() + limit - start;
+			int room = room(length);
+			while (length > room) {
+				if (blocked != 0) {
+					stall();
+					return consumed;
+				}
+				int rest = start + room - carry.position();
+				append(view, start, rest);
+				emit(carryView, 0, room, offset + consumed, false, path,
+						listener);
+				carry.clear();
+				consumed = consumed + room;
+				start = rest;
+				if (limits.truncate) {
+					skipping = true;
+					break;
+				}
+				length = limit - start;
+				room = room(length);
+			}
+			if (!skipping) {
+				append(view, start, limit);
+				return consumed;
+			}
+		}
+
+		// Drop truncated line but keep a partial code unit so line feeds are
+		// still searched at code unit boundaries.
+		int carried = carry.position();
+		int pending = carried + limit - start;
+		byte[] partial = new byte[pending % unit];
+		view.clear();
+		for (int index = 0; index < partial.length; index = index + 1) {
+			int source = pending - partial.length + index;
+			partial[index] = source < carried ? carry.get(source) : view
+					.get(start + source - carried);
+		}
+		carry.clear();
+		shrink();
+		carry.put(partial);
+		return consumed + pending - partial.length;
+	}
+
+	/**
+	 * Locates the line feeds of a chunk of file content. Does not change any
+	 * state, so chunks can be indexed concurrently.
+	 * 
+	 * @param chunk
+	 *            File content between position and limit. The position needs
+	 *            to be at a code unit boundary.
+	 * @return Positions of line feeds within {@code chunk}.
+	 */
+	public int[] index(ByteBuffer chunk) {
+		int[] newlines = new int[256];
+		int count = 0;
+		int start = chunk.position();
+		int limit = chunk.limit();
+		while (true) {
+			int end;
+			if (unit == 1) {
+				end = indexOf(chunk, newline[0], start, limit);
+			} else {
+				end = -1;
+				for (int index = start; index + unit <= limit; index = index
+						+ unit) {
+					if (matches(chunk, index, newline)) {
+						end = index;
+						break;
+					}
+				}
+			}
+			if (end < 0) {
+				return Arrays.copyOf(newlines, count);
+			}
+			if (count == newlines.length) {
+				newlines = Arrays.copyOf(newlines, count * 2);
+			}
+			newlines[count] = end;
+			count = count + 1;
+			start = end + unit;
+		}
+	}
+
+	/**
+	 * @return Position within the file after the last line the current or
+	 *         last {@code frame} call reported. Tells where to continue if a
+	 *         listener or access to the content failed in between.
+	 */
+	long reported() {
+		return reported;
+	}
+
+	/**
+	 * @return {@code true} if framing stopped at a line the budget has no room
+	 *         for. The owner continues reading at the start of the line after
+	 *         {@link #await()}.
+	 */
+	public boolean isBlocked() {
+		return blocked != 0;
+	}
+
+	/**
+	 * Waits until the budget has room for the line framing stopped at and
+	 * takes it, so that the line is carried when read again.
+	 * 
+	 * @throws InterruptedException
+	 *             Interrupted while waiting. Framing continues unchanged.
+	 */
+	public void await() throws InterruptedException {
+		int capacity = blocked;
+		blocked = 0;
+		if (capacity <= carry.capacity()) {
+			return;
+		}
+		limits.acquire(capacity - carry.capacity());
+		reserved = reserved + capacity - carry.capacity();
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		carry.flip();
+		larger.put(carry);
+		carry = larger;
+		carryView = carry.duplicate();
+	}
+
+	/**
+	 * @return Number of carried bytes of an incomplete line.
+	 */
+	public int pending() {
+		return carry.position();
+	}
+
+	/**
+	 * Reports a carried incomplete line as if it was complete. Used when no
+	 * further content will follow.
+	 * 
+	 * @param position
+	 *            Position within the file of the first carried byte.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 */
+	public void flush(long position, Path path,
+			FileModificationListener listener) {
+		if (carry.position() > 0 && !skipping) {
+			emit(carryView, 0, carry.position(), position, true, path,
+					listener);
+		}
+		reset();
+	}
+
+	/**
+	 * Drops a carried incomplete line.
+	 */
+	public void reset() {
+		carry.clear();
+		skipping = false;
+		oversized = false;
+		shrink();
+	}
+
+	/**
+	 * Drops pending bytes and returns the capacity of the carry buffer to the
+	 * read budget. For framers of files that are no longer monitored.
+	 */
+	public void release() {
+		reset();
+		carry = ByteBuffer.allocate(CARRY_SIZE);
+		carryView = carry.duplicate();
+		limits.release(reserved);
+		reserved = 0;
+	}
+
+	/**
+	 * Hands a line to the listener.
+	 * 
+	 * @param view
+	 *            Buffer holding the line.
+	 * @param start
+	 *            Position of first byte.
+	 * @param end
+	 *            Position after last byte, excluding line feed.
+	 * @param offset
+	 *            Position of the line within the file.
+	 * @param terminated
+	 *            {@code true} for the end of a line, {@code false} for a part
+	 *            of an oversized line.
+	 * @param path
+	 *            Monitored path.
+	 * @param listener
+	 *            Handler for detected lines.
+	 */
+	private void emit(ByteBuffer view, int start, int end, long offset,
+			boolean terminated, Path path, FileModificationListener listener) {
+		if (!terminated && !oversized) {
+			oversized = true;
+			if (limits.truncate) {
+				limits.truncatedLines.increment();
+			} else {
+				limits.splitLines.increment();
+			}
+		}
+		view.clear();
+		if (terminated && end - start >= unit
+				&& matches(view, end - unit, carriageReturn)) {
+			// Windows line ending.
+			end = end - unit;
+		}
+		slice.set(view, start, end, offset);
+		slice.timed(detected, read);
+		lines++;
+		if (listener instanceof LineSliceListener) {
+			((LineSliceListener) listener).lineAdded(path, slice);
+		} else {
+			listener.lineAdded(path, slice.toString());
+		}
+	}
+
+	/**
+	 * @return Position of next line feed in {@code content} or {@code -1} if
+	 *         none is found.
+	 */
+	private int indexOfNewline(ByteBuffer content, int start, int limit) {
+		if (unit == 1) {
+			return indexOf(content, newline[0], start, limit);
+		}
+		// Align search to code units of the current line.
+		int index = start + (unit - carry.position() % unit) % unit;
+		for (; index + unit <= limit; index = index + unit) {
+			if (matches(content, index, newline)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Position of the first {@code value} in {@code content} between
+	 *         {@code start} and {@code limit} or {@code -1} if there is none.
+	 */
+	private static int indexOf(ByteBuffer content, byte value, int start,
+			int limit) {
+		for (int index = start; index < limit; index = index + 1) {
+			if (content.get(index) == value) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return {@code true} if {@code buffer} contains {@code expected} at
+	 *         {@code index}.
+	 */
+	private static boolean matches(ByteBuffer buffer, int index,
+			byte[] expected) {
+		for (int offset = 0; offset < expected.length; offset = offset + 1) {
+			if (buffer.get(index + offset) != expected[offset]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Grows {@link #carry} within the maximum line length and the budget.
+	 * Sets {@link #blocked} if the budget has no room for the line right now.
+	 * 
+	 * @param required
+	 *            Bytes of a line to carry.
+	 * @return Bytes of the line that can be carried, at most the maximum line
+	 *         length.
+	 */
+	private int room(int required) {
+		required = Math.min(required, maxLength);
+		if (carry.capacity() < required) {
+			int capacity = Math.min(Math.max(carry.capacity() * 2, required),
+					maxLength);
+			// Parts end at code unit boundaries.
+			capacity = capacity + (unit - capacity % unit) % unit;
+			if (limits.tryAcquire(capacity - carry.capacity())) {
+				reserved = reserved + capacity - carry.capacity();
+				ByteBuffer larger = ByteBuffer.allocate(capacity);
+				carry.flip();
+				larger.put(carry);
+				carry = larger;
+				carryView = carry.duplicate();
+			} else if (limits.fits(capacity - CARRY_SIZE)) {
+				blocked = capacity;
+			}
+		}
+		return Math.min(carry.capacity(), maxLength);
+	}
+
+	/**
+	 * Drops the carried start of a line the budget has no room for and
+	 * returns the capacity of {@link #carry} to the budget. The line is read
+	 * again from its start.
+	 */
+	private void stall() {
+		carry = ByteBuffer.allocate(CARRY_SIZE);
+		carryView = carry.duplicate();
+		limits.release(reserved);
+		reserved = 0;
+	}
+
+	/**
+	 * Releases a large {@link #carry} once it is empty.
+	 */
+	private void shrink() {
+		if (carry.capacity() > SHRINK_SIZE && carry.position() == 0) {
+			carry = ByteBuffer.allocate(CARRY_SIZE);
+			carryView = carry.duplicate();
+			limits.release(reserved);
+			reserved = 0;
+		}
+	}
+
+	/**
+	 * Adds bytes of {@code view} to {@link #carry}, growing it as needed.
+	 */
+	private void append(ByteBuffer view, int start, int end) {
+		int length = end - start;
+		if (length == 0) {
+			return;
+		}
+		if (carry.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(
+					carry.capacity() * 2, carry.position() + length));
+			carry.flip();
+			larger.put(carry);
+			carry = larger;
+			carryView = carry.duplicate();
+		}
+		view.clear();
+		view.position(start);
+		view.limit(end);
+		carry.put(view);
+	}
+}
@@ -0,0 +1,168 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import shipper.TestSupport.CollectingListener;
+
+public class LineFramerTest {
+
+	@Test
+	public void test() {
+		Charset utf8 = Charset.forName("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		LineFramer framer = new LineFramer(utf8, buffer);
+		CollectingListener listener = new CollectingListener();
+		Path path = Paths.get("test");
+
+		buffer.put("a\r\nbc".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(3, framer.frame(0, path, listener));
+		org.junit.Assert.assertEquals(2, framer.pending());
+
+		// Line spanning reads is reported once complete.
+		buffer.clear();
+		buffer.put("déf\n".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(7, framer.frame(3, path, listener));
+		org.junit.Assert.assertEquals(0, framer.pending());
+
+		// Incomplete line is only reported when flushed.
+		buffer.clear();
+		buffer.put("end".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(0, framer.frame(10, path, listener));
+		org.junit.Assert.assertEquals(2, listener.lines.size());
+		framer.flush(10, path, listener);
+
+		org.junit.Assert.assertEquals("a", listener.lines.get(0));
+		org.junit.Assert.assertEquals("bcdéf", listener.lines.get(1));
+		org.junit.Assert.assertEquals("end", listener.lines.get(2));
+		org.junit.Assert.assertEquals(0L, (long) listener.offsets.get(0));
+		org.junit.Assert.assertEquals(3L, (long) listener.offsets.get(1));
+		org.junit.Assert.assertEquals(10L, (long) listener.offsets.get(2));
+	}
+
+	@Test
+	public void split() {
+		Charset utf8 = Charset.forName("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		ReadLimits limits = new ReadLimits(4, false, 0);
+		LineFramer framer = new LineFramer(utf8, buffer, limits);
+		CollectingListener listener = new CollectingListener();
+		Path path = Paths.get("test");
+
+		// Incomplete line never carries more than the maximum.
+		buffer.put("abcdefgh".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(4, framer.frame(0, path, listener));
+		org.junit.Assert.assertEquals(4, framer.pending());
+
+		buffer.clear();
+		buffer.put("ij\nklmno".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(7 + 4, framer.frame(4, path, listener));
+		buffer.clear();
+		buffer.put("\n".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(2, framer.frame(15, path, listener));
+
+		org.junit.Assert.assertEquals(
+				java.util.Arrays.asList("abcd", "efgh", "ij", "klmn", "o"),
+				listener.lines);
+		org.junit.Assert.assertEquals(
+				java.util.Arrays.asList(0L, 4L, 8L, 11L, 15L),
+				listener.offsets);
+		org.junit.Assert.assertEquals(2, limits.getSplitLines());
+	}
+
+	@Test
+	public void truncate() {
+		Charset utf8 = Charset.forName("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		ReadLimits limits = new ReadLimits(4, true, 0);
+		LineFramer framer = new LineFramer(utf8, buffer, limits);
+		CollectingListener listener = new CollectingListener();
+		Path path = Paths.get("test");
+
+		buffer.put("abcdefghijklmnop".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(16, framer.frame(0, path, listener));
+		org.junit.Assert.assertEquals(0, framer.pending());
+
+		// Rest of truncated line is dropped.
+		buffer.clear();
+		buffer.put("q\nrstuvw\nxy\n".getBytes(utf8));
+		buffer.flip();
+		org.junit.Assert.assertEquals(12, framer.frame(16, path, listener));
+
+		org.junit.Assert.assertEquals(
+				java.util.Arrays.asList("abcd", "rstu", "xy"), listener.lines);
+		org.junit.Assert.assertEquals(java.util.Arrays.asList(0L, 18L, 25L),
+				listener.offsets);
+		org.junit.Assert.assertEquals(2, limits.getTruncatedLines());
+	}
+
+	@Test
+	public void budget() {
+		Charset utf8 = Charset.forName("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		ReadLimits limits = new ReadLimits(0, false, 100);
+		LineFramer framer = new LineFramer(utf8, buffer, limits);
+		CollectingListener listener = new CollectingListener();
+		Path path = Paths.get("test");
+
+		// Carried line cannot grow beyond the budget.
+		for (int index = 0; index < 1500; index = index + 1) {
+			buffer.put((byte) 'a');
+		}
+		buffer.flip();
+		org.junit.Assert.assertEquals(1024, framer.frame(0, path, listener));
+		org.junit.Assert.assertEquals(476, framer.pending());
+		org.junit.Assert.assertEquals(1024, listener.lines.get(0).length());
+		org.junit.Assert.assertEquals(0, limits.getUsedBytes());
+	}
+
+	@Test
+	public void blocked() throws InterruptedException {
+		Charset utf8 = Charset.forName("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		ReadLimits limits = new ReadLimits(0, false, 4096);
+		LineFramer framer = new LineFramer(utf8, buffer, limits);
+		CollectingListener listener = new CollectingListener();
+		Path path = Paths.get("test");
+
+		// Queued lines take most of the budget.
+		org.junit.Assert.assertTrue(limits.tryAcquire(4000));
+		buffer.put("first\n".getBytes(utf8));
+		for (int index = 0; index < 1500; index = index + 1) {
+			buffer.put((byte) 'a');
+		}
+		buffer.flip();
+
+		// Line stays on disk instead of being split.
+		org.junit.Assert.assertEquals(6, framer.frame(0, path, listener));
+		org.junit.Assert.assertTrue(framer.isBlocked());
+		org.junit.Assert.assertEquals(0, framer.pending());
+		org.junit.Assert.assertEquals(1, listener.lines.size());
+		org.junit.Assert.assertEquals(0, limits.getSplitLines());
+
+		// Read again once the queued lines were sent.
+		limits.release(4000);
+		framer.await();
+		org.junit.Assert.assertFalse(framer.isBlocked());
+		buffer.clear();
+		for (int index = 0; index < 1500; index = index + 1) {
+			buffer.put((byte) 'a');
+		}
+		buffer.put((byte) '\n');
+		buffer.flip();
+		org.junit.Assert.assertEquals(1501, framer.frame(6, path, listener));
+		org.junit.Assert.assertEquals(2, listener.lines.size());
+		org.junit.Assert.assertEquals(1500, listener.lines.get(1).length());
+	}
+}
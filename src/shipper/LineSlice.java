@@ -0,0 +1,178 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Reusable view on a single line within a read buffer. The view is only valid
+ * until the {@link LineSliceListener} returns as the underlying buffer is
+ * reused afterwards.
+ */
+public class LineSlice {
+	/**
+	 * Decoder for file content. Reused for all lines.
+	 */
+	private final CharsetDecoder decoder;
+
+	/**
+	 * Buffer holding the line. Limited to the line.
+	 */
+	private ByteBuffer bytes;
+
+	/**
+	 * Position of the first byte of the line within {@link #bytes}.
+	 */
+	private int start;
+
+	/**
+	 * Position of the line within the file.
+	 */
+	private long offset;
+
+	/**
+	 * {@link System#nanoTime()} the append of the line was detected at or
+	 * {@code 0} if unknown.
+	 */
+	private long detected;
+
+	/**
+	 * {@link System#nanoTime()} the line was read at or {@code 0} if unknown.
+	 */
+	private long read;
+
+	/**
+	 * Decoded characters. Reused for all lines.
+	 */
+	private CharBuffer chars = CharBuffer.allocate(256);
+
+	/**
+	 * {@code true} if {@link #chars} holds the current line.
+	 */
+	private boolean decoded;
+
+	/**
+	 * @param decoder
+	 *            Decoder for file content.
+	 */
+	LineSlice(CharsetDecoder decoder) {
+		this.decoder = decoder;
+	}
+
+	/**
+	 * Points this slice to another line.
+	 * 
+	 * @param view
+	 *            Buffer holding the line.
+	 * @param start
+	 *            Position of first byte.
+	 * @param end
+	 *            Position after last byte, excluding line terminators.
+	 * @param offset
+	 *            Position of the line within the file.
+	 */
+	void set(ByteBuffer view, int start, int end, long offset) {
+		view.clear();
+		view.position(start);
+		view.limit(end);
+		this.bytes = view;
+		this.start = start;
+		this.offset = offset;
+		this.decoded = false;
+	}
+
+	/**
+	 * Sets the timestamps of the current line.
+	 * 
+	 * @param detected
+	 *            {@link System#nanoTime()} the append of the line was
+	 *            detected at or {@code 0} if unknown.
+	 * @param read
+	 *            {@link System#nanoTime()} the line was read at or {@code 0}
+	 *            if unknown.
+	 */
+	void timed(long detected, long read) {
+		this.detected = detected;
+		this.read = read;
+	}
+
+	/**
+	 * @return Line content without terminator. Positioned at the line start
+	 *         and limited to the line end.
+	 */
+	public ByteBuffer bytes() {
+		bytes.position(start);
+		return bytes;
+	}
+
+	/**
+	 * @return Position of the line's first byte within the file.
+	 */
+	public long offset() {
+		return offset;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} the append of the line was detected
+	 *         at or {@code 0} if unknown.
+	 */
+	public long detected() {
+		return detected;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} the line was read at or {@code 0} if
+	 *         unknown.
+	 */
+	public long read() {
+		return read;
+	}
+
+	/**
+	 * @return Length of line content in bytes.
+	 */
+	public int length() {
+		return bytes.limit() - start;
+	}
+
+	/**
+	 * Decodes the line. Repeated calls for the same line do not decode again.
+	 * 
+	 * @return Line content without terminator. Only valid until the listener
+	 *         returns.
+	 */
+	public CharSequence chars() {
+		if (!decoded) {
+			decoder.reset();
+			ByteBuffer input = bytes();
+			chars.clear();
+			while (true) {
+				CoderResult result = decoder.decode(input, chars, true);
+				if (!result.isOverflow()) {
+					result = decoder.flush(chars);
+				}
+				if (!result.isOverflow()) {
+					break;
+				}
+				// Grow and decode remainder.
+				CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+				chars.flip();
+				larger.put(chars);
+				chars = larger;
+			}
+			chars.flip();
+			bytes.position(start);
+			decoded = true;
+		}
+		return chars;
+	}
+
+	/**
+	 * @return Decoded line content as new string.
+	 */
+	@Override
+	public String toString() {
+		return chars().toString();
+	}
+}
@@ -0,0 +1,22 @@
+package shipper;
+
+import java.nio.file.Path;
+
+/**
+ * Listener that receives lines as views on the read buffer instead of
+ * decoded strings. {@link FileMonitor} calls
+ * {@link #lineAdded(Path, LineSlice)} instead of
+ * {@link #lineAdded(Path, String)} for such listeners.
+ */
+public interface LineSliceListener extends FileModificationListener {
+	/**
+	 * A new line was encountered.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param line
+	 *            Content of encountered line. Only valid until this method
+	 *            returns.
+	 */
+	public void lineAdded(Path path, LineSlice line);
+}
@@ -0,0 +1,106 @@
+package shipper;
+
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Monitored file as seen by the sender.
+ */
+public class LineSource {
+	/**
+	 * Identifier of the file, unique among all monitored files including those
+	 * found by patterns. Assigned in the order files are found and used to
+	 * refer to the path in binary frames.
+	 */
+	final int fileId;
+
+	/**
+	 * Monitored path.
+	 */
+	final Path path;
+
+	/**
+	 * Logger the file's lines are attributed to.
+	 */
+	final Logger logger;
+
+	/**
+	 * File encoding.
+	 */
+	final Charset encoding;
+
+	/**
+	 * Delivery state of the file's lines or {@code null} if checkpoints do not
+	 * wait for delivery.
+	 */
+	final CheckpointStore.Delivery delivery;
+
+	/**
+	 * Classifier of the file's lines by level.
+	 */
+	final SeverityClassifier severity;
+
+	/**
+	 * @param fileId
+	 *            Unique identifier of the file, assigned in the order files
+	 *            are found.
+	 * @param path
+	 *            Monitored path.
+	 * @param logger
+	 *            Logger the file's lines are attributed to.
+	 * @param encoding
+	 *            File encoding.
+	 */
+	public LineSource(int fileId, Path path, Logger logger, Charset encoding) {
+		this(fileId, path, logger, encoding, null);
+	}
+
+	/**
+	 * @param fileId
+	 *            Unique identifier of the file, assigned in the order files
+	 *            are found.
+	 * @param path
+	 *            Monitored path.
+	 * @param logger
+	 *            Logger the file's lines are attributed to.
+	 * @param encoding
+	 *            File encoding.
+	 * @param checkpoints
+	 *            Registry whose positions of the file only advance over
+	 *            delivered lines or {@code null} to not track delivery.
+	 */
+	public LineSource(int fileId, Path path, Logger logger, Charset encoding,
+			CheckpointStore checkpoints) {
+		this(fileId, path, logger, encoding, checkpoints,
+				SeverityClassifier.NONE);
+	}
+
+	/**
+	 * @param fileId
+	 *            Unique identifier of the file, assigned in the order files
+	 *            are found.
+	 * @param path
+	 *            Monitored path.
+	 * @param logger
+	 *            Logger the file's lines are attributed to.
+	 * @param encoding
+	 *            File encoding.
+	 * @param checkpoints
+	 *            Registry whose positions of the file only advance over
+	 *            delivered lines or {@code null} to not track delivery.
+	 * @param severity
+	 *            Classifier of the file's lines by level.
+	 */
+	public LineSource(int fileId, Path path, Logger logger, Charset encoding,
+			CheckpointStore checkpoints, SeverityClassifier severity) {
+		this.fileId = fileId;
+		this.path = path;
+		this.logger = logger;
+		this.encoding = encoding;
+		this.delivery = checkpoints == null ? null : checkpoints
+				.delivery(path);
+		this.severity = severity;
+	}
+}
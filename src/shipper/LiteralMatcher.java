@@ -0,0 +1,176 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Finds any of several encoded literals in undecoded line content.
+ * <p>
+ * The literals are compiled into an Aho-Corasick automaton whose failure
+ * transitions are resolved up front, so searching takes exactly one table
+ * lookup per byte of the line no matter how many literals there are.
+ */
+public class LiteralMatcher {
+	/**
+	 * Next state per state and byte value at {@code state * 256 + byte}.
+	 */
+	private final int[] transitions;
+
+	/**
+	 * Lengths of the literals ending in a state or {@code null} if none ends
+	 * there.
+	 */
+	private final int[][] ends;
+
+	/**
+	 * Bytes per code unit. Literals only match at code unit boundaries of the
+	 * line.
+	 */
+	private final int unit;
+
+	/**
+	 * {@code true} if an empty literal matches every line.
+	 */
+	private final boolean matchesAll;
+
+	/**
+	 * @param literals
+	 *            Encoded literals.
+	 * @param unit
+	 *            Bytes per code unit of the encoding.
+	 */
+	public LiteralMatcher(List<byte[]> literals, int unit) {
+		this.unit = unit;
+
+		// Trie of all literals. State 0 is the root.
+		List<int[]> trie = new ArrayList<>();
+		List<int[]> lengths = new ArrayList<>();
+		trie.add(newState());
+		lengths.add(null);
+		boolean empty = false;
+		for (byte[] literal : literals) {
+			if (literal.length == 0) {
+				empty = true;
+				continue;
+			}
+			int state = 0;
+			for (byte value : literal) {
+				int next = trie.get(state)[value & 0xFF];
+				if (next < 0) {
+					next = trie.size();
+					trie.get(state)[value & 0xFF] = next;
+					trie.add(newState());
+					lengths.add(null);
+				}
+				state = next;
+			}
+			lengths.set(state, add(lengths.get(state), literal.length));
+		}
+		matchesAll = empty;
+
+		// Replace missing transitions by those of the longest proper suffix
+		// that is in the trie, breadth first so suffixes are done before.
+		int[] failures = new int[trie.size()];
+		Deque<Integer> pending = new ArrayDeque<>();
+		int[] root = trie.get(0);
+		for (int value = 0; value < 256; value = value + 1) {
+			if (root[value] < 0) {
+				root[value] = 0;
+			} else {
+				pending.add(root[value]);
+			}
+		}
+		while (!pending.isEmpty()) {
+			int state = pending.removeFirst();
+			int[] next = trie.get(state);
+			int[] failure = trie.get(failures[state]);
+			for (int value = 0; value < 256; value = value + 1) {
+				int child = next[value];
+				if (child < 0) {
+					next[value] = failure[value];
+				} else {
+					failures[child] = failure[value];
+					// Literals ending in the suffix end here as well.
+					int[] inherited = lengths.get(failures[child]);
+					if (inherited != null) {
+						for (int length : inherited) {
+							lengths.set(child, add(lengths.get(child), length));
+						}
+					}
+					pending.add(child);
+				}
+			}
+		}
+
+		transitions = new int[trie.size() * 256];
+		for (int state = 0; state < trie.size(); state = state + 1) {
+			System.arraycopy(trie.get(state), 0, transitions, state * 256, 256);
+		}
+		ends = lengths.toArray(new int[lengths.size()][]);
+	}
+
+	/**
+	 * @param content
+	 *            Line content.
+	 * @param start
+	 *            Position of the first byte of the line.
+	 * @param end
+	 *            Position after the last byte of the line.
+	 * @return {@code true} if any literal occurs within the line.
+	 */
+	public boolean find(ByteBuffer content, int start, int end) {
+		if (matchesAll) {
+			return true;
+		}
+		int state = 0;
+		for (int index = start; index < end; index = index + 1) {
+			state = transitions[(state << 8) | (content.get(index) & 0xFF)];
+			int[] lengths = ends[state];
+			if (lengths != null) {
+				if (unit == 1) {
+					return true;
+				}
+				for (int length : lengths) {
+					if ((index + 1 - length - start) % unit == 0) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return State without transitions.
+	 */
+	private static int[] newState() {
+		int[] state = new int[256];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	/**
+	 * @param lengths
+	 *            Lengths of literals ending in a state or {@code null}.
+	 * @param length
+	 *            Length to add.
+	 * @return Lengths including {@code length}.
+	 */
+	private static int[] add(int[] lengths, int length) {
+		if (lengths == null) {
+			return new int[] { length };
+		}
+		for (int existing : lengths) {
+			if (existing == length) {
+				return lengths;
+			}
+		}
+		int[] added = Arrays.copyOf(lengths, lengths.length + 1);
+		added[lengths.length] = length;
+		return added;
+	}
+}
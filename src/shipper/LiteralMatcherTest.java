@@ -0,0 +1,54 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class LiteralMatcherTest {
+
+	private static boolean find(LiteralMatcher matcher, String text,
+			Charset charset) {
+		ByteBuffer content = ByteBuffer.wrap(text.getBytes(charset));
+		return matcher.find(content, 0, content.limit());
+	}
+
+	@Test
+	public void test() {
+		Charset utf8 = Charset.forName("UTF-8");
+		LiteralMatcher matcher = new LiteralMatcher(Arrays.asList(
+				"he".getBytes(utf8), "she".getBytes(utf8),
+				"hers".getBytes(utf8), "his".getBytes(utf8)), 1);
+		org.junit.Assert.assertTrue(find(matcher, "ushers", utf8));
+		org.junit.Assert.assertTrue(find(matcher, "this", utf8));
+		// Found through the failure transition of "hi".
+		org.junit.Assert.assertTrue(find(matcher, "hhe", utf8));
+		org.junit.Assert.assertFalse(find(matcher, "hs ih sh", utf8));
+		org.junit.Assert.assertFalse(find(matcher, "", utf8));
+
+		// Search is limited to the line.
+		ByteBuffer content = ByteBuffer.wrap("xxhe".getBytes(utf8));
+		org.junit.Assert.assertFalse(matcher.find(content, 0, 3));
+		org.junit.Assert.assertTrue(matcher.find(content, 1, 4));
+
+		// Bytes beyond ASCII.
+		matcher = new LiteralMatcher(Arrays.asList("ä€".getBytes(utf8)), 1);
+		org.junit.Assert.assertTrue(find(matcher, "aä€", utf8));
+		org.junit.Assert.assertFalse(find(matcher, "ä", utf8));
+
+		// Empty literal matches everything.
+		matcher = new LiteralMatcher(Arrays.asList(new byte[0]), 1);
+		org.junit.Assert.assertTrue(find(matcher, "", utf8));
+	}
+
+	@Test
+	public void codeUnits() {
+		Charset utf16 = Charset.forName("UTF-16LE");
+		// "ĀA" is 00 01 41 00, containing "ą" (01 41) across code units.
+		LiteralMatcher matcher = new LiteralMatcher(
+				Arrays.asList(new byte[] { 1, 'A' }), 2);
+		org.junit.Assert.assertFalse(find(matcher, "ĀA", utf16));
+		org.junit.Assert.assertTrue(find(matcher, "x䄁", utf16));
+	}
+}
@@ -0,0 +1,111 @@
+package shipper;
+
+import static shipper.ShipperLogger.error;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+import org.apache.log4j.net.SocketAppender;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Sends serialized log4j {@link LoggingEvent}s as {@link SocketAppender} does,
+ * so any log4j socket receiver can process them. Unlike the appender, a whole
+ * batch is written before flushing.
+ */
+public class Log4jTransport implements Transport {
+	/**
+	 * Name reported as origin of events.
+	 */
+	private static final String FQCN = Log4jTransport.class.getName();
+
+	/**
+	 * Bytes buffered before writing to the socket.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Log server name.
+	 */
+	private final String host;
+
+	/**
+	 * Log server port.
+	 */
+	private final int port;
+
+	/**
+	 * Connection to log server. {@code null} if not connected.
+	 */
+	private Socket socket;
+
+	/**
+	 * Serializer writing to {@link #socket}.
+	 */
+	private ObjectOutputStream oos;
+
+	/**
+	 * @param host
+	 *            Log server name.
+	 * @param port
+	 *            Log server port.
+	 */
+	public Log4jTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port));
+			oos = new ObjectOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(), BUFFER_SIZE));
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket != null;
+	}
+
+	@Override
+	public void write(List<ShipEvent> batch) throws IOException {
+		for (ShipEvent event : batch) {
+			oos.writeObject(new LoggingEvent(FQCN, event.source.logger,
+					event.timestamp, event.level, event.text(), null));
+		}
+		oos.flush();
+		// Allow receiver to release references to the batch's events.
+		oos.reset();
+		ShipLatency.written(batch);
+		// No acknowledgements, written lines count as delivered.
+		ShipEvent.delivered(batch);
+	}
+
+	@Override
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				error("Failed to close connection to " + host + ":" + port, e);
+			}
+			socket = null;
+			oos = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
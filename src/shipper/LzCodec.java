@@ -0,0 +1,186 @@
+package shipper;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 compression in the style of LZ4. Trades compression ratio for
+ * very low CPU cost.
+ * <p>
+ * Output is a series of sequences. Each starts with a token whose high nibble
+ * is the literal length and whose low nibble is the match length minus
+ * {@link #MIN_MATCH}. A nibble of 15 is followed by bytes adding to the length
+ * until a byte below 255. Literals follow, then a two byte little-endian
+ * offset of the match. The last sequence only holds literals.
+ */
+public class LzCodec extends BatchCodec {
+	/**
+	 * Shortest match that is encoded.
+	 */
+	private static final int MIN_MATCH = 4;
+
+	/**
+	 * Bits of hash table index.
+	 */
+	private static final int HASH_BITS = 14;
+
+	/**
+	 * Largest distance of a match.
+	 */
+	private static final int MAX_OFFSET = 0xFFFF;
+
+	/**
+	 * Most recent position plus one by hash of the four bytes found there.
+	 * Reused for all batches.
+	 */
+	private final int[] table = new int[1 << HASH_BITS];
+
+	@Override
+	public byte id() {
+		return LZ;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	public int compress(byte[] source, int length, byte[] target) {
+		Arrays.fill(table, 0);
+		int anchor = 0;
+		int in = 0;
+		int out = 0;
+		while (in <= length - MIN_MATCH) {
+			int sequence = readInt(source, in);
+			int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+			int reference = table[hash] - 1;
+			table[hash] = in + 1;
+			if (reference >= 0 && in - reference <= MAX_OFFSET
+					&& readInt(source, reference) == sequence) {
+				int matchLength = MIN_MATCH;
+				while (in + matchLength < length
+						&& source[reference + matchLength] == source[in
+								+ matchLength]) {
+					matchLength = matchLength + 1;
+				}
+				out = writeSequence(source, anchor, in - anchor, target, out,
+						in - reference, matchLength);
+				in = in + matchLength;
+				anchor = in;
+			} else {
+				in = in + 1;
+			}
+		}
+		// Remaining literals.
+		return writeSequence(source, anchor, length - anchor, target, out, 0,
+				0);
+	}
+
+	@Override
+	public void decompress(byte[] source, int offset, int length,
+			byte[] target, int rawLength) throws IOException {
+		int in = offset;
+		int end = offset + length;
+		int out = 0;
+		try {
+			while (true) {
+				int token = source[in++] & 0xFF;
+				int literalLength = token >>> 4;
+				if (literalLength == 15) {
+					int extra;
+					do {
+						extra = source[in++] & 0xFF;
+						literalLength = literalLength + extra;
+					} while (extra == 255);
+				}
+				System.arraycopy(source, in, target, out, literalLength);
+				in = in + literalLength;
+				out = out + literalLength;
+				if (out >= rawLength) {
+					break;
+				}
+
+				int distance = (source[in++] & 0xFF)
+						| ((source[in++] & 0xFF) << 8);
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int extra;
+					do {
+						extra = source[in++] & 0xFF;
+						matchLength = matchLength + extra;
+					} while (extra == 255);
+				}
+				matchLength = matchLength + MIN_MATCH;
+				int reference = out - distance;
+				if (distance == 0 || reference < 0) {
+					throw new IOException("Corrupt batch.");
+				}
+				// Byte-wise as source and target may overlap.
+				for (int index = 0; index < matchLength; index = index + 1) {
+					target[out + index] = target[reference + index];
+				}
+				out = out + matchLength;
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt batch.", e);
+		}
+		if (in != end || out != rawLength) {
+			throw new IOException("Corrupt batch.");
+		}
+	}
+
+	/**
+	 * Writes a sequence of literals optionally followed by a match.
+	 * 
+	 * @return Position after the written sequence.
+	 */
+	private static int writeSequence(byte[] source, int literalStart,
+			int literalLength, byte[] target, int out, int distance,
+			int matchLength) {
+		int tokenPosition = out++;
+		int token;
+		if (literalLength >= 15) {
+			token = 15 << 4;
+			out = writeLength(target, out, literalLength - 15);
+		} else {
+			token = literalLength << 4;
+		}
+		System.arraycopy(source, literalStart, target, out, literalLength);
+		out = out + literalLength;
+
+		if (matchLength > 0) {
+			target[out++] = (byte) distance;
+			target[out++] = (byte) (distance >>> 8);
+			int encodedLength = matchLength - MIN_MATCH;
+			if (encodedLength >= 15) {
+				token = token | 15;
+				out = writeLength(target, out, encodedLength - 15);
+			} else {
+				token = token | encodedLength;
+			}
+		}
+		target[tokenPosition] = (byte) token;
+		return out;
+	}
+
+	/**
+	 * Writes the excess of a length that did not fit its nibble.
+	 * 
+	 * @return Position after the written bytes.
+	 */
+	private static int writeLength(byte[] target, int out, int length) {
+		while (length >= 255) {
+			target[out++] = (byte) 255;
+			length = length - 255;
+		}
+		target[out++] = (byte) length;
+		return out;
+	}
+
+	private static int readInt(byte[] source, int index) {
+		return (source[index] & 0xFF) | ((source[index + 1] & 0xFF) << 8)
+				| ((source[index + 2] & 0xFF) << 16)
+				| ((source[index + 3] & 0xFF) << 24);
+	}
+}
@@ -4,14 +4,21 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.apache.log4j.net.SocketAppender;
@@ -28,11 +35,11 @@ public class Main {
 		/**
 		 * File path.
 		 */
-		FILE("Path to monitored file"),
+		FILE("Path or glob pattern of monitored files"),
 		/**
 		 * Recipient name.
 		 */
-		HOST("Target hostname"),
+		HOST("Target hostnames, separated by commas, each optionally with :port"),
 		/**
 		 * Recipient port.
 		 */
@@ -48,7 +55,131 @@ public class Main {
 		/**
 		 * Configuration files to control details of log output.
 		 */
-		LOGGING_CONFIGURATION("Path to log4j configuration.", "");
+		LOGGING_CONFIGURATION("Path to log4j configuration.", ""),
+		/**
+		 * Registry of read positions.
+		 */
+		CHECKPOINT_FILE("Path to registry of read positions", ""),
+		/**
+		 * Delay between writing read positions to disk.
+		 */
+		CHECKPOINT_INTERVAL("Milliseconds between checkpoint commits", "1000"),
+		/**
+		 * Strategy for monitoring files.
+		 */
+		MONITOR(
+				"One of shared (one watcher for all files), thread (one thread per file) or poll (one poller for all files)",
+				"shared"),
+		/**
+		 * Size of reader pool for shared monitoring.
+		 */
+		READER_THREADS("Number of threads reading files", "4"),
+		/**
+		 * Coalescing of modification notifications.
+		 */
+		DEBOUNCE("Milliseconds to collect modifications of a file before reading it, 0 to read at once", "0"),
+		/**
+		 * Kind of threads monitoring and reading files.
+		 */
+		THREADS("One of platform or virtual (requires Java 21)", "platform"),
+		/**
+		 * Parallelism of reading large existing content.
+		 */
+		BACKFILL_THREADS("Threads reading large existing content, 0 for one per processor", "0"),
+		/**
+		 * Way of sending lines.
+		 */
+		TRANSPORT(
+				"One of log4j (batched log4j events), binary (length-prefixed frames) or appender (configured log4j appenders)",
+				"log4j"),
+		/**
+		 * Capacity of buffer between readers and sender.
+		 */
+		QUEUE_SIZE("Lines buffered between readers and sender", "65536"),
+		/**
+		 * Limit of a single line.
+		 */
+		MAX_LINE_LENGTH("Maximum bytes per line, 0 for unlimited", "1048576"),
+		/**
+		 * Handling of lines above the limit.
+		 */
+		OVERSIZED_LINES("One of split (send in parts) or truncate (drop the end)", "split"),
+		/**
+		 * Limit of buffered lines.
+		 */
+		MEMORY_BUDGET("Maximum megabytes of incomplete and queued lines, 0 for unlimited", "256"),
+		/**
+		 * Maximum lines per network write.
+		 */
+		BATCH_SIZE("Maximum lines per network write", "512"),
+		/**
+		 * Delay for batches to fill.
+		 */
+		LINGER("Milliseconds to wait for a batch to fill", "5"),
+		/**
+		 * Compression of batches.
+		 */
+		COMPRESSION("One of none, deflate or lz", "none"),
+		/**
+		 * Batches in flight before waiting for acknowledgements.
+		 */
+		ACK_WINDOW("Batches sent before waiting for the target to acknowledge them, 0 to not wait for acknowledgements", "0"),
+		/**
+		 * Storage for lines while the log server is unreachable.
+		 */
+		SPOOL_DIRECTORY("Directory to store lines in while the target is unreachable", ""),
+		/**
+		 * Limit of stored lines.
+		 */
+		SPOOL_SIZE("Maximum megabytes of stored lines", "1024"),
+		/**
+		 * Beginning of multiline events.
+		 */
+		MULTILINE_START("Regular expression matching the start of lines that begin an event", ""),
+		/**
+		 * Limit of lines joined to an event.
+		 */
+		MULTILINE_MAX_LINES("Maximum lines per event", "500"),
+		/**
+		 * Limit of bytes joined to an event.
+		 */
+		MULTILINE_MAX_BYTES("Maximum bytes per event", "65536"),
+		/**
+		 * Delay for continuation lines.
+		 */
+		MULTILINE_TIMEOUT("Milliseconds to wait for further lines of an event", "1000"),
+		/**
+		 * Lines to send.
+		 */
+		INCLUDE("Pattern of lines to send, others are dropped", ""),
+		/**
+		 * Lines to drop.
+		 */
+		EXCLUDE("Pattern of lines to drop", ""),
+		/**
+		 * Detection of repeated lines.
+		 */
+		COLLAPSE_REPEATS("One of none, exact or digits (lines differing in digits only are repeats)", "none"),
+		/**
+		 * Rate above which lines are sampled.
+		 */
+		SAMPLE_THRESHOLD("Lines per second and file above which lines are sampled, 0 to send all", "0"),
+		/**
+		 * Sampling rate.
+		 */
+		SAMPLE_RATIO("Send one of this many lines while sampling", "10"),
+		/**
+		 * Detection of line levels per file.
+		 */
+		SEVERITY("One of none, prefix (level starts the line) or token (first level word near the line start), given once per file or once for all", "none"),
+		/**
+		 * Lines sent before others.
+		 */
+		PRIORITY_LEVEL("Lowest level of lines sent before others, for example ERROR, or OFF to send all lines in order", "ERROR"),
+		/**
+		 * Logging of ship latencies.
+		 */
+		LATENCY_REPORT("Seconds between logging latency percentiles of shipping, 0 to not log them", "0");
 
 		/**
 		 * Hint, displayed in usage message.
@@ -82,6 +213,22 @@ public class Main {
 	 */
 	private static List<String> arguments;
 
+	/**
+	 * Pattern matching lines that begin an event. {@code null} to send every
+	 * line as an event.
+	 */
+	private static Pattern multilineStart;
+
+	/**
+	 * Decides which lines are sent. {@code null} to send all lines.
+	 */
+	private static LineFilter filter;
+
+	/**
+	 * Limits of lines sent during bursts. {@code null} to send all lines.
+	 */
+	private static BurstLimits burstLimits;
+
 	public static void main(String[] args) throws IOException {
 		arguments = Arrays.asList(args);
 
@@ -113,24 +260,316 @@ public class Main {
 		}
 
 		// Configure target or log messages according to command line.
-		logConfig.put("log4j.appender.shipperSocket.remoteHost", get(arg.HOST));
-		logConfig.put("log4j.appender.shipperSocket.port", get(arg.PORT));
+		boolean appender = "appender".equals(get(arg.TRANSPORT));
+		List<String> hosts = new ArrayList<>();
+		for (String list : getAll(arg.HOST)) {
+			for (String host : list.split(",")) {
+				if (!host.trim().isEmpty()) {
+					hosts.add(host.trim());
+				}
+			}
+		}
+		if (appender && hosts.size() != 1) {
+			System.err
+					.println("Transport appender supports a single host only.");
+			System.exit(1);
+		}
+		if (!hosts.isEmpty()) {
+			InetSocketAddress address = address(hosts.get(0));
+			logConfig.put("log4j.appender.shipperSocket.remoteHost",
+					address.getHostString());
+			logConfig.put("log4j.appender.shipperSocket.port",
+					String.valueOf(address.getPort()));
+		}
+		String fileLoggers = logConfig.getProperty(
+				"log4j.logger.shipper.Main", "INFO");
+		if (appender && !fileLoggers.contains(",")) {
+			// Use socket appender unless the configuration names appenders
+			// for file contents.
+			logConfig.put("log4j.logger.shipper.Main", fileLoggers
+					+ ", shipperSocket");
+		}
 		PropertyConfigurator.configure(logConfig);
 
+		// Any of the given patterns begins an event.
+		StringBuilder starts = new StringBuilder();
+		for (String start : getAll(arg.MULTILINE_START)) {
+			if (!start.isEmpty()) {
+				starts.append(starts.length() == 0 ? "" : "|").append("(?:")
+						.append(start).append(')');
+			}
+		}
+		if (starts.length() > 0) {
+			multilineStart = Pattern.compile(starts.toString());
+		}
+
+		// Drop lines before they are sent.
+		List<String> includes = getAll(arg.INCLUDE);
+		List<String> excludes = getAll(arg.EXCLUDE);
+		if (!includes.equals(Arrays.asList(""))
+				|| !excludes.equals(Arrays.asList(""))) {
+			filter = new LineFilter(includes, excludes,
+					Charset.forName(get(arg.FILE_ENCODING)));
+			filter.register();
+		}
+		BurstLimits limits = new BurstLimits(
+				BurstLimits.Collapse.valueOf(get(arg.COLLAPSE_REPEATS)
+						.toUpperCase()),
+				Integer.parseInt(get(arg.SAMPLE_THRESHOLD)),
+				Integer.parseInt(get(arg.SAMPLE_RATIO)));
+		if (limits.isLimiting()) {
+			burstLimits = limits;
+			burstLimits.register();
+		}
+
+		// Bound memory of long lines and queued lines.
+		String oversized = get(arg.OVERSIZED_LINES);
+		if (!"split".equals(oversized) && !"truncate".equals(oversized)) {
+			System.err.println("Oversized lines are either split or truncated.");
+			System.exit(1);
+		}
+		new ReadLimits(Integer.parseInt(get(arg.MAX_LINE_LENGTH)),
+				"truncate".equals(oversized), Long.parseLong(get(arg.MEMORY_BUDGET))
+						* 1024 * 1024).install();
+
+		// Ship lines on a separate thread unless log4j appenders are used.
+		Sender sender = null;
+		if (!appender) {
+			if (!"binary".equals(get(arg.TRANSPORT))
+					&& !"none".equals(get(arg.COMPRESSION))) {
+				System.err
+						.println("Compression is only supported by binary transport.");
+				System.exit(1);
+			}
+			int window = Integer.parseInt(get(arg.ACK_WINDOW));
+			if (!"binary".equals(get(arg.TRANSPORT)) && window != 0) {
+				System.err
+						.println("Acknowledgements are only supported by binary transport.");
+				System.exit(1);
+			}
+			// Balance between several log servers.
+			List<Transport> collectors = new ArrayList<>();
+			for (String host : hosts) {
+				InetSocketAddress address = address(host);
+				String name = address.getHostString();
+				int port = address.getPort();
+				if ("binary".equals(get(arg.TRANSPORT))) {
+					collectors.add(new BinaryTransport(name, port, BatchCodec
+							.forName(get(arg.COMPRESSION)), window));
+				} else {
+					collectors.add(new Log4jTransport(name, port));
+				}
+			}
+			Transport transport;
+			if (collectors.size() == 1) {
+				transport = collectors.get(0);
+			} else {
+				BalancingTransport balancing = new BalancingTransport(
+						collectors);
+				balancing.register();
+				transport = balancing;
+			}
+			Spool spool = null;
+			if (!get(arg.SPOOL_DIRECTORY).isEmpty()) {
+				spool = new Spool(Paths.get(get(arg.SPOOL_DIRECTORY)),
+						Spool.SEGMENT_SIZE,
+						Long.parseLong(get(arg.SPOOL_SIZE)) * 1024 * 1024);
+			}
+			Level priority = Level.toLevel(get(arg.PRIORITY_LEVEL), null);
+			if (priority == null) {
+				System.err.println("Unknown priority level "
+						+ get(arg.PRIORITY_LEVEL) + ".");
+				System.exit(1);
+			}
+			sender = new Sender(transport,
+					Integer.parseInt(get(arg.QUEUE_SIZE)),
+					Integer.parseInt(get(arg.BATCH_SIZE)),
+					Long.parseLong(get(arg.LINGER)), spool,
+					priority == Level.OFF ? null : priority);
+			sender.register();
+			sender.start();
+			ShipLatency.register();
+			long report = Long.parseLong(get(arg.LATENCY_REPORT));
+			if (report > 0) {
+				ShipLatency.report(report);
+			}
+		}
+
+		// Restore read positions of earlier runs.
+		CheckpointStore checkpoints = null;
+		if (!get(arg.CHECKPOINT_FILE).isEmpty()) {
+			checkpoints = new CheckpointStore(
+					Paths.get(get(arg.CHECKPOINT_FILE)),
+					Long.parseLong(get(arg.CHECKPOINT_INTERVAL)));
+			final CheckpointStore committedOnExit = checkpoints;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						committedOnExit.close();
+					} catch (IOException e) {
+						ShipperLogger.error("Failed to store checkpoints.", e);
+					}
+				}
+			});
+		}
+
 		// Monitor given files.
+		boolean poll = "poll".equals(get(arg.MONITOR));
+		boolean shared = poll || "shared".equals(get(arg.MONITOR));
+		boolean virtual = "virtual".equals(get(arg.THREADS));
+		if (virtual && !Threads.isVirtualSupported()) {
+			ShipperLogger.info("Virtual threads require Java 21 or later, using platform threads.");
+			virtual = false;
+		}
+		Backfill.start(Integer.parseInt(get(arg.BACKFILL_THREADS)));
+		long debounce = Long.parseLong(get(arg.DEBOUNCE));
+		WatchDispatcher dispatcher = null;
+		if (shared) {
+			dispatcher = new WatchDispatcher(FileSystems.getDefault(),
+					Integer.parseInt(get(arg.READER_THREADS)), poll, virtual,
+					debounce);
+		}
+		List<Thread> monitors = new ArrayList<>();
+		final boolean skip = Boolean.valueOf(get(arg.SKIP));
+		final Charset encoding = Charset.forName(get(arg.FILE_ENCODING));
+		final Sender lineSender = sender;
+		// Positions advance over delivered lines only, appenders give no
+		// feedback.
+		final CheckpointStore deliveries = sender == null ? null
+				: checkpoints;
+		// Every file gets its own id, even if found by a pattern.
+		final AtomicInteger fileIds = new AtomicInteger();
+		List<String> severities = getAll(arg.SEVERITY);
 		int fileIndex = 0;
 		for (final String file : getAll(arg.FILE)) {
-			Thread monitor = new FileListenerThread(
-					Paths.get(file),
-					// Append file index to logger hierarchy so files can be
-					// forwarded differently.
-					Logger.getLogger("shipper.Main." + fileIndex),
-					Charset.forName(get(arg.FILE_ENCODING)),
-					Boolean.valueOf(get(arg.SKIP)));
-			monitor.start();
+			// Append file index to logger hierarchy so files can be forwarded
+			// differently.
+			final Logger logger = Logger.getLogger("shipper.Main." + fileIndex);
+			// Last given detection applies to remaining files.
+			SeverityClassifier.Match match = SeverityClassifier.Match
+					.valueOf(severities.get(
+							Math.min(fileIndex, severities.size() - 1))
+							.toUpperCase());
+			final SeverityClassifier severity = new SeverityClassifier(match,
+					encoding);
+			if (match != SeverityClassifier.Match.NONE
+					&& !severity.isClassifying()) {
+				ShipperLogger.info("Levels of lines in " + encoding
+						+ " are not detected, sending " + file
+						+ " at level INFO.");
+			}
+			List<Path> paths;
+			if (!GlobPattern.isPattern(file)) {
+				paths = Arrays.asList(Paths.get(file));
+			} else if (shared) {
+				dispatcher.monitor(file, encoding,
+						new WatchDispatcher.ListenerFactory() {
+							@Override
+							public FileModificationListener create(Path path,
+									boolean existing) {
+								LineSource source = new LineSource(fileIds
+										.getAndIncrement(), path, logger,
+										encoding, deliveries, severity);
+								// Files created later on are sent completely.
+								return listen(source, skip && existing,
+										lineSender);
+							}
+						}, checkpoints);
+				paths = Collections.emptyList();
+			} else {
+				ShipperLogger.info("Only monitoring files matching " + file
+						+ " that exist now. Use --monitor shared to find new files.");
+				paths = new GlobPattern(FileSystems.getDefault(), file)
+						.findMatches();
+			}
+
+			for (Path path : paths) {
+				LineSource source = new LineSource(fileIds.getAndIncrement(),
+						path, logger, encoding, deliveries, severity);
+				FileModificationListener listener = listen(source, skip,
+						sender);
+				if (shared) {
+					dispatcher.monitor(source.path, source.encoding, listener,
+							checkpoints);
+				} else {
+					Thread monitor = Threads.create("Monitor on " + source.path,
+							new FileListenerThread(source, listener,
+									checkpoints, debounce), false, virtual);
+					monitor.start();
+					monitors.add(monitor);
+				}
+			}
 
 			fileIndex = fileIndex + 1;
 		}
+		if (shared) {
+			dispatcher.start();
+		}
+
+		// Virtual threads do not keep the program alive.
+		try {
+			for (Thread monitor : monitors) {
+				monitor.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates the handler for lines of a file.
+	 * 
+	 * @param source
+	 *            Monitored file.
+	 * @param skip
+	 *            When {@code true}, ignore the current file content.
+	 * @param sender
+	 *            Target for content forwarding. {@code null} to pass lines to
+	 *            the appenders of the source's logger.
+	 * @return Handler passing lines to the target, joining lines of multiline
+	 *         events, dropping filtered events and limiting bursts if
+	 *         configured.
+	 */
+	private static FileModificationListener listen(LineSource source,
+			boolean skip, Sender sender) {
+		FileModificationListener listener = new ForwardingListener(source,
+				skip, sender);
+		if (burstLimits != null) {
+			listener = new BurstLimiter(listener, burstLimits,
+					source.encoding);
+		}
+		if (filter != null) {
+			listener = new FilteringListener(listener, filter);
+		}
+		if (multilineStart != null) {
+			listener = new MultilineAggregator(listener, multilineStart,
+					Integer.parseInt(get(arg.MULTILINE_MAX_LINES)),
+					Integer.parseInt(get(arg.MULTILINE_MAX_BYTES)),
+					Long.parseLong(get(arg.MULTILINE_TIMEOUT)), source.encoding);
+		}
+		return listener;
+	}
+
+	/**
+	 * @param host
+	 *            Host name or address of a log server, optionally with a port
+	 *            as in {@code host:4560} or {@code [::1]:4560}.
+	 * @return Unresolved address of the log server. Uses the port given by
+	 *         {@code --port} unless the host names one.
+	 */
+	private static InetSocketAddress address(String host) {
+		String name = host;
+		int port = Integer.parseInt(get(arg.PORT));
+		int colon = host.lastIndexOf(':');
+		if (colon > host.lastIndexOf(']')
+				&& (host.startsWith("[") || colon == host.indexOf(':'))) {
+			name = host.substring(0, colon);
+			port = Integer.parseInt(host.substring(colon + 1));
+		}
+		// IPv6 addresses in brackets.
+		name = name.replaceFirst("^\\[(.*)\\]$", "$1");
+		return InetSocketAddress.createUnresolved(name, port);
 	}
 
 	/**
@@ -0,0 +1,124 @@
+package shipper;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts occurrences and their rate per second, averaged exponentially over
+ * about a minute.
+ * <p>
+ * Counting only adds to a {@link LongAdder}, so concurrent readers do not
+ * contend for a shared counter. The rate is updated every
+ * {@link #TICK_INTERVAL} seconds by a single thread shared by all meters.
+ */
+public class Meter {
+	/**
+	 * Seconds between rate updates.
+	 */
+	static final int TICK_INTERVAL = 5;
+
+	/**
+	 * Weight of the latest interval in the rate. Older intervals fade out
+	 * within a minute.
+	 */
+	private static final double ALPHA = 1 - Math.exp(-TICK_INTERVAL / 60.0);
+
+	/**
+	 * Meters to update the rates of.
+	 */
+	private static final Set<Meter> METERS = ConcurrentHashMap.newKeySet();
+
+	static {
+		ScheduledExecutorService ticker = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread ticker = new Thread(r, "Meter ticker");
+						ticker.setDaemon(true);
+						return ticker;
+					}
+				});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				for (Meter meter : METERS) {
+					meter.tick();
+				}
+			}
+		}, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Occurrences since creation.
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * Occurrences since the last rate update.
+	 */
+	private final LongAdder uncounted = new LongAdder();
+
+	/**
+	 * Occurrences per second.
+	 */
+	private volatile double rate = 0;
+
+	/**
+	 * {@code true} once the rate was updated for the first time.
+	 */
+	private boolean initialized = false;
+
+	public Meter() {
+		METERS.add(this);
+	}
+
+	/**
+	 * Counts occurrences.
+	 * 
+	 * @param n
+	 *            Number of occurrences.
+	 */
+	public void mark(long n) {
+		count.add(n);
+		uncounted.add(n);
+	}
+
+	/**
+	 * @return Occurrences since creation.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return Occurrences per second, averaged over about a minute.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Stops updating the rate so the meter can be garbage collected.
+	 */
+	public void stop() {
+		METERS.remove(this);
+	}
+
+	/**
+	 * Includes the occurrences of the last {@link #TICK_INTERVAL} in the rate.
+	 */
+	void tick() {
+		double current = uncounted.sumThenReset() / (double) TICK_INTERVAL;
+		if (initialized) {
+			rate = rate + ALPHA * (current - rate);
+		} else {
+			rate = current;
+			initialized = true;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package shipper;
+
+import static shipper.ShipperLogger.error;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Publishes metrics via JMX, for example to be read by {@code jconsole} or a
+ * JMX exporter. All names are in the domain {@code shipper}.
+ */
+public final class Metrics {
+	private Metrics() {
+	}
+
+	/**
+	 * Registers an MBean with the platform MBean server. Failures are logged
+	 * only as metrics are not essential for shipping.
+	 * 
+	 * @param mbean
+	 *            Standard MBean.
+	 * @param properties
+	 *            Key properties of the name such as {@code type=Sender}.
+	 * @return Name of the MBean or {@code null} if it could not be registered.
+	 */
+	public static ObjectName register(Object mbean, String properties) {
+		try {
+			ObjectName name = new ObjectName("shipper:" + properties);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+					name);
+			return name;
+		} catch (JMException e) {
+			error("Failed to publish metrics " + properties + ".", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Removes an MBean from the platform MBean server.
+	 * 
+	 * @param name
+	 *            Name returned by {@link #register(Object, String)}. Nothing
+	 *            is done for {@code null}.
+	 */
+	public static void unregister(ObjectName name) {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			error("Failed to remove metrics " + name + ".", e);
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package shipper;
+
+import static shipper.ShipperLogger.error;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of a single file monitored by a {@link WatchDispatcher}.
+ * <p>
+ * Reads are requested by {@link #schedule()} and run on a shared executor. At
+ * most one read per file is queued or running at any time. Requests arriving
+ * during a read cause exactly one follow-up read. Files that were not modified
+ * for {@link #IDLE_TIMEOUT} can be closed by {@link #releaseIfIdle()} and get
+ * reopened by the next read.
+ * <p>
+ * With a debounce window, {@link #modified()} delays the read until the window
+ * passed, so all modifications within the window share a single read. Busy
+ * files are then read once per window in large chunks instead of once per
+ * write.
+ */
+public class MonitoredFile implements Runnable {
+	/**
+	 * Thread requesting delayed reads. Shared by all files.
+	 */
+	private static final ScheduledExecutorService DEBOUNCER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread debouncer = new Thread(r, "Modification debouncer");
+					debouncer.setDaemon(true);
+					return debouncer;
+				}
+			});
+
+	/**
+	 * Nanoseconds without modifications after which a file is idle.
+	 */
+	static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(5);
+
+	/**
+	 * No read requested.
+	 */
+	private static final int IDLE = 0;
+
+	/**
+	 * Read is queued on the executor.
+	 */
+	private static final int SCHEDULED = 1;
+
+	/**
+	 * Read is running.
+	 */
+	private static final int READING = 2;
+
+	/**
+	 * Read is running and another read was requested meanwhile.
+	 */
+	private static final int READING_RESCHEDULED = 3;
+
+	/**
+	 * Monitored path.
+	 */
+	final Path path;
+
+	/**
+	 * Encoding for reading the file.
+	 */
+	private final Charset encoding;
+
+	/**
+	 * Handler for detected events.
+	 */
+	private final FileModificationListener listener;
+
+	/**
+	 * Reader of file contents.
+	 */
+	private final FileMonitor monitor;
+
+	/**
+	 * Registry of read positions or {@code null} if positions are not kept.
+	 */
+	private final CheckpointStore checkpoints;
+
+	/**
+	 * Reading progress published via JMX.
+	 */
+	private final FileStats stats;
+
+	/**
+	 * Executor for reads.
+	 */
+	private final Executor readers;
+
+	/**
+	 * Nanoseconds to collect modifications before reading. {@code 0} to read
+	 * at once.
+	 */
+	private final long debounce;
+
+	/**
+	 * {@code true} while a delayed read is pending.
+	 */
+	private final AtomicBoolean debouncing = new AtomicBoolean();
+
+	/**
+	 * Requests the delayed read once the debounce window passed.
+	 */
+	private final Runnable debounced = new Runnable() {
+		@Override
+		public void run() {
+			debouncing.set(false);
+			enqueue();
+		}
+	};
+
+	/**
+	 * Read state, one of {@link #IDLE}, {@link #SCHEDULED}, {@link #READING}
+	 * and {@link #READING_RESCHEDULED}.
+	 */
+	private final AtomicInteger state = new AtomicInteger(IDLE);
+
+	/**
+	 * {@code true} after the initial state of the path was reported.
+	 */
+	private boolean started = false;
+
+	/**
+	 * {@link System#nanoTime()} of the last read request.
+	 */
+	private volatile long lastRequest = System.nanoTime();
+
+	/**
+	 * {@link System#nanoTime()} of the first read request since the last
+	 * read or {@code 0} if there was none.
+	 */
+	private final AtomicLong firstRequest = new AtomicLong();
+
+	/**
+	 * {@code true} if the file shall be closed instead of read, unless read
+	 * requests arrived meanwhile.
+	 */
+	private final AtomicBoolean releaseRequested = new AtomicBoolean();
+
+	/**
+	 * {@code true} while the file is closed due to inactivity.
+	 */
+	private volatile boolean released = false;
+
+	/**
+	 * {@code true} once the file is no longer monitored.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Closest existing directory that is watched on behalf of this file.
+	 * Maintained by the dispatcher.
+	 */
+	Path watched;
+
+	/**
+	 * Pattern this file was found by. {@code null} for files that were named
+	 * explicitly. Maintained by the dispatcher.
+	 */
+	GlobPattern glob;
+
+	/**
+	 * @param path
+	 *            Path to monitor.
+	 * @param encoding
+	 *            Encoding for reading the file.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @param checkpoints
+	 *            Persisted read positions. May be {@code null}.
+	 * @param readers
+	 *            Executor for reads.
+	 */
+	public MonitoredFile(Path path, Charset encoding,
+			FileModificationListener listener, CheckpointStore checkpoints,
+			Executor readers) {
+		this(path, encoding, listener, checkpoints, readers, 0);
+	}
+
+	/**
+	 * @param path
+	 *            Path to monitor.
+	 * @param encoding
+	 *            Encoding for reading the file.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @param checkpoints
+	 *            Persisted read positions. May be {@code null}.
+	 * @param readers
+	 *            Executor for reads.
+	 * @param debounce
+	 *            Milliseconds to collect modifications before reading.
+	 *            {@code 0} to read at once.
+	 */
+	public MonitoredFile(Path path, Charset encoding,
+			FileModificationListener listener, CheckpointStore checkpoints,
+			Executor readers, long debounce) {
+		this.path = path;
+		this.encoding = encoding;
+		this.listener = listener;
+		this.stats = new FileStats(path);
+		this.checkpoints = checkpoints;
+		this.monitor = new FileMonitor(checkpoints, stats);
+		this.readers = readers;
+		this.debounce = TimeUnit.MILLISECONDS.toNanos(debounce);
+		stats.register();
+	}
+
+	/**
+	 * Requests the file to be examined.
+	 */
+	public void schedule() {
+		lastRequest = System.nanoTime();
+		firstRequest.compareAndSet(0, lastRequest);
+		released = false;
+		enqueue();
+	}
+
+	/**
+	 * Requests the file to be examined after a modification. Waits for the
+	 * debounce window to pass, unless a read is pending already.
+	 */
+	public void modified() {
+		stats.notified();
+		if (debounce == 0) {
+			schedule();
+			return;
+		}
+		lastRequest = System.nanoTime();
+		// Later notifications of the window do not delay detection.
+		firstRequest.compareAndSet(0, lastRequest);
+		released = false;
+		if (debouncing.compareAndSet(false, true)) {
+			DEBOUNCER.schedule(debounced, debounce, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Closes the file if it was not modified for {@link #IDLE_TIMEOUT}.
+	 */
+	public void releaseIfIdle() {
+		if (!released && System.nanoTime() - lastRequest >= IDLE_TIMEOUT) {
+			releaseRequested.set(true);
+			enqueue();
+		}
+	}
+
+	/**
+	 * Stops publishing the reading progress once the file is no longer
+	 * monitored and frees its checkpoint slot. The file and its buffers are
+	 * released by the reader.
+	 */
+	public void close() {
+		stats.unregister();
+		if (checkpoints != null) {
+			checkpoints.release(path);
+		}
+		closed = true;
+		enqueue();
+	}
+
+	/**
+	 * Queues a read unless one is pending.
+	 */
+	private void enqueue() {
+		while (true) {
+			int current = state.get();
+			if (current == IDLE) {
+				if (state.compareAndSet(IDLE, SCHEDULED)) {
+					readers.execute(this);
+					return;
+				}
+			} else if (current == READING) {
+				if (state.compareAndSet(READING, READING_RESCHEDULED)) {
+					return;
+				}
+			} else {
+				// Pending read will see all changes.
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if the monitored file is directly within the watched
+	 *         directory.
+	 */
+	boolean isWatchingParent() {
+		return path.getParent().equals(watched);
+	}
+
+	/**
+	 * Examines the file. Repeats in case further reads were requested
+	 * meanwhile.
+	 */
+	@Override
+	public void run() {
+		do {
+			state.set(READING);
+			// Requests from now on are served by the next read.
+			long requested = firstRequest.getAndSet(0);
+			try {
+				if (closed) {
+					monitor.close();
+				} else if (releaseRequested.getAndSet(false)
+						&& System.nanoTime() - lastRequest >= IDLE_TIMEOUT) {
+					monitor.release();
+					released = true;
+				} else if (!started) {
+					started = true;
+					monitor.begin(path, listener);
+					if (Files.exists(path)) {
+						monitor.examineFile(path, encoding, listener);
+					}
+				} else {
+					monitor.requested = requested != 0 ? requested
+							: lastRequest;
+					monitor.examineFile(path, encoding, listener);
+				}
+			} catch (IOException | RuntimeException e) {
+				error("Failed to read " + path
+						+ ". Please file an issue including the dumped stack.",
+						e);
+			}
+		} while (!state.compareAndSet(READING, IDLE));
+	}
+}
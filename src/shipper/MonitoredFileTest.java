@@ -0,0 +1,92 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MonitoredFileTest {
+
+	@Test
+	public void debounce() throws IOException, InterruptedException {
+		final AtomicInteger reads = new AtomicInteger();
+		Executor counting = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				reads.incrementAndGet();
+				command.run();
+			}
+		};
+		final List<String> lines = Collections
+				.synchronizedList(new ArrayList<String>());
+		final List<Long> detected = Collections
+				.synchronizedList(new ArrayList<Long>());
+		Path path = Files.createTempFile(null, null);
+		try {
+			MonitoredFile file = new MonitoredFile(path,
+					Charset.forName("UTF-8"), new LineSliceListener() {
+						@Override
+						public void noSuchFile(Path path) {
+						}
+
+						@Override
+						public void lineAdded(Path path, LineSlice line) {
+							detected.add(line.detected());
+							lines.add(line.chars().toString());
+						}
+
+						@Override
+						public void lineAdded(Path path, String lineContent) {
+							lines.add(lineContent);
+						}
+
+						@Override
+						public void fileRotated(Path path) {
+						}
+
+						@Override
+						public void resumed(Path path, long position) {
+						}
+
+						@Override
+						public void completelyRead(Path path) {
+						}
+					}, null, counting, 200);
+			file.schedule();
+			org.junit.Assert.assertEquals(1, reads.get());
+
+			// Modifications within the window share a read.
+			long first = System.nanoTime();
+			long last = 0;
+			for (int line = 0; line < 20; line = line + 1) {
+				Files.write(path, ("line " + line + "\n").getBytes(),
+						StandardOpenOption.APPEND);
+				last = System.nanoTime();
+				file.modified();
+			}
+			org.junit.Assert.assertEquals(1, reads.get());
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (lines.size() < 20 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			org.junit.Assert.assertEquals(20, lines.size());
+			org.junit.Assert.assertEquals(2, reads.get());
+
+			// Detection is the first notification of the window.
+			org.junit.Assert.assertTrue(detected.get(19) >= first);
+			org.junit.Assert.assertTrue(detected.get(19) < last);
+			file.close();
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Joins continuation lines with the line that started their event, such as
+ * the lines of a stack trace with the log message before it. Passes one line
+ * per event to the next listener.
+ * <p>
+ * A line starts a new event if it matches the start pattern. Any other line
+ * is appended to the pending event, separated by a line feed. An event is
+ * passed on when the next event starts, when it reached the maximum number of
+ * lines or bytes, when the file changes and when no further line arrived
+ * within the timeout. Pending events are kept in memory only, so checkpoints
+ * stay before them and they are read again if the program stops within the
+ * timeout.
+ */
+public class MultilineAggregator implements LineSliceListener,
+		HoldingListener {
+	/**
+	 * Thread passing on events that timed out. Shared by all aggregators.
+	 */
+	private static final ScheduledExecutorService FLUSHER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread flusher = new Thread(r, "Multiline flusher");
+					flusher.setDaemon(true);
+					return flusher;
+				}
+			});
+
+	/**
+	 * Receiver of joined events.
+	 */
+	private final FileModificationListener next;
+
+	/**
+	 * Pattern matching the beginning of lines that start an event.
+	 */
+	private final Pattern start;
+
+	/**
+	 * Maximum lines per event.
+	 */
+	private final int maxLines;
+
+	/**
+	 * Maximum bytes per event. Exceeded by single lines only.
+	 */
+	private final int maxBytes;
+
+	/**
+	 * Nanoseconds a pending event waits for further lines.
+	 */
+	private final long timeout;
+
+	/**
+	 * Encoding of file content.
+	 */
+	private final Charset encoding;
+
+	/**
+	 * Encoded line feed separating joined lines.
+	 */
+	private final byte[] separator;
+
+	/**
+	 * Content of pending event.
+	 */
+	private byte[] event = new byte[1024];
+
+	/**
+	 * Bytes of pending event.
+	 */
+	private int length = 0;
+
+	/**
+	 * Lines of pending event. 0 if no event is pending.
+	 */
+	private int lines = 0;
+
+	/**
+	 * Position of the first line of the pending event.
+	 */
+	private long offset;
+
+	/**
+	 * {@link System#nanoTime()} the first line of the pending event was
+	 * detected at or {@code 0} if unknown.
+	 */
+	private long detected;
+
+	/**
+	 * {@link System#nanoTime()} the first line of the pending event was read
+	 * at or {@code 0} if unknown.
+	 */
+	private long read;
+
+	/**
+	 * Path of the pending event.
+	 */
+	private Path path;
+
+	/**
+	 * {@link System#nanoTime()} of the last line of the pending event.
+	 */
+	private long lastLine;
+
+	/**
+	 * Guards the pending event against concurrent timeout checks. Not a
+	 * monitor, so a reader waiting for the sender while passing an event on
+	 * does not pin the carrier of a virtual thread.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * {@code true} while a timeout check is scheduled.
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * {@code true} after the file was read completely for the first time.
+	 */
+	private boolean started = false;
+
+	/**
+	 * Passes pending events to {@link #next}.
+	 */
+	private final LineSlice slice;
+
+	/**
+	 * Passes on the pending event if it timed out, otherwise checks again
+	 * later.
+	 */
+	private final Runnable timeoutCheck = new Runnable() {
+		@Override
+		public void run() {
+			lock.lock();
+			try {
+				flushScheduled = false;
+				if (lines == 0) {
+					return;
+				}
+				long remaining = lastLine + timeout - System.nanoTime();
+				if (remaining <= 0) {
+					flush();
+				} else {
+					scheduleFlush(remaining);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	};
+
+	/**
+	 * @param next
+	 *            Receiver of joined events.
+	 * @param start
+	 *            Pattern matching the beginning of lines that start an event.
+	 * @param maxLines
+	 *            Maximum lines per event.
+	 * @param maxBytes
+	 *            Maximum bytes per event.
+	 * @param timeout
+	 *            Milliseconds a pending event waits for further lines.
+	 * @param encoding
+	 *            Encoding of file content.
+	 */
+	public MultilineAggregator(FileModificationListener next, Pattern start,
+			int maxLines, int maxBytes, long timeout, Charset encoding) {
+		this.next = next;
+		this.start = start;
+		this.maxLines = maxLines;
+		this.maxBytes = maxBytes;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.encoding = encoding;
+		this.separator = LineFramer.encodeUnit(encoding, '\n');
+		this.slice = new LineSlice(encoding.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE));
+	}
+
+	@Override
+	public void lineAdded(Path path, LineSlice line) {
+		lock.lock();
+		try {
+			add(path, line.bytes(), line.chars(), line.offset(),
+					line.detected(), line.read());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void lineAdded(Path path, String lineContent) {
+		lock.lock();
+		try {
+			add(path, ByteBuffer.wrap(lineContent.getBytes(encoding)),
+					lineContent, -1, 0, 0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long heldOffset(Path path) {
+		lock.lock();
+		try {
+			if (lines > 0 && offset >= 0) {
+				return offset;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return next instanceof HoldingListener ? ((HoldingListener) next)
+				.heldOffset(path) : -1;
+	}
+
+	@Override
+	public void completelyRead(Path file) {
+		lock.lock();
+		try {
+			if (!started) {
+				// Events of existing content end with it, pass them on while
+				// the next listener might still skip them.
+				started = true;
+				flush();
+			}
+			next.completelyRead(file);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void noSuchFile(Path path) {
+		lock.lock();
+		try {
+			flush();
+			next.noSuchFile(path);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void fileRotated(Path path) {
+		lock.lock();
+		try {
+			flush();
+			next.fileRotated(path);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void resumed(Path path, long position) {
+		lock.lock();
+		try {
+			flush();
+			next.resumed(path, position);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a line to the pending event or starts a new event with it.
+	 * 
+	 * @param path
+	 *            Monitored path.
+	 * @param content
+	 *            Encoded line between position and limit.
+	 * @param chars
+	 *            Decoded line.
+	 * @param lineOffset
+	 *            Position of the line within the file.
+	 * @param lineDetected
+	 *            {@link System#nanoTime()} the line was detected at or
+	 *            {@code 0} if unknown.
+	 * @param lineRead
+	 *            {@link System#nanoTime()} the line was read at or {@code 0}
+	 *            if unknown.
+	 */
+	private void add(Path path, ByteBuffer content, CharSequence chars,
+			long lineOffset, long lineDetected, long lineRead) {
+		if (lines > 0
+				&& (start.matcher(chars).lookingAt() || lines >= maxLines || length
+						+ separator.length + content.remaining() > maxBytes)) {
+			flush();
+		}
+
+		if (lines == 0) {
+			this.path = path;
+			offset = lineOffset;
+			detected = lineDetected;
+			read = lineRead;
+		} else {
+			append(ByteBuffer.wrap(separator));
+		}
+		append(content);
+		lines = lines + 1;
+		lastLine = System.nanoTime();
+		if (!flushScheduled) {
+			scheduleFlush(timeout);
+		}
+	}
+
+	/**
+	 * Passes on the pending event.
+	 */
+	private void flush() {
+		if (lines == 0) {
+			return;
+		}
+		lines = 0;
+		if (next instanceof LineSliceListener) {
+			slice.set(ByteBuffer.wrap(event), 0, length, offset);
+			slice.timed(detected, read);
+			((LineSliceListener) next).lineAdded(path, slice);
+		} else {
+			next.lineAdded(path, new String(event, 0, length, encoding));
+		}
+		length = 0;
+		if (event.length > maxBytes) {
+			// Do not keep the memory of oversized events.
+			event = new byte[1024];
+		}
+	}
+
+	/**
+	 * Adds bytes to the pending event.
+	 * 
+	 * @param content
+	 *            Bytes between position and limit.
+	 */
+	private void append(ByteBuffer content) {
+		int required = length + content.remaining();
+		if (required > event.length) {
+			byte[] larger = new byte[Math.max(required, event.length * 2)];
+			System.arraycopy(event, 0, larger, 0, length);
+			event = larger;
+		}
+		content.get(event, length, content.remaining());
+		length = required;
+	}
+
+	/**
+	 * Checks for timed out events later.
+	 * 
+	 * @param delay
+	 *            Nanoseconds until the check.
+	 */
+	private void scheduleFlush(long delay) {
+		flushScheduled = true;
+		FLUSHER.schedule(timeoutCheck, delay, TimeUnit.NANOSECONDS);
+	}
+}
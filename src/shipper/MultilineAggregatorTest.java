@@ -0,0 +1,95 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class MultilineAggregatorTest {
+
+	@Test
+	public void test() throws InterruptedException {
+		final List<String> events = new ArrayList<>();
+		FileModificationListener collector = new FileModificationListener() {
+			@Override
+			public synchronized void lineAdded(Path file, String lineContent) {
+				events.add(lineContent);
+			}
+
+			@Override
+			public void completelyRead(Path file) {
+			}
+
+			@Override
+			public void noSuchFile(Path file) {
+			}
+
+			@Override
+			public void fileRotated(Path file) {
+			}
+
+			@Override
+			public void resumed(Path file, long position) {
+			}
+		};
+		Path path = Paths.get("a.log");
+		MultilineAggregator aggregator = new MultilineAggregator(collector,
+				Pattern.compile("\\d{4}-"), 3, 1000, 50,
+				Charset.forName("UTF-16LE"));
+
+		aggregator.lineAdded(path, "2024-01-01 first");
+		aggregator.lineAdded(path, "java.lang.Exception");
+		aggregator.lineAdded(path, "\tat Main.main");
+		// Exceeds maximum lines.
+		aggregator.lineAdded(path, "\tat Thread.run");
+		aggregator.lineAdded(path, "2024-01-01 second");
+		org.junit.Assert.assertEquals(Arrays.asList(
+				"2024-01-01 first\njava.lang.Exception\n\tat Main.main",
+				"\tat Thread.run"), events);
+
+		// Pending event is passed on after the timeout.
+		Thread.sleep(500);
+		synchronized (collector) {
+			org.junit.Assert.assertEquals("2024-01-01 second", events.get(2));
+		}
+
+		// Events end with their file.
+		aggregator.lineAdded(path, "2024-01-01 third");
+		aggregator.fileRotated(path);
+		org.junit.Assert.assertEquals("2024-01-01 third", events.get(3));
+	}
+
+	@Test
+	public void heldOffset() {
+		Charset encoding = Charset.forName("UTF-8");
+		MultilineAggregator aggregator = new MultilineAggregator(
+				new TestSupport.CollectingListener(),
+				Pattern.compile("\\d{4}-"), 10, 1000, 60000, encoding);
+		Path path = Paths.get("a.log");
+		org.junit.Assert.assertEquals(-1, aggregator.heldOffset(path));
+
+		LineSlice slice = new LineSlice(encoding.newDecoder());
+		byte[] content = ("2024-01-01 first\njava.lang.Exception\n"
+				+ "2024-01-01 second\n").getBytes(encoding);
+		ByteBuffer view = ByteBuffer.wrap(content);
+		slice.set(view, 0, 16, 100);
+		aggregator.lineAdded(path, slice);
+		slice.set(view, 17, 36, 117);
+		aggregator.lineAdded(path, slice);
+		// Checkpoints must stay before the first line of the pending event.
+		org.junit.Assert.assertEquals(100, aggregator.heldOffset(path));
+
+		slice.set(view, 37, 54, 137);
+		aggregator.lineAdded(path, slice);
+		org.junit.Assert.assertEquals(137, aggregator.heldOffset(path));
+
+		aggregator.fileRotated(path);
+		org.junit.Assert.assertEquals(-1, aggregator.heldOffset(path));
+	}
+}
@@ -0,0 +1,135 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Cached metadata of a file that is monitored by polling.
+ * <p>
+ * A poll only reads the file attributes and compares existence, size,
+ * modification time and identity with the previous poll, so unchanged files
+ * are never opened. The interval until the next poll starts at
+ * {@link #MIN_INTERVAL} after a change and doubles with every unchanged poll
+ * up to {@link #MAX_INTERVAL}, so busy files are read with low latency while
+ * idle files cost little.
+ */
+public class PolledFile {
+	/**
+	 * Milliseconds between polls of a file that just changed.
+	 */
+	static final long MIN_INTERVAL = 5;
+
+	/**
+	 * Milliseconds between polls of an idle file.
+	 */
+	static final long MAX_INTERVAL = 2000;
+
+	/**
+	 * Polled path.
+	 */
+	final Path path;
+
+	/**
+	 * Action to run when the file changed. May be {@code null}.
+	 */
+	final Runnable onChange;
+
+	/**
+	 * {@code true} if a regular file existed at the last poll.
+	 */
+	private boolean exists;
+
+	/**
+	 * Size at the last poll.
+	 */
+	private long size;
+
+	/**
+	 * Modification time at the last poll.
+	 */
+	private FileTime lastModified;
+
+	/**
+	 * Identity at the last poll.
+	 */
+	private Object fileKey;
+
+	/**
+	 * Milliseconds until the next poll.
+	 */
+	private long interval = MIN_INTERVAL;
+
+	/**
+	 * {@link System#nanoTime()} of the next poll. Maintained by the
+	 * {@link PollingScheduler}.
+	 */
+	long nextPoll;
+
+	/**
+	 * @param path
+	 *            Polled path.
+	 * @param onChange
+	 *            Action to run when the file changed. May be {@code null}.
+	 * @throws IOException
+	 *             Failed to read attributes.
+	 */
+	public PolledFile(Path path, Runnable onChange) throws IOException {
+		this.path = path;
+		this.onChange = onChange;
+		changed();
+	}
+
+	/**
+	 * Compares the current metadata of the file with the previous poll.
+	 * Adjusts the polling interval.
+	 * 
+	 * @return {@code true} if the file appeared, vanished or was modified
+	 *         since the previous poll.
+	 * @throws IOException
+	 *             Failed to read attributes.
+	 */
+	public boolean changed() throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			attributes = null;
+		}
+
+		boolean changed;
+		if (attributes == null || !attributes.isRegularFile()) {
+			changed = exists;
+			exists = false;
+		} else {
+			changed = !exists || size != attributes.size()
+					|| !attributes.lastModifiedTime().equals(lastModified)
+					|| !equal(fileKey, attributes.fileKey());
+			exists = true;
+			size = attributes.size();
+			lastModified = attributes.lastModifiedTime();
+			fileKey = attributes.fileKey();
+		}
+
+		if (changed) {
+			interval = MIN_INTERVAL;
+		} else {
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+		}
+		return changed;
+	}
+
+	/**
+	 * @return Milliseconds until the next poll.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
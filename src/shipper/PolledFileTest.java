@@ -0,0 +1,47 @@
+package shipper;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class PolledFileTest {
+
+	@Test
+	public void test() throws IOException {
+		Path path = Files.createTempFile(null, null);
+		try {
+			PolledFile polled = new PolledFile(path, null);
+
+			// Idle file backs off.
+			org.junit.Assert.assertFalse(polled.changed());
+			org.junit.Assert.assertFalse(polled.changed());
+			org.junit.Assert.assertEquals(PolledFile.MIN_INTERVAL * 4,
+					polled.getInterval());
+			for (int poll = 0; poll < 20; poll = poll + 1) {
+				polled.changed();
+			}
+			org.junit.Assert.assertEquals(PolledFile.MAX_INTERVAL,
+					polled.getInterval());
+
+			// Growth is a change.
+			try (FileWriter w = new FileWriter(path.toFile(), true)) {
+				w.append("line\n");
+			}
+			org.junit.Assert.assertTrue(polled.changed());
+			org.junit.Assert.assertEquals(PolledFile.MIN_INTERVAL,
+					polled.getInterval());
+			org.junit.Assert.assertFalse(polled.changed());
+
+			// Deletion is a change, once.
+			Files.delete(path);
+			org.junit.Assert.assertTrue(polled.changed());
+			org.junit.Assert.assertFalse(polled.changed());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package shipper;
+
+import static shipper.ShipperLogger.error;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls any number of files from a single thread. Used for file systems that
+ * do not support watching or do not report changes reliably, such as network
+ * mounts.
+ * <p>
+ * Files are kept ordered by the time of their next poll, each with its own
+ * adaptive interval as maintained by {@link PolledFile}.
+ */
+public class PollingScheduler extends Thread {
+	/**
+	 * Polled files by time of next poll.
+	 */
+	private final PriorityQueue<PolledFile> queue = new PriorityQueue<>(16,
+			new Comparator<PolledFile>() {
+				@Override
+				public int compare(PolledFile a, PolledFile b) {
+					return Long.compare(a.nextPoll - b.nextPoll, 0);
+				}
+			});
+
+	public PollingScheduler() {
+		super("Polling scheduler");
+	}
+
+	/**
+	 * Starts polling a path.
+	 * 
+	 * @param path
+	 *            Path to poll.
+	 * @param onChange
+	 *            Action to run on the polling thread whenever the file
+	 *            changed. Should return quickly.
+	 * @throws IOException
+	 *             Failed to read attributes.
+	 */
+	public synchronized void add(Path path, Runnable onChange)
+			throws IOException {
+		PolledFile file = new PolledFile(path, onChange);
+		file.nextPoll = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(file.getInterval());
+		queue.add(file);
+		notify();
+	}
+
+	/**
+	 * Stops polling a path.
+	 * 
+	 * @param path
+	 *            Polled path.
+	 */
+	public synchronized void remove(Path path) {
+		Iterator<PolledFile> files = queue.iterator();
+		while (files.hasNext()) {
+			if (files.next().path.equals(path)) {
+				files.remove();
+			}
+		}
+	}
+
+	/**
+	 * Polls files when due. Should never return.
+	 */
+	@Override
+	public synchronized void run() {
+		while (!isInterrupted()) {
+			try {
+				PolledFile file = queue.peek();
+				if (file == null) {
+					wait();
+					continue;
+				}
+				long delay = file.nextPoll - System.nanoTime();
+				if (delay > 0) {
+					TimeUnit.NANOSECONDS.timedWait(this, delay);
+					continue;
+				}
+
+				queue.poll();
+				try {
+					if (file.changed()) {
+						file.onChange.run();
+					}
+				} catch (IOException | RuntimeException e) {
+					error("Failed to poll " + file.path, e);
+				}
+				file.nextPoll = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(file.getInterval());
+				queue.add(file);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+}
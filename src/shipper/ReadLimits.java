@@ -0,0 +1,252 @@
+package shipper;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the memory that reading files takes, no matter how long lines are
+ * or how many files are monitored.
+ * <p>
+ * Lines longer than the maximum line length are either split into parts of
+ * that length or truncated to it, so a file without line feeds, such as a
+ * binary file, is streamed instead of buffered. Parts might cut a character
+ * of a multi-byte encoding in two.
+ * <p>
+ * A single budget covers the carried bytes of incomplete lines of all files
+ * and the bytes of all lines queued for sending. Readers wait for queued lines
+ * to be sent while the budget is used up, just as they wait for a full queue.
+ * A reader whose incomplete line cannot grow gives up the carried bytes and
+ * waits before reading the line again, so waiting readers never hold the
+ * budget that others wait for. Only lines larger than the whole budget are
+ * treated as oversized.
+ */
+public class ReadLimits implements ReadLimitsMBean {
+	/**
+	 * Bytes counted per queued line in addition to its content.
+	 */
+	static final int LINE_OVERHEAD = 64;
+
+	/**
+	 * Limits that never apply.
+	 */
+	static final ReadLimits UNLIMITED = new ReadLimits(0, false, 0);
+
+	/**
+	 * Limits of all readers and senders.
+	 */
+	private static volatile ReadLimits installed = UNLIMITED;
+
+	/**
+	 * Maximum bytes per line. {@code 0} if unlimited.
+	 */
+	final int maxLineLength;
+
+	/**
+	 * {@code true} to drop the end of oversized lines, {@code false} to split
+	 * them.
+	 */
+	final boolean truncate;
+
+	/**
+	 * Maximum bytes of buffered lines. {@code 0} if unlimited.
+	 */
+	private final long budget;
+
+	/**
+	 * Bytes of buffered lines. Guarded by {@link #lock}.
+	 */
+	private long used = 0;
+
+	/**
+	 * Guards {@link #used}.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when bytes were released.
+	 */
+	private final Condition released = lock.newCondition();
+
+	/**
+	 * Lines that were sent in several parts.
+	 */
+	final LongAdder splitLines = new LongAdder();
+
+	/**
+	 * Lines whose end was dropped.
+	 */
+	final LongAdder truncatedLines = new LongAdder();
+
+	/**
+	 * Readers that waited for the budget.
+	 */
+	private final LongAdder blockedReads = new LongAdder();
+
+	/**
+	 * @param maxLineLength
+	 *            Maximum bytes per line. {@code 0} if unlimited.
+	 * @param truncate
+	 *            {@code true} to drop the end of oversized lines,
+	 *            {@code false} to split them.
+	 * @param budget
+	 *            Maximum bytes of buffered lines. {@code 0} if unlimited.
+	 */
+	public ReadLimits(int maxLineLength, boolean truncate, long budget) {
+		if (maxLineLength < 0 || budget < 0) {
+			throw new IllegalArgumentException(
+					"Read limits must not be negative.");
+		}
+		this.maxLineLength = maxLineLength;
+		this.truncate = truncate;
+		this.budget = budget;
+	}
+
+	/**
+	 * @return Limits of all readers and senders.
+	 */
+	static ReadLimits get() {
+		return installed;
+	}
+
+	/**
+	 * Applies the limits to all readers and senders created afterwards and
+	 * publishes the counters via JMX as {@code shipper:type=ReadLimits}.
+	 */
+	public void install() {
+		installed = this;
+		Metrics.register(this, "type=ReadLimits");
+	}
+
+	/**
+	 * Takes bytes from the budget, waiting while it is used up.
+	 * 
+	 * @param bytes
+	 *            Bytes to take. Requests larger than the whole budget take
+	 *            all of it, see {@link #charge(long)}.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting.
+	 */
+	void acquire(long bytes) throws InterruptedException {
+		bytes = charge(bytes);
+		if (bytes == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			if (used + bytes > budget) {
+				blockedReads.increment();
+				do {
+					released.await();
+				} while (used + bytes > budget);
+			}
+			used = used + bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            Bytes requested by {@link #acquire(long)}.
+	 * @return Bytes actually taken and to be released later.
+	 */
+	long charge(long bytes) {
+		return budget == 0 ? 0 : Math.min(bytes, budget);
+	}
+
+	/**
+	 * @param bytes
+	 *            Bytes to take.
+	 * @return {@code true} if the bytes fit into the whole budget.
+	 */
+	boolean fits(long bytes) {
+		return budget == 0 || bytes <= budget;
+	}
+
+	/**
+	 * Takes bytes from the budget unless it is used up.
+	 * 
+	 * @param bytes
+	 *            Bytes to take.
+	 * @return {@code true} if taken, to be released later.
+	 */
+	boolean tryAcquire(long bytes) {
+		if (budget == 0) {
+			return true;
+		}
+		lock.lock();
+		try {
+			if (used + bytes > budget) {
+				return false;
+			}
+			used = used + bytes;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns bytes to the budget.
+	 * 
+	 * @param bytes
+	 *            Bytes taken before.
+	 */
+	void release(long bytes) {
+		if (budget == 0 || bytes == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			used = used - bytes;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param line
+	 *            Queued line.
+	 * @return Bytes counted for the line.
+	 */
+	static long size(ShipEvent line) {
+		return line.line.length + LINE_OVERHEAD;
+	}
+
+	@Override
+	public int getMaxLineLength() {
+		return maxLineLength;
+	}
+
+	@Override
+	public long getSplitLines() {
+		return splitLines.sum();
+	}
+
+	@Override
+	public long getTruncatedLines() {
+		return truncatedLines.sum();
+	}
+
+	@Override
+	public long getBudgetBytes() {
+		return budget;
+	}
+
+	@Override
+	public long getUsedBytes() {
+		lock.lock();
+		try {
+			return used;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getBlockedReads() {
+		return blockedReads.sum();
+	}
+}
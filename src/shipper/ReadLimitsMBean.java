@@ -0,0 +1,37 @@
+package shipper;
+
+/**
+ * Oversized lines and buffered bytes governed by {@link ReadLimits} as
+ * published via JMX.
+ */
+public interface ReadLimitsMBean {
+	/**
+	 * @return Maximum bytes per line, {@code 0} if unlimited.
+	 */
+	int getMaxLineLength();
+
+	/**
+	 * @return Lines that were sent in several parts.
+	 */
+	long getSplitLines();
+
+	/**
+	 * @return Lines whose end was dropped.
+	 */
+	long getTruncatedLines();
+
+	/**
+	 * @return Maximum bytes of buffered lines, {@code 0} if unlimited.
+	 */
+	long getBudgetBytes();
+
+	/**
+	 * @return Bytes of incomplete lines and queued lines currently buffered.
+	 */
+	long getUsedBytes();
+
+	/**
+	 * @return Readers that waited for buffered lines to be sent.
+	 */
+	long getBlockedReads();
+}
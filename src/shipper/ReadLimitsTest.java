@@ -0,0 +1,45 @@
+package shipper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ReadLimitsTest {
+
+	@Test
+	public void test() throws InterruptedException {
+		final ReadLimits limits = new ReadLimits(0, false, 100);
+		limits.acquire(60);
+		org.junit.Assert.assertFalse(limits.tryAcquire(50));
+		org.junit.Assert.assertTrue(limits.tryAcquire(40));
+		org.junit.Assert.assertEquals(100, limits.getUsedBytes());
+
+		// Reader waits until bytes are released.
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					// More than the whole budget takes all of it.
+					limits.acquire(1000);
+					acquired.countDown();
+				} catch (InterruptedException e) {
+					// Test failed.
+				}
+			}
+		};
+		reader.start();
+		org.junit.Assert.assertFalse(acquired.await(100,
+				TimeUnit.MILLISECONDS));
+		limits.release(60);
+		org.junit.Assert.assertFalse(acquired.await(100,
+				TimeUnit.MILLISECONDS));
+		limits.release(40);
+		org.junit.Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		org.junit.Assert.assertEquals(100, limits.getUsedBytes());
+		org.junit.Assert.assertEquals(1, limits.getBlockedReads());
+		limits.release(limits.charge(1000));
+		org.junit.Assert.assertEquals(0, limits.getUsedBytes());
+	}
+}
@@ -0,0 +1,231 @@
+package shipper;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * <p>
+ * Each slot carries a sequence number that tells producers whether the slot is
+ * free and the consumer whether it was published. Producers claim slots by a
+ * compare-and-set on the tail counter only.
+ * 
+ * @param <E>
+ *            Type of elements.
+ */
+public class RingBuffer<E> {
+	/**
+	 * Nanoseconds a producer pauses while the buffer is full.
+	 */
+	private static final long FULL_BACKOFF = 100000;
+
+	/**
+	 * Elements by slot.
+	 */
+	private final Object[] elements;
+
+	/**
+	 * Sequence numbers by slot.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * Mask to map sequence numbers to slots.
+	 */
+	private final int mask;
+
+	/**
+	 * Sequence number of next slot to fill.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Sequence number of next slot to take. Only written by the consumer.
+	 */
+	private volatile long head = 0;
+
+	/**
+	 * Consumer while it waits for elements.
+	 */
+	private volatile Thread waitingConsumer;
+
+	/**
+	 * @param capacity
+	 *            Minimum number of elements. Rounded up to the next power of
+	 *            two.
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		elements = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int slot = 0; slot < size; slot = slot + 1) {
+			sequences.set(slot, slot);
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an element if there is space.
+	 * 
+	 * @param element
+	 *            Element to add.
+	 * @return {@code false} if the buffer is full.
+	 */
+	public boolean offer(E element) {
+		long position = tail.get();
+		while (true) {
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements[slot] = element;
+					// Publish element to consumer.
+					sequences.set(slot, position + 1);
+					Thread consumer = waitingConsumer;
+					if (consumer != null) {
+						LockSupport.unpark(consumer);
+					}
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				// Slot still holds an element from the previous round.
+				return false;
+			} else {
+				// Another producer claimed the slot.
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Adds an element, waiting for space if the buffer is full.
+	 * 
+	 * @param element
+	 *            Element to add.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting for space.
+	 */
+	public void put(E element) throws InterruptedException {
+		while (!offer(element)) {
+			LockSupport.parkNanos(FULL_BACKOFF);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest element. Must only be called by the consumer.
+	 * 
+	 * @return Oldest element or {@code null} if the buffer is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long position = head;
+		int slot = (int) position & mask;
+		if (sequences.get(slot) != position + 1) {
+			return null;
+		}
+		E element = (E) elements[slot];
+		elements[slot] = null;
+		// Release slot to producers of next round.
+		sequences.set(slot, position + elements.length);
+		head = position + 1;
+		return element;
+	}
+
+	/**
+	 * Moves available elements to a collection. Must only be called by the
+	 * consumer.
+	 * 
+	 * @param target
+	 *            Collection to add elements to.
+	 * @param maximum
+	 *            Maximum number of elements to move.
+	 * @return Number of moved elements.
+	 */
+	public int drainTo(Collection<? super E> target, int maximum) {
+		int count = 0;
+		E element;
+		while (count < maximum && (element = poll()) != null) {
+			target.add(element);
+			count = count + 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Waits until elements are available or the timeout passed. Must only be
+	 * called by the consumer.
+	 * 
+	 * @param timeout
+	 *            Maximum nanoseconds to wait. Negative to wait without limit.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting.
+	 */
+	public void await(long timeout) throws InterruptedException {
+		await(timeout, this);
+	}
+
+	/**
+	 * Waits until elements are available in this or another buffer or the
+	 * timeout passed. Must only be called by the consumer of both buffers.
+	 * 
+	 * @param timeout
+	 *            Maximum nanoseconds to wait. Negative to wait without limit.
+	 * @param other
+	 *            Another buffer of the same consumer.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting.
+	 */
+	public void await(long timeout, RingBuffer<?> other)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + timeout;
+		waitingConsumer = Thread.currentThread();
+		other.waitingConsumer = waitingConsumer;
+		try {
+			while (isEmpty() && other.isEmpty()) {
+				if (timeout < 0) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return;
+					}
+					LockSupport.parkNanos(this, remaining);
+				}
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			waitingConsumer = null;
+			other.waitingConsumer = null;
+		}
+	}
+
+	/**
+	 * @return {@code true} if no published element is available.
+	 */
+	public boolean isEmpty() {
+		long position = head;
+		return sequences.get((int) position & mask) != position + 1;
+	}
+
+	/**
+	 * @return Approximate number of elements.
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	/**
+	 * @return Maximum number of elements.
+	 */
+	public int capacity() {
+		return elements.length;
+	}
+}
@@ -0,0 +1,60 @@
+package shipper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void test() throws InterruptedException {
+		final RingBuffer<Integer> buffer = new RingBuffer<>(100);
+		org.junit.Assert.assertEquals(128, buffer.capacity());
+
+		// Concurrent producers must neither lose nor duplicate elements.
+		final int perProducer = 100000;
+		List<Thread> producers = new ArrayList<>();
+		for (int producer = 0; producer < 4; producer = producer + 1) {
+			final int offset = producer * perProducer;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int index = 0; index < perProducer; index = index + 1) {
+						try {
+							buffer.put(offset + index);
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
+			thread.start();
+			producers.add(thread);
+		}
+
+		boolean[] seen = new boolean[4 * perProducer];
+		int[] lastByProducer = { -1, -1, -1, -1 };
+		List<Integer> drained = new ArrayList<>();
+		int received = 0;
+		while (received < seen.length) {
+			buffer.await(-1);
+			drained.clear();
+			received = received + buffer.drainTo(drained, 64);
+			for (Integer element : drained) {
+				org.junit.Assert.assertFalse(seen[element]);
+				seen[element] = true;
+				// Order per producer is kept.
+				int producer = element / perProducer;
+				org.junit.Assert.assertTrue(lastByProducer[producer] < element);
+				lastByProducer[producer] = element;
+			}
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		org.junit.Assert.assertTrue(buffer.isEmpty());
+		org.junit.Assert.assertNull(buffer.poll());
+	}
+
+}
@@ -0,0 +1,554 @@
+package shipper;
+
+import static shipper.ShipperLogger.error;
+import static shipper.ShipperLogger.info;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Level;
+
+/**
+ * Ships lines to the log server on a dedicated thread.
+ * <p>
+ * Readers hand lines over through a bounded {@link RingBuffer} and never wait
+ * for the network unless the buffer or the budget of {@link ReadLimits} is
+ * full. The sender collects lines into
+ * batches until either the batch size is reached or the linger time passed
+ * and writes each batch with a single flush.
+ * <p>
+ * Lines at or above a priority level take a separate, smaller queue that is
+ * drained first. A batch with such lines is sent without waiting for it to
+ * fill, so they overtake a backlog of other lines instead of queuing behind
+ * it. Lines of a file may therefore arrive out of order.
+ * <p>
+ * Without a {@link Spool}, a failed batch is retried until the log server
+ * accepts it, which eventually blocks the readers. With a spool, batches are
+ * stored on disk while the log server is unreachable and sent from there in
+ * order once it is back, before any newer lines.
+ * <p>
+ * Queue, batch and connection metrics are published via JMX once
+ * {@link #register()} was called.
+ */
+public class Sender extends Thread implements SenderMBean {
+	/**
+	 * Initial delay between connection attempts.
+	 */
+	private static final long MIN_RECONNECT_DELAY = 500;
+
+	/**
+	 * Maximum delay between connection attempts.
+	 */
+	private static final long MAX_RECONNECT_DELAY = 30000;
+
+	/**
+	 * Lines handed over by readers.
+	 */
+	private final RingBuffer<ShipEvent> queue;
+
+	/**
+	 * Lines at or above {@link #priority}, sent before those in
+	 * {@link #queue}.
+	 */
+	private final RingBuffer<ShipEvent> urgent;
+
+	/**
+	 * Lowest level of lines in {@link #urgent} or {@code null} to queue all
+	 * lines in {@link #queue}.
+	 */
+	private final Level priority;
+
+	/**
+	 * Connection to log server.
+	 */
+	private final Transport transport;
+
+	/**
+	 * Maximum lines per batch.
+	 */
+	private final int batchSize;
+
+	/**
+	 * Nanoseconds to wait for a batch to fill.
+	 */
+	private final long linger;
+
+	/**
+	 * Storage for lines that could not be sent or {@code null} to retry
+	 * sending until successful.
+	 */
+	private final Spool spool;
+
+	/**
+	 * Budget of queued lines.
+	 */
+	private final ReadLimits limits;
+
+	/**
+	 * {@code true} if the last attempt to send failed.
+	 */
+	private boolean failed = false;
+
+	/**
+	 * Milliseconds to wait after the next failed connection attempt.
+	 */
+	private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+	/**
+	 * {@link System#nanoTime()} before which no reconnect is attempted.
+	 */
+	private long reconnectAt = System.nanoTime();
+
+	/**
+	 * Sent lines.
+	 */
+	private final Meter lines = new Meter();
+
+	/**
+	 * Sent batches.
+	 */
+	private final LongAdder batches = new LongAdder();
+
+	/**
+	 * Size of the last sent batch.
+	 */
+	private volatile int lastBatchSize = 0;
+
+	/**
+	 * {@code false} while the log server is unreachable.
+	 */
+	private volatile boolean connected = true;
+
+	/**
+	 * Failed attempts to send.
+	 */
+	private final LongAdder sendFailures = new LongAdder();
+
+	/**
+	 * Established connections.
+	 */
+	private final LongAdder connections = new LongAdder();
+
+	/**
+	 * Lines stored in the spool.
+	 */
+	private final LongAdder spooledLines = new LongAdder();
+
+	/**
+	 * Readers that waited for space in the queue.
+	 */
+	private final LongAdder blockedEnqueues = new LongAdder();
+
+	/**
+	 * Lines dropped by interrupted readers.
+	 */
+	private final LongAdder droppedLines = new LongAdder();
+
+	/**
+	 * Lines queued in {@link #urgent}.
+	 */
+	private final LongAdder priorityLines = new LongAdder();
+
+	/**
+	 * @param transport
+	 *            Connection to log server.
+	 * @param queueSize
+	 *            Lines buffered between readers and sender.
+	 * @param batchSize
+	 *            Maximum lines per batch.
+	 * @param linger
+	 *            Milliseconds to wait for a batch to fill.
+	 * @param spool
+	 *            Storage for lines while the log server is unreachable or
+	 *            {@code null} to wait for the log server instead.
+	 */
+	public Sender(Transport transport, int queueSize, int batchSize,
+			long linger, Spool spool) {
+		this(transport, queueSize, batchSize, linger, spool, null);
+	}
+
+	/**
+	 * @param transport
+	 *            Connection to log server.
+	 * @param queueSize
+	 *            Lines buffered between readers and sender. Lines at or above
+	 *            the priority level have an eighth of it.
+	 * @param batchSize
+	 *            Maximum lines per batch.
+	 * @param linger
+	 *            Milliseconds to wait for a batch to fill.
+	 * @param spool
+	 *            Storage for lines while the log server is unreachable or
+	 *            {@code null} to wait for the log server instead.
+	 * @param priority
+	 *            Lowest level of lines that are sent before others or
+	 *            {@code null} to send all lines in order.
+	 */
+	public Sender(Transport transport, int queueSize, int batchSize,
+			long linger, Spool spool, Level priority) {
+		super("Sender to " + transport);
+		this.transport = transport;
+		this.queue = new RingBuffer<>(queueSize);
+		this.urgent = new RingBuffer<>(Math.max(1, queueSize / 8));
+		this.priority = priority;
+		this.batchSize = batchSize;
+		this.linger = TimeUnit.MILLISECONDS.toNanos(linger);
+		this.spool = spool;
+		this.limits = ReadLimits.get();
+	}
+
+	/**
+	 * Queues a line for sending. Waits if the queue is full.
+	 * 
+	 * @param event
+	 *            Line to send.
+	 */
+	public void enqueue(ShipEvent event) {
+		long size = ReadLimits.size(event);
+		try {
+			limits.acquire(size);
+		} catch (InterruptedException e) {
+			droppedLines.increment();
+			error("Interrupted waiting for memory budget, dropping line of "
+					+ event.source.path);
+			// Read again after a restart.
+			ShipEvent.dropped(event);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		// Not visible to the sending thread before queued.
+		event.enqueued = System.nanoTime();
+		RingBuffer<ShipEvent> lane = queue;
+		if (priority != null && event.level.isGreaterOrEqual(priority)) {
+			lane = urgent;
+			priorityLines.increment();
+		}
+		if (lane.offer(event)) {
+			return;
+		}
+		blockedEnqueues.increment();
+		try {
+			lane.put(event);
+		} catch (InterruptedException e) {
+			limits.release(limits.charge(size));
+			droppedLines.increment();
+			error("Interrupted waiting for space in send queue, dropping line of "
+					+ event.source.path);
+			// Read again after a restart.
+			ShipEvent.dropped(event);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Publishes metrics via JMX as {@code shipper:type=Sender}.
+	 */
+	public void register() {
+		Metrics.register(this, "type=Sender");
+	}
+
+	/**
+	 * Sends batches until interrupted.
+	 */
+	@Override
+	public void run() {
+		List<ShipEvent> batch = new ArrayList<>(batchSize);
+		List<ShipEvent> backlog = new ArrayList<>(batchSize);
+		try {
+			while (!isInterrupted()) {
+				if (spool == null) {
+					collect(batch, -1);
+					send(batch);
+					release(batch);
+					batch.clear();
+					continue;
+				}
+
+				// Keep order by spooling new lines as long as older ones wait
+				// on disk.
+				boolean spooled = !spool.isEmpty();
+				int prioritized = collect(batch, spooled ? Math.max(0,
+						reconnectAt - System.nanoTime()) : -1);
+				if (!batch.isEmpty()) {
+					if (!spooled) {
+						if (!trySend(batch)) {
+							spool(batch);
+						}
+					} else if (prioritized > 0
+							&& reconnectAt - System.nanoTime() <= 0
+							&& trySend(batch.subList(0, prioritized))) {
+						// Urgent lines overtake those waiting on disk.
+						spool(batch.subList(prioritized, batch.size()));
+					} else {
+						spool(batch);
+					}
+					release(batch);
+					batch.clear();
+				}
+				if (!spool.isEmpty() && reconnectAt - System.nanoTime() <= 0) {
+					spool.peek(backlog, batchSize);
+					if (trySend(backlog)) {
+						spool.commit();
+					}
+					backlog.clear();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Shutting down.
+		}
+		if (spool != null) {
+			spool.close();
+		}
+		transport.close();
+	}
+
+	/**
+	 * Waits for the next batch. Lines of the priority level come first and
+	 * are not held back to fill the batch.
+	 * 
+	 * @param batch
+	 *            Empty list to collect lines in.
+	 * @param timeout
+	 *            Nanoseconds to wait for the first line or a negative value
+	 *            to wait indefinitely.
+	 * @return Number of lines of the priority level at the start of the
+	 *         batch.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting.
+	 */
+	private int collect(List<ShipEvent> batch, long timeout)
+			throws InterruptedException {
+		queue.await(timeout, urgent);
+		int prioritized = urgent.drainTo(batch, batchSize);
+		if (prioritized > 0) {
+			queue.drainTo(batch, batchSize - batch.size());
+			return prioritized;
+		}
+		long deadline = System.nanoTime() + linger;
+		while (queue.drainTo(batch, batchSize - batch.size()) > 0
+				&& batch.size() < batchSize && urgent.isEmpty()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				break;
+			}
+			// Give readers a chance to fill the batch.
+			queue.await(remaining, urgent);
+		}
+		return 0;
+	}
+
+	/**
+	 * Writes a batch. Reconnects and retries until it succeeded so no lines
+	 * are lost while the log server is unreachable.
+	 * 
+	 * @param batch
+	 *            Lines to send.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting to reconnect.
+	 */
+	private void send(List<ShipEvent> batch) throws InterruptedException {
+		long delay = MIN_RECONNECT_DELAY;
+		boolean failed = false;
+		while (true) {
+			try {
+				if (!transport.isConnected()) {
+					transport.connect();
+					connections.increment();
+					if (failed) {
+						info("Reconnected to " + transport + ".");
+					}
+				}
+				transport.write(batch);
+				countSent(batch);
+				return;
+			} catch (IOException e) {
+				countFailure();
+				if (!failed) {
+					error("Failed to send to " + transport
+							+ ". Retrying until successful.", e);
+					failed = true;
+				}
+				transport.close();
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch once.
+	 * 
+	 * @param batch
+	 *            Lines to send.
+	 * @return {@code true} if the batch was written, {@code false} if the log
+	 *         server is unreachable and the next attempt is delayed.
+	 */
+	private boolean trySend(List<ShipEvent> batch) {
+		try {
+			if (!transport.isConnected()) {
+				transport.connect();
+				connections.increment();
+				if (failed) {
+					info("Reconnected to " + transport + ".");
+				}
+			}
+			transport.write(batch);
+			countSent(batch);
+			failed = false;
+			reconnectDelay = MIN_RECONNECT_DELAY;
+			return true;
+		} catch (IOException e) {
+			countFailure();
+			if (!failed) {
+				error("Failed to send to " + transport
+						+ ". Spooling lines until reconnected.", e);
+				failed = true;
+			}
+			transport.close();
+			reconnectAt = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(reconnectDelay);
+			reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+			return false;
+		}
+	}
+
+	/**
+	 * Stores a batch in the spool. Falls back to waiting for the log server
+	 * if the spool cannot be written.
+	 * 
+	 * @param batch
+	 *            Lines to store.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting to reconnect.
+	 */
+	private void spool(List<ShipEvent> batch) throws InterruptedException {
+		try {
+			spool.append(batch);
+			spooledLines.add(batch.size());
+			// Spooled lines survive a restart, read positions may advance.
+			ShipEvent.delivered(batch);
+		} catch (IOException e) {
+			error("Failed to spool lines, waiting for " + transport + ".", e);
+			send(batch);
+		}
+	}
+
+	/**
+	 * Returns the bytes of sent or spooled lines to the budget.
+	 * 
+	 * @param batch
+	 *            Lines taken from the queue.
+	 */
+	private void release(List<ShipEvent> batch) {
+		long bytes = 0;
+		for (ShipEvent event : batch) {
+			bytes = bytes + limits.charge(ReadLimits.size(event));
+		}
+		limits.release(bytes);
+	}
+
+	/**
+	 * Counts a written batch.
+	 * 
+	 * @param batch
+	 *            Sent lines.
+	 */
+	private void countSent(List<ShipEvent> batch) {
+		lines.mark(batch.size());
+		batches.increment();
+		lastBatchSize = batch.size();
+		connected = true;
+	}
+
+	/**
+	 * Counts a failed attempt to send.
+	 */
+	private void countFailure() {
+		sendFailures.increment();
+		connected = false;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return queue.capacity();
+	}
+
+	@Override
+	public int getPriorityQueueDepth() {
+		return urgent.size();
+	}
+
+	@Override
+	public long getPriorityLines() {
+		return priorityLines.sum();
+	}
+
+	@Override
+	public long getBlockedEnqueues() {
+		return blockedEnqueues.sum();
+	}
+
+	@Override
+	public long getLines() {
+		return lines.getCount();
+	}
+
+	@Override
+	public double getLinesPerSecond() {
+		return lines.getRate();
+	}
+
+	@Override
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	@Override
+	public double getAverageBatchSize() {
+		long count = batches.sum();
+		return count == 0 ? 0 : lines.getCount() / (double) count;
+	}
+
+	@Override
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public long getSendFailures() {
+		return sendFailures.sum();
+	}
+
+	@Override
+	public long getReconnects() {
+		return Math.max(0, connections.sum() - 1);
+	}
+
+	@Override
+	public long getSpooledLines() {
+		return spooledLines.sum();
+	}
+
+	@Override
+	public long getSpoolDroppedBytes() {
+		return spool == null ? 0 : spool.getDroppedBytes();
+	}
+
+	@Override
+	public long getDroppedLines() {
+		return droppedLines.sum();
+	}
+}
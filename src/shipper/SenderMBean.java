@@ -0,0 +1,88 @@
+package shipper;
+
+/**
+ * Health of the {@link Sender} as published via JMX.
+ */
+public interface SenderMBean {
+	/**
+	 * @return Lines waiting in the queue between readers and sender.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return Maximum number of lines in the queue.
+	 */
+	int getQueueCapacity();
+
+	/**
+	 * @return Lines at or above the priority level waiting to be sent.
+	 */
+	int getPriorityQueueDepth();
+
+	/**
+	 * @return Lines at or above the priority level that were sent before
+	 *         others.
+	 */
+	long getPriorityLines();
+
+	/**
+	 * @return Number of times a reader had to wait as the queue was full.
+	 */
+	long getBlockedEnqueues();
+
+	/**
+	 * @return Lines sent to the log server.
+	 */
+	long getLines();
+
+	/**
+	 * @return Lines sent per second, averaged over about a minute.
+	 */
+	double getLinesPerSecond();
+
+	/**
+	 * @return Batches sent to the log server.
+	 */
+	long getBatches();
+
+	/**
+	 * @return Average number of lines per batch.
+	 */
+	double getAverageBatchSize();
+
+	/**
+	 * @return Number of lines of the last sent batch.
+	 */
+	int getLastBatchSize();
+
+	/**
+	 * @return {@code true} unless the last attempt to send failed.
+	 */
+	boolean isConnected();
+
+	/**
+	 * @return Number of failed attempts to send.
+	 */
+	long getSendFailures();
+
+	/**
+	 * @return Number of connections established after the first one.
+	 */
+	long getReconnects();
+
+	/**
+	 * @return Lines stored in the spool while the log server was unreachable.
+	 */
+	long getSpooledLines();
+
+	/**
+	 * @return Bytes of lines dropped from the spool as it was full.
+	 */
+	long getSpoolDroppedBytes();
+
+	/**
+	 * @return Lines dropped as readers were interrupted while waiting for the
+	 *         queue.
+	 */
+	long getDroppedLines();
+}
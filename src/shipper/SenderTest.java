@@ -0,0 +1,134 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class SenderTest {
+
+	/**
+	 * Collects written batches, each write waiting for a permit.
+	 */
+	private static class BlockingTransport implements Transport {
+		private final List<List<String>> batches = Collections
+				.synchronizedList(new ArrayList<List<String>>());
+		private final Semaphore writes = new Semaphore(0);
+
+		@Override
+		public void connect() {
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public void write(List<ShipEvent> batch) {
+			writes.acquireUninterruptibly();
+			List<String> lines = new ArrayList<>();
+			for (ShipEvent event : batch) {
+				lines.add(event.text());
+			}
+			batches.add(lines);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static ShipEvent event(String line, Level level) {
+		ShipEvent event = TestSupport.event(line);
+		event.level = level;
+		return event;
+	}
+
+	@Test
+	public void priority() throws InterruptedException {
+		BlockingTransport transport = new BlockingTransport();
+		Sender sender = new Sender(transport, 1024, 10, 0, null, Level.ERROR);
+		sender.start();
+		try {
+			sender.enqueue(event("first", Level.INFO));
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (!transport.writes.hasQueuedThreads()
+					&& System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+
+			// Backlog while the log server is slow.
+			for (int line = 0; line < 100; line = line + 1) {
+				sender.enqueue(event("bulk " + line, Level.INFO));
+			}
+			sender.enqueue(event("failed", Level.ERROR));
+			org.junit.Assert.assertEquals(1, sender.getPriorityQueueDepth());
+			transport.writes.release(Integer.MAX_VALUE);
+			while (sender.getLines() < 102 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+
+			org.junit.Assert.assertEquals(102, sender.getLines());
+			org.junit.Assert.assertEquals(1, sender.getPriorityLines());
+			org.junit.Assert.assertEquals("first",
+					transport.batches.get(0).get(0));
+			org.junit.Assert.assertEquals("failed",
+					transport.batches.get(1).get(0));
+			org.junit.Assert.assertEquals("bulk 0",
+					transport.batches.get(1).get(1));
+		} finally {
+			sender.interrupt();
+		}
+	}
+
+	@Test
+	public void dropped() throws IOException {
+		Path registry = Files.createTempFile(null, null);
+		Files.delete(registry);
+		Path monitored = Files.createTempFile(null, null);
+		Files.write(monitored, "a\nb\nc\nd\n".getBytes());
+		try (CheckpointStore store = new CheckpointStore(registry, 60000)) {
+			LineSource source = new LineSource(0, monitored,
+					Logger.getLogger("test"), Charset.forName("UTF-8"), store);
+			Sender sender = new Sender(new BlockingTransport(), 2, 10, 0,
+					null, null);
+			List<ShipEvent> queued = new ArrayList<>();
+			for (String line : Arrays.asList("a", "b", "c", "d")) {
+				queued.add(TestSupport.tracked(source, queued.size() * 2,
+						line));
+				if (line.equals("b")) {
+					store.update(monitored, 4, -1);
+				}
+			}
+			sender.enqueue(queued.get(0));
+			sender.enqueue(queued.get(1));
+
+			// Interrupted while the queue is full.
+			Thread.currentThread().interrupt();
+			sender.enqueue(queued.get(2));
+			org.junit.Assert.assertTrue(Thread.interrupted());
+			org.junit.Assert.assertEquals(1, sender.getDroppedLines());
+
+			// The checkpoint stays before the dropped line, also when later
+			// lines are delivered.
+			store.update(monitored, 8, -1);
+			store.delivered(Arrays.asList(queued.get(0), queued.get(1),
+					queued.get(3)));
+			org.junit.Assert.assertEquals(4, store.restore(monitored));
+		} finally {
+			Files.delete(monitored);
+			Files.deleteIfExists(registry);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+
+/**
+ * Tells the level of a line from its undecoded bytes, so that important lines
+ * can be sent before others.
+ * <p>
+ * Level words such as {@code ERROR} or {@code warning} are recognized in
+ * upper or lower case as whole words. Only the first {@link #HEAD} bytes of a
+ * line are looked at, where formats put the level, and a line costs a single
+ * pass over them at most. Lines without a level word are at level INFO.
+ * Files in encodings that are not ASCII compatible, like UTF-16, are not
+ * classified.
+ */
+public class SeverityClassifier {
+	/**
+	 * Ways to find the level of a line.
+	 */
+	public static enum Match {
+		/**
+		 * All lines are at level INFO.
+		 */
+		NONE,
+		/**
+		 * The line starts with a level word, optionally in brackets like
+		 * {@code [ERROR]}, or with a syslog priority like {@code <11>}.
+		 */
+		PREFIX,
+		/**
+		 * The first level word within the head of the line counts, for
+		 * example after a timestamp.
+		 */
+		TOKEN
+	}
+
+	/**
+	 * Classifier leaving all lines at level INFO.
+	 */
+	static final SeverityClassifier NONE = new SeverityClassifier(Match.NONE,
+			Charset.forName("US-ASCII"));
+
+	/**
+	 * Bytes at the start of a line that are searched for a level word.
+	 */
+	static final int HEAD = 256;
+
+	/**
+	 * Recognized level words in upper case.
+	 */
+	private static final String[] WORDS = { "EMERG", "ALERT", "CRIT",
+			"CRITICAL", "FATAL", "SEVERE", "ERR", "ERROR", "WARN", "WARNING",
+			"NOTICE", "INFO", "FINE", "DEBUG", "FINER", "FINEST", "TRACE" };
+
+	/**
+	 * Level of each of {@link #WORDS}. Log4j 1.2.9 has no TRACE level.
+	 */
+	private static final Level[] LEVELS = { Level.FATAL, Level.FATAL,
+			Level.FATAL, Level.FATAL, Level.FATAL, Level.ERROR, Level.ERROR,
+			Level.ERROR, Level.WARN, Level.WARN, Level.INFO, Level.INFO,
+			Level.DEBUG, Level.DEBUG, Level.DEBUG, Level.DEBUG, Level.DEBUG };
+
+	/**
+	 * Upper case level words by their first letter, {@code 'A'} at index 0.
+	 */
+	private static final byte[][][] WORDS_BY_LETTER = new byte[26][][];
+
+	/**
+	 * Levels in the same order as {@link #WORDS_BY_LETTER}.
+	 */
+	private static final Level[][] LEVELS_BY_LETTER = new Level[26][];
+
+	static {
+		for (int letter = 0; letter < 26; letter = letter + 1) {
+			List<byte[]> words = new ArrayList<>();
+			List<Level> levels = new ArrayList<>();
+			for (int index = 0; index < WORDS.length; index = index + 1) {
+				if (WORDS[index].charAt(0) == 'A' + letter) {
+					words.add(WORDS[index].getBytes(Charset
+							.forName("US-ASCII")));
+					levels.add(LEVELS[index]);
+				}
+			}
+			WORDS_BY_LETTER[letter] = words.toArray(new byte[words.size()][]);
+			LEVELS_BY_LETTER[letter] = levels
+					.toArray(new Level[levels.size()]);
+		}
+	}
+
+	/**
+	 * Way to find the level.
+	 */
+	private final Match match;
+
+	/**
+	 * @param match
+	 *            Way to find the level.
+	 * @param encoding
+	 *            Encoding of file content. Lines are not classified unless
+	 *            it encodes ASCII characters as single bytes.
+	 */
+	public SeverityClassifier(Match match, Charset encoding) {
+		String ascii = "<>[]09AZaz";
+		this.match = Arrays.equals(ascii.getBytes(encoding),
+				ascii.getBytes(Charset.forName("US-ASCII"))) ? match
+				: Match.NONE;
+	}
+
+	/**
+	 * @return {@code true} if lines might be at other levels than INFO.
+	 */
+	public boolean isClassifying() {
+		return match != Match.NONE;
+	}
+
+	/**
+	 * @param line
+	 *            Encoded line between position and limit. Neither is changed.
+	 * @return Level of the line.
+	 */
+	public Level classify(ByteBuffer line) {
+		int start = line.position();
+		int end = line.limit();
+		if (match == Match.PREFIX) {
+			return prefix(line, start, end);
+		} else if (match == Match.TOKEN) {
+			int head = Math.min(end, start + HEAD);
+			boolean boundary = true;
+			for (int index = start; index < head; index = index + 1) {
+				byte value = line.get(index);
+				if (boundary && isLetter(value)) {
+					Level level = word(line, index, end);
+					if (level != null) {
+						return level;
+					}
+				}
+				boundary = !isWordByte(value);
+			}
+		}
+		return Level.INFO;
+	}
+
+	/**
+	 * @param line
+	 *            Encoded line.
+	 * @param start
+	 *            Position of first byte.
+	 * @param end
+	 *            Position after last byte.
+	 * @return Level given at the start of the line or INFO if there is none.
+	 */
+	private static Level prefix(ByteBuffer line, int start, int end) {
+		if (start < end && line.get(start) == '<') {
+			// Syslog priority, the lower 3 bits are the severity.
+			int priority = 0;
+			int digitsEnd = Math.min(end, start + 5);
+			for (int index = start + 1; index < digitsEnd; index = index + 1) {
+				byte value = line.get(index);
+				if (value == '>' && index > start + 1) {
+					return level(priority % 8);
+				} else if (!isDigit(value)) {
+					break;
+				}
+				priority = priority * 10 + value - '0';
+			}
+			return Level.INFO;
+		}
+		if (start < end && line.get(start) == '[') {
+			start = start + 1;
+		}
+		Level level = start < end && isLetter(line.get(start)) ? word(line,
+				start, end) : null;
+		return level != null ? level : Level.INFO;
+	}
+
+	/**
+	 * @param line
+	 *            Encoded line.
+	 * @param start
+	 *            Position of a letter starting a word.
+	 * @param end
+	 *            Position after last byte of the line.
+	 * @return Level of the level word at {@code start} or {@code null} if
+	 *         there is none.
+	 */
+	private static Level word(ByteBuffer line, int start, int end) {
+		int letter = (line.get(start) & ~0x20) - 'A';
+		byte[][] words = WORDS_BY_LETTER[letter];
+		for (int candidate = 0; candidate < words.length; candidate = candidate + 1) {
+			byte[] word = words[candidate];
+			int after = start + word.length;
+			if (after <= end
+					&& (after == end || !isWordByte(line.get(after)))
+					&& matches(line, start, word)) {
+				return LEVELS_BY_LETTER[letter][candidate];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param line
+	 *            Encoded line holding at least the length of {@code word}
+	 *            from {@code start} on.
+	 * @param start
+	 *            Position of the first letter.
+	 * @param word
+	 *            Upper case level word.
+	 * @return {@code true} if the word is at {@code start} in the same case
+	 *         as its first letter.
+	 */
+	private static boolean matches(ByteBuffer line, int start, byte[] word) {
+		// Upper and lower case ASCII letters differ in bit 5 only.
+		int lower = line.get(start) & 0x20;
+		for (int index = 1; index < word.length; index = index + 1) {
+			if (line.get(start + index) != (word[index] | lower)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return {@code true} for an ASCII letter.
+	 */
+	private static boolean isLetter(byte value) {
+		int folded = value & ~0x20;
+		return folded >= 'A' && folded <= 'Z';
+	}
+
+	/**
+	 * @return {@code true} for an ASCII letter or digit.
+	 */
+	private static boolean isWordByte(byte value) {
+		return isLetter(value) || isDigit(value);
+	}
+
+	/**
+	 * @return {@code true} for an ASCII digit.
+	 */
+	private static boolean isDigit(byte value) {
+		return value >= '0' && value <= '9';
+	}
+
+	/**
+	 * @param severity
+	 *            Syslog severity between 0 (emergency) and 7 (debug) as given
+	 *            by {@link Level#getSyslogEquivalent()}.
+	 * @return Level of the severity.
+	 */
+	static Level level(int severity) {
+		if (severity <= 2) {
+			return Level.FATAL;
+		} else if (severity == 3) {
+			return Level.ERROR;
+		} else if (severity == 4) {
+			return Level.WARN;
+		} else if (severity <= 6) {
+			return Level.INFO;
+		} else {
+			return Level.DEBUG;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package shipper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.log4j.Level;
+import org.junit.Test;
+
+public class SeverityClassifierTest {
+
+	private static Level classify(SeverityClassifier classifier, String line) {
+		return classifier.classify(ByteBuffer.wrap(line.getBytes(Charset
+				.forName("UTF-8"))));
+	}
+
+	@Test
+	public void token() {
+		SeverityClassifier classifier = new SeverityClassifier(
+				SeverityClassifier.Match.TOKEN, Charset.forName("UTF-8"));
+		org.junit.Assert.assertEquals(Level.ERROR, classify(classifier,
+				"2024-01-02 03:04:05,678 ERROR [main] Failed"));
+		org.junit.Assert.assertEquals(Level.WARN, classify(classifier,
+				"{\"time\":1,\"level\":\"warning\",\"msg\":\"x\"}"));
+		org.junit.Assert.assertEquals(Level.FATAL,
+				classify(classifier, "x CRIT y"));
+		// First level word counts.
+		org.junit.Assert.assertEquals(Level.INFO, classify(classifier,
+				"12:00 INFO No ERROR here"));
+		// Whole words in a single case only.
+		org.junit.Assert.assertEquals(Level.INFO, classify(classifier,
+				"ERRORS and WARN1 and Error and errors"));
+		org.junit.Assert.assertEquals(Level.DEBUG,
+				classify(classifier, "é debug"));
+		org.junit.Assert.assertEquals(Level.INFO, classify(classifier, ""));
+
+		// Level words after the head are not found.
+		StringBuilder line = new StringBuilder();
+		for (int index = 0; index < SeverityClassifier.HEAD; index++) {
+			line.append('-');
+		}
+		org.junit.Assert.assertEquals(Level.INFO,
+				classify(classifier, line + "ERROR"));
+	}
+
+	@Test
+	public void prefix() {
+		SeverityClassifier classifier = new SeverityClassifier(
+				SeverityClassifier.Match.PREFIX, Charset.forName("UTF-8"));
+		org.junit.Assert.assertEquals(Level.ERROR,
+				classify(classifier, "ERROR: failed"));
+		org.junit.Assert.assertEquals(Level.WARN,
+				classify(classifier, "[warn] slow"));
+		org.junit.Assert.assertEquals(Level.ERROR,
+				classify(classifier, "ERR"));
+		org.junit.Assert.assertEquals(Level.INFO,
+				classify(classifier, "12:00 ERROR failed"));
+		// Syslog priority of facility user (1) and severity error (3).
+		org.junit.Assert.assertEquals(Level.ERROR,
+				classify(classifier, "<11>Jan  2 03:04:05 host app: failed"));
+		org.junit.Assert.assertEquals(Level.DEBUG,
+				classify(classifier, "<191>x"));
+		org.junit.Assert.assertEquals(Level.INFO,
+				classify(classifier, "<>x"));
+		org.junit.Assert.assertEquals(Level.INFO,
+				classify(classifier, "<1234>x"));
+	}
+
+	@Test
+	public void encoding() {
+		SeverityClassifier classifier = new SeverityClassifier(
+				SeverityClassifier.Match.TOKEN, Charset.forName("UTF-16LE"));
+		org.junit.Assert.assertFalse(classifier.isClassifying());
+		org.junit.Assert.assertEquals(Level.INFO, classifier
+				.classify(ByteBuffer.wrap("ERROR".getBytes(Charset
+						.forName("UTF-16LE")))));
+		org.junit.Assert.assertFalse(SeverityClassifier.NONE.isClassifying());
+	}
+
+	@Test
+	public void level() {
+		for (Level level : new Level[] { Level.FATAL, Level.ERROR,
+				Level.WARN, Level.INFO, Level.DEBUG }) {
+			org.junit.Assert.assertEquals(level,
+					SeverityClassifier.level(level.getSyslogEquivalent()));
+		}
+	}
+}
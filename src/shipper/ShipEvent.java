@@ -0,0 +1,112 @@
+package shipper;
+
+import java.util.List;
+
+import org.apache.log4j.Level;
+
+/**
+ * Single line on its way from a monitored file to the log server.
+ */
+public class ShipEvent {
+	/**
+	 * File the line was read from.
+	 */
+	final LineSource source;
+
+	/**
+	 * Position of the line within the file. {@code -1} if unknown.
+	 */
+	final long offset;
+
+	/**
+	 * Milliseconds since epoch when the line was read.
+	 */
+	final long timestamp;
+
+	/**
+	 * Undecoded line content without terminator.
+	 */
+	final byte[] line;
+
+	/**
+	 * Level of the line as told by the {@link LineSource#severity}.
+	 */
+	Level level = Level.INFO;
+
+	/**
+	 * Number of the line within its file's {@link LineSource#delivery} or
+	 * {@code -1} if delivery is not tracked.
+	 */
+	long sequence = -1;
+
+	/**
+	 * {@link System#nanoTime()} the append of the line was detected at or
+	 * {@code 0} if unknown.
+	 */
+	long detected = 0;
+
+	/**
+	 * {@link System#nanoTime()} the line was read at or {@code 0} if unknown.
+	 */
+	long read = 0;
+
+	/**
+	 * {@link System#nanoTime()} the line was queued for sending at or
+	 * {@code 0} if unknown.
+	 */
+	long enqueued = 0;
+
+	/**
+	 * @param source
+	 *            File the line was read from.
+	 * @param offset
+	 *            Position of the line within the file. {@code -1} if unknown.
+	 * @param timestamp
+	 *            Milliseconds since epoch when the line was read.
+	 * @param line
+	 *            Undecoded line content without terminator.
+	 */
+	public ShipEvent(LineSource source, long offset, long timestamp,
+			byte[] line) {
+		this.source = source;
+		this.offset = offset;
+		this.timestamp = timestamp;
+		this.line = line;
+	}
+
+	/**
+	 * @return Decoded line content.
+	 */
+	public String text() {
+		return new String(line, source.encoding);
+	}
+
+	/**
+	 * Reports lines as received by the log server so that checkpoints advance
+	 * over them.
+	 * 
+	 * @param batch
+	 *            Delivered lines.
+	 */
+	static void delivered(List<ShipEvent> batch) {
+		for (ShipEvent event : batch) {
+			if (event.sequence >= 0) {
+				event.source.delivery.store().delivered(batch);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reports a line that will never be sent so that checkpoints stay before
+	 * it.
+	 * 
+	 * @param event
+	 *            Dropped line.
+	 */
+	static void dropped(ShipEvent event) {
+		if (event.sequence >= 0) {
+			event.source.delivery.store().dropped(event);
+		}
+	}
+}
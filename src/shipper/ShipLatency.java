@@ -0,0 +1,198 @@
+package shipper;
+
+import static shipper.ShipperLogger.info;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of lines between being appended to a file and being written to
+ * the log server, split into stages.
+ * <p>
+ * Lines carry {@link System#nanoTime()} timestamps of when the append was
+ * detected, when they were read and when they were queued for sending. Once
+ * a batch is written to the socket, all stages are counted with a single
+ * clock reading on the writing thread, so readers only take the timestamps.
+ * Lines restored from the spool or created by the shipper itself, such as
+ * summaries of repeated lines, lack some timestamps and are not counted in
+ * the affected stages.
+ */
+public class ShipLatency implements ShipLatencyMBean {
+	/**
+	 * From detecting a modification of the file until reading the line. Covers
+	 * debouncing and waiting for a reader thread.
+	 */
+	static final ShipLatency DETECT_TO_READ = new ShipLatency("detect-to-read");
+
+	/**
+	 * From reading the line until queuing it for sending. Covers joining
+	 * multiline events and waiting for the memory budget.
+	 */
+	static final ShipLatency READ_TO_ENQUEUE = new ShipLatency(
+			"read-to-enqueue");
+
+	/**
+	 * From queuing the line until its batch was written to the socket. Covers
+	 * waiting for space in the queue, batching and slow log servers.
+	 */
+	static final ShipLatency ENQUEUE_TO_WRITE = new ShipLatency(
+			"enqueue-to-write");
+
+	/**
+	 * From detecting a modification of the file until the line's batch was
+	 * written to the socket.
+	 */
+	static final ShipLatency DETECT_TO_WRITE = new ShipLatency(
+			"detect-to-write");
+
+	/**
+	 * All stages in order of shipping.
+	 */
+	private static final ShipLatency[] STAGES = { DETECT_TO_READ,
+			READ_TO_ENQUEUE, ENQUEUE_TO_WRITE, DETECT_TO_WRITE };
+
+	/**
+	 * Name of the stage.
+	 */
+	private final String name;
+
+	/**
+	 * Latencies since monitoring started.
+	 */
+	final LatencyHistogram histogram = new LatencyHistogram();
+
+	/**
+	 * Copy of {@link #histogram} at the previous report.
+	 */
+	private LatencyHistogram reported = new LatencyHistogram();
+
+	/**
+	 * @param name
+	 *            Name of the stage.
+	 */
+	private ShipLatency(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Counts the latencies of lines that were written to the socket.
+	 * 
+	 * @param batch
+	 *            Written lines.
+	 */
+	static void written(List<ShipEvent> batch) {
+		long now = System.nanoTime();
+		for (ShipEvent event : batch) {
+			if (event.detected != 0 && event.read != 0) {
+				DETECT_TO_READ.record(event.read - event.detected);
+			}
+			if (event.read != 0 && event.enqueued != 0) {
+				READ_TO_ENQUEUE.record(event.enqueued - event.read);
+			}
+			if (event.enqueued != 0) {
+				ENQUEUE_TO_WRITE.record(now - event.enqueued);
+			}
+			if (event.detected != 0) {
+				DETECT_TO_WRITE.record(now - event.detected);
+			}
+		}
+	}
+
+	/**
+	 * @param nanos
+	 *            Latency in nanoseconds.
+	 */
+	private void record(long nanos) {
+		histogram.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Publishes all stages via JMX as
+	 * {@code shipper:type=Latency,name=<stage>}.
+	 */
+	static void register() {
+		for (ShipLatency stage : STAGES) {
+			Metrics.register(stage, "type=Latency,name=" + stage.name);
+		}
+	}
+
+	/**
+	 * Logs the percentiles of each stage periodically, counting the lines
+	 * written since the previous report only.
+	 * 
+	 * @param interval
+	 *            Seconds between reports.
+	 */
+	static void report(long interval) {
+		ScheduledExecutorService reporter = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Latency reporter");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				info(summary());
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Starts a new report interval.
+	 * 
+	 * @return Lines and percentiles of each stage since the previous call.
+	 */
+	static String summary() {
+		StringBuilder summary = new StringBuilder("Latency in microseconds:");
+		for (ShipLatency stage : STAGES) {
+			LatencyHistogram current = stage.histogram.copy();
+			LatencyHistogram interval = current.copy();
+			interval.subtract(stage.reported);
+			stage.reported = current;
+			summary.append(' ').append(stage.name).append(" lines=")
+					.append(interval.count()).append(" p50=")
+					.append(interval.percentile(50)).append(" p99=")
+					.append(interval.percentile(99)).append(" max=")
+					.append(interval.percentile(100)).append(';');
+		}
+		summary.setLength(summary.length() - 1);
+		return summary.toString();
+	}
+
+	@Override
+	public long getCount() {
+		return histogram.count();
+	}
+
+	@Override
+	public long getP50Micros() {
+		return histogram.percentile(50);
+	}
+
+	@Override
+	public long getP90Micros() {
+		return histogram.percentile(90);
+	}
+
+	@Override
+	public long getP99Micros() {
+		return histogram.percentile(99);
+	}
+
+	@Override
+	public long getP999Micros() {
+		return histogram.percentile(99.9);
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return histogram.percentile(100);
+	}
+}
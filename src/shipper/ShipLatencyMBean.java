@@ -0,0 +1,36 @@
+package shipper;
+
+/**
+ * Latencies of a single stage of shipping lines as published via JMX.
+ */
+public interface ShipLatencyMBean {
+	/**
+	 * @return Lines measured since monitoring started.
+	 */
+	long getCount();
+
+	/**
+	 * @return Median latency in microseconds.
+	 */
+	long getP50Micros();
+
+	/**
+	 * @return 90th percentile of latencies in microseconds.
+	 */
+	long getP90Micros();
+
+	/**
+	 * @return 99th percentile of latencies in microseconds.
+	 */
+	long getP99Micros();
+
+	/**
+	 * @return 99.9th percentile of latencies in microseconds.
+	 */
+	long getP999Micros();
+
+	/**
+	 * @return Longest latency in microseconds.
+	 */
+	long getMaxMicros();
+}
@@ -0,0 +1,71 @@
+package shipper;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ShipLatencyTest {
+
+	/**
+	 * @return Lines counted for the stage since {@code before}.
+	 */
+	private static LatencyHistogram since(ShipLatency stage,
+			LatencyHistogram before) {
+		LatencyHistogram counted = stage.histogram.copy();
+		counted.subtract(before);
+		return counted;
+	}
+
+	@Test
+	public void written() {
+		LatencyHistogram detectToRead = ShipLatency.DETECT_TO_READ.histogram
+				.copy();
+		LatencyHistogram readToEnqueue = ShipLatency.READ_TO_ENQUEUE.histogram
+				.copy();
+		LatencyHistogram enqueueToWrite = ShipLatency.ENQUEUE_TO_WRITE.histogram
+				.copy();
+		LatencyHistogram detectToWrite = ShipLatency.DETECT_TO_WRITE.histogram
+				.copy();
+
+		long now = System.nanoTime();
+		ShipEvent traced = TestSupport.event("a");
+		traced.detected = now - TimeUnit.MILLISECONDS.toNanos(30);
+		traced.read = now - TimeUnit.MILLISECONDS.toNanos(20);
+		traced.enqueued = now - TimeUnit.MILLISECONDS.toNanos(10);
+		// Restored from spool.
+		ShipEvent untraced = TestSupport.event("b");
+		ShipLatency.written(Arrays.asList(traced, untraced));
+
+		LatencyHistogram counted = since(ShipLatency.DETECT_TO_READ,
+				detectToRead);
+		org.junit.Assert.assertEquals(1, counted.count());
+		org.junit.Assert.assertTrue(counted.percentile(50) >= 10000);
+		org.junit.Assert.assertTrue(counted.percentile(50) < 11000);
+		counted = since(ShipLatency.READ_TO_ENQUEUE, readToEnqueue);
+		org.junit.Assert.assertEquals(1, counted.count());
+		org.junit.Assert.assertTrue(counted.percentile(50) >= 10000);
+		counted = since(ShipLatency.ENQUEUE_TO_WRITE, enqueueToWrite);
+		org.junit.Assert.assertEquals(1, counted.count());
+		org.junit.Assert.assertTrue(counted.percentile(50) >= 10000);
+		counted = since(ShipLatency.DETECT_TO_WRITE, detectToWrite);
+		org.junit.Assert.assertEquals(1, counted.count());
+		org.junit.Assert.assertTrue(counted.percentile(50) >= 30000);
+	}
+
+	@Test
+	public void summary() {
+		ShipLatency.summary();
+		ShipEvent event = TestSupport.event("a");
+		event.enqueued = System.nanoTime();
+		ShipLatency.written(Arrays.asList(event));
+		String summary = ShipLatency.summary();
+		org.junit.Assert.assertTrue(summary,
+				summary.contains("enqueue-to-write lines=1 "));
+		org.junit.Assert.assertTrue(summary,
+				summary.contains("detect-to-read lines=0 "));
+		// Each report covers the lines since the previous one.
+		org.junit.Assert.assertTrue(ShipLatency.summary().contains(
+				"enqueue-to-write lines=0 "));
+	}
+}
@@ -0,0 +1,513 @@
+package shipper;
+
+import static shipper.ShipperLogger.debug;
+import static shipper.ShipperLogger.error;
+import static shipper.ShipperLogger.info;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Disk-backed queue for lines that cannot be sent while the log server is
+ * unreachable.
+ * <p>
+ * Lines are appended to memory-mapped segment files of fixed size. Segments
+ * are read front to back and deleted once completely read, so draining is a
+ * sequential bulk read. When the spool exceeds its size limit, the oldest
+ * segments are dropped. Only used by the sender thread.
+ * <p>
+ * A segment starts with {@link #MAGIC} and the position of the first unread
+ * record. Records consist of their length (int, excluding the length itself),
+ * their type (byte) and a payload. A length of 0 marks the end of written
+ * records. {@link #SOURCE} records describe a file before its first line
+ * within the segment, {@link #LEVEL_RECORD} records hold a line. Segments of
+ * earlier versions hold lines in {@link #RECORD} records.
+ */
+public class Spool implements Closeable {
+	/**
+	 * Regular size of segment files in production use.
+	 */
+	public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Start of segment files.
+	 */
+	private static final int MAGIC = 0x53485350;
+
+	/**
+	 * Position of the first unread record within the segment header.
+	 */
+	private static final int READ_POSITION = 4;
+
+	/**
+	 * Bytes before the first record.
+	 */
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * Record describing a file. Payload: file id (int), path, encoding and
+	 * logger name each as UTF-8 with a short length prefix.
+	 */
+	private static final byte SOURCE = 1;
+
+	/**
+	 * Record holding a line. Payload: file id (int), offset (long), timestamp
+	 * (long), line bytes.
+	 */
+	private static final byte RECORD = 2;
+
+	/**
+	 * Bytes of a line record before the line, excluding the record length.
+	 */
+	private static final int RECORD_HEADER = 1 + 4 + 8 + 8;
+
+	/**
+	 * Record holding a line and its level. Payload: file id (int), offset
+	 * (long), timestamp (long), syslog severity of the level (byte), line
+	 * bytes.
+	 */
+	private static final byte LEVEL_RECORD = 3;
+
+	/**
+	 * Suffix of segment files.
+	 */
+	private static final String SUFFIX = ".spool";
+
+	/**
+	 * Encoding of names within source records.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Single segment file.
+	 */
+	private static class Segment {
+		/**
+		 * Location of the segment.
+		 */
+		final Path file;
+
+		/**
+		 * Mapped content.
+		 */
+		final MappedByteBuffer content;
+
+		/**
+		 * Position after the last written record.
+		 */
+		int writePosition;
+
+		/**
+		 * Files described within this segment, by file id.
+		 */
+		final Map<Integer, LineSource> sources = new HashMap<>();
+
+		/**
+		 * Files described within this segment by the writer.
+		 */
+		final Set<Integer> written = new HashSet<>();
+
+		/**
+		 * {@code true} once source records before the read position were
+		 * collected.
+		 */
+		boolean sourcesRestored = false;
+
+		Segment(Path file, MappedByteBuffer content) {
+			this.file = file;
+			this.content = content;
+		}
+
+		int readPosition() {
+			return content.getInt(READ_POSITION);
+		}
+	}
+
+	/**
+	 * Directory of segment files.
+	 */
+	private final Path directory;
+
+	/**
+	 * Regular size of segment files.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Maximum bytes of all segment files.
+	 */
+	private final long maxSize;
+
+	/**
+	 * Segments from oldest to newest.
+	 */
+	private final Deque<Segment> segments = new ArrayDeque<>();
+
+	/**
+	 * Sequence number of the next segment.
+	 */
+	private long nextSegment = 0;
+
+	/**
+	 * Bytes of all segment files.
+	 */
+	private long size = 0;
+
+	/**
+	 * Position after the records returned by the last {@link #peek}.
+	 */
+	private int peekEnd = -1;
+
+	/**
+	 * Bytes of lines dropped as the spool was full.
+	 */
+	private volatile long droppedBytes = 0;
+
+	/**
+	 * @param directory
+	 *            Directory of segment files. Gets created if missing.
+	 *            Segments of earlier runs are read first.
+	 * @param segmentSize
+	 *            Regular size of segment files.
+	 * @param maxSize
+	 *            Maximum bytes of all segment files. At least two segments
+	 *            are kept.
+	 * @throws IOException
+	 *             Failed to open existing segments.
+	 */
+	public Spool(Path directory, int segmentSize, long maxSize)
+			throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSize = Math.max(maxSize, 2L * segmentSize);
+		Files.createDirectories(directory);
+
+		List<Path> existing = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(
+				directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				existing.add(file);
+			}
+		}
+		Collections.sort(existing);
+		for (Path file : existing) {
+			long fileSize = Files.size(file);
+			Segment segment = fileSize < HEADER_SIZE ? null : map(file,
+					fileSize);
+			if (segment == null || segment.content.getInt(0) != MAGIC) {
+				error("Ignoring " + file + " as it is not a spool segment.");
+				continue;
+			}
+			// Find end of written records.
+			int position = segment.readPosition();
+			int length;
+			while (position + 4 <= segment.content.capacity()
+					&& (length = segment.content.getInt(position)) > 0) {
+				position = position + 4 + length;
+			}
+			segment.writePosition = position;
+			segments.add(segment);
+			size = size + segment.content.capacity();
+			String name = file.getFileName().toString();
+			nextSegment = Math.max(nextSegment, Long.parseLong(name
+					.substring(0, name.length() - SUFFIX.length())) + 1);
+		}
+		if (!isEmpty()) {
+			info("Found " + size + " bytes of spooled lines in " + directory
+					+ ".");
+		}
+	}
+
+	/**
+	 * Stores lines at the end of the spool.
+	 * 
+	 * @param batch
+	 *            Lines to store.
+	 * @throws IOException
+	 *             Failed to create segment.
+	 */
+	public void append(List<ShipEvent> batch) throws IOException {
+		for (ShipEvent event : batch) {
+			LineSource source = event.source;
+			int required = RECORD_HEADER + 1 + 4 + event.line.length;
+			Segment segment = segments.peekLast();
+			if (segment == null
+					|| remaining(segment) < required
+							+ (segment.written.contains(source.fileId) ? 0
+									: sourceLength(source))) {
+				segment = roll(required + sourceLength(source));
+			}
+			MappedByteBuffer content = segment.content;
+			if (segment.written.add(source.fileId)) {
+				content.position(segment.writePosition);
+				content.putInt(sourceLength(source) - 4);
+				content.put(SOURCE);
+				content.putInt(source.fileId);
+				putString(content, source.path.toString());
+				putString(content, source.encoding.name());
+				putString(content, source.logger.getName());
+				segment.writePosition = content.position();
+			}
+			content.position(segment.writePosition + 4);
+			content.put(LEVEL_RECORD);
+			content.putInt(source.fileId);
+			content.putLong(event.offset);
+			content.putLong(event.timestamp);
+			content.put((byte) event.level.getSyslogEquivalent());
+			content.put(event.line);
+			// Publish record by writing its length last.
+			content.putInt(segment.writePosition, RECORD_HEADER + 1
+					+ event.line.length);
+			segment.writePosition = content.position();
+		}
+	}
+
+	/**
+	 * @return {@code true} if all stored lines were read.
+	 */
+	public boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (segment.readPosition() < segment.writePosition) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Bytes of lines dropped as the spool was full. May be called from
+	 *         any thread.
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * Reads the oldest stored lines without removing them.
+	 * 
+	 * @param target
+	 *            List to add lines to.
+	 * @param maximum
+	 *            Maximum number of lines to read.
+	 * @return Number of lines read.
+	 */
+	public int peek(List<ShipEvent> target, int maximum) {
+		dropReadSegments();
+		Segment segment = segments.peekFirst();
+		if (segment == null) {
+			return 0;
+		}
+		MappedByteBuffer content = segment.content;
+		int position = segment.readPosition();
+		if (!segment.sourcesRestored) {
+			// Lines may refer to sources that were read before a restart.
+			for (int skipped = HEADER_SIZE; skipped < position; skipped = skipped
+					+ 4 + content.getInt(skipped)) {
+				content.position(skipped + 4);
+				if (content.get() == SOURCE) {
+					readSource(segment);
+				}
+			}
+			segment.sourcesRestored = true;
+		}
+		int count = 0;
+		while (count < maximum && position < segment.writePosition) {
+			int length = content.getInt(position);
+			content.position(position + 4);
+			byte type = content.get();
+			if (type == SOURCE) {
+				readSource(segment);
+			} else if (type == RECORD || type == LEVEL_RECORD) {
+				LineSource source = segment.sources.get(content.getInt());
+				long offset = content.getLong();
+				long timestamp = content.getLong();
+				Level level = Level.INFO;
+				int header = RECORD_HEADER;
+				if (type == LEVEL_RECORD) {
+					level = SeverityClassifier.level(content.get());
+					header = header + 1;
+				}
+				byte[] line = new byte[length - header];
+				content.get(line);
+				ShipEvent event = new ShipEvent(source, offset, timestamp, line);
+				event.level = level;
+				target.add(event);
+				count = count + 1;
+			}
+			position = position + 4 + length;
+		}
+		peekEnd = position;
+		return count;
+	}
+
+	/**
+	 * Removes the lines returned by the last {@link #peek}.
+	 */
+	public void commit() {
+		Segment segment = segments.peekFirst();
+		if (segment != null && peekEnd >= 0) {
+			segment.content.putInt(READ_POSITION, peekEnd);
+		}
+		peekEnd = -1;
+		dropReadSegments();
+	}
+
+	/**
+	 * Forces stored lines to disk.
+	 */
+	@Override
+	public void close() {
+		for (Segment segment : segments) {
+			segment.content.force();
+		}
+	}
+
+	/**
+	 * Reads the payload of a source record at the current position.
+	 * 
+	 * @param segment
+	 *            Segment to register the source with.
+	 */
+	private static void readSource(Segment segment) {
+		MappedByteBuffer content = segment.content;
+		int fileId = content.getInt();
+		Path path = Paths.get(getString(content));
+		Charset encoding = Charset.forName(getString(content));
+		Logger logger = Logger.getLogger(getString(content));
+		segment.sources.put(fileId, new LineSource(fileId, path, logger,
+				encoding));
+	}
+
+	/**
+	 * Deletes completely read segments except for the one being written.
+	 */
+	private void dropReadSegments() {
+		while (segments.size() > 1) {
+			Segment oldest = segments.peekFirst();
+			if (oldest.readPosition() < oldest.writePosition) {
+				return;
+			}
+			delete(segments.removeFirst());
+		}
+	}
+
+	/**
+	 * Starts a new segment. Drops oldest segments if the size limit would be
+	 * exceeded.
+	 * 
+	 * @param required
+	 *            Bytes needed for the next record.
+	 * @return New segment.
+	 * @throws IOException
+	 *             Failed to create segment.
+	 */
+	private Segment roll(int required) throws IOException {
+		Segment current = segments.peekLast();
+		if (current != null) {
+			current.content.force();
+		}
+		int capacity = Math.max(segmentSize, HEADER_SIZE + required + 4);
+		while (!segments.isEmpty() && size + capacity > maxSize) {
+			Segment oldest = segments.removeFirst();
+			droppedBytes = droppedBytes + oldest.writePosition
+					- oldest.readPosition();
+			error("Spool is full, dropping "
+					+ (oldest.writePosition - oldest.readPosition())
+					+ " bytes of oldest lines.");
+			delete(oldest);
+			peekEnd = -1;
+		}
+		Path file = directory.resolve(String.format("%020d", nextSegment)
+				+ SUFFIX);
+		nextSegment = nextSegment + 1;
+		Segment segment = map(file, capacity);
+		segment.content.putInt(0, MAGIC);
+		segment.content.putInt(READ_POSITION, HEADER_SIZE);
+		segment.writePosition = HEADER_SIZE;
+		segment.sourcesRestored = true;
+		segments.add(segment);
+		size = size + capacity;
+		debug("Started spool segment " + file);
+		return segment;
+	}
+
+	/**
+	 * Deletes a segment file.
+	 * 
+	 * @param segment
+	 *            Segment that is no longer needed.
+	 */
+	private void delete(Segment segment) {
+		size = size - segment.content.capacity();
+		try {
+			Files.deleteIfExists(segment.file);
+		} catch (IOException e) {
+			error("Failed to delete spool segment " + segment.file, e);
+		}
+	}
+
+	/**
+	 * @return Free bytes of segment, reserving space for the end marker.
+	 */
+	private static int remaining(Segment segment) {
+		return segment.content.capacity() - segment.writePosition - 4;
+	}
+
+	/**
+	 * @return Bytes of the source record describing {@code source}.
+	 */
+	private static int sourceLength(LineSource source) {
+		return 4 + 1 + 4 + stringLength(source.path.toString())
+				+ stringLength(source.encoding.name())
+				+ stringLength(source.logger.getName());
+	}
+
+	private static int stringLength(String value) {
+		return 2 + value.getBytes(UTF8).length;
+	}
+
+	private static void putString(MappedByteBuffer content, String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		content.putShort((short) bytes.length);
+		content.put(bytes);
+	}
+
+	private static String getString(MappedByteBuffer content) {
+		byte[] bytes = new byte[content.getShort() & 0xFFFF];
+		content.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Maps a segment file, creating it if missing.
+	 */
+	private static Segment map(Path file, long capacity) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			return new Segment(file, channel.map(MapMode.READ_WRITE, 0,
+					capacity));
+		}
+	}
+}
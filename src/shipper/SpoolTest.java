@@ -0,0 +1,92 @@
+package shipper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class SpoolTest {
+
+	@Test
+	public void test() throws IOException {
+		Path directory = Files.createTempDirectory(null);
+		LineSource source = new LineSource(3, Paths.get("/var/log/a.log"),
+				Logger.getLogger("shipper.Main.3"), Charset.forName("UTF-8"));
+		try {
+			try (Spool spool = new Spool(directory, 4096, 1024 * 1024)) {
+				org.junit.Assert.assertTrue(spool.isEmpty());
+				List<ShipEvent> batch = new ArrayList<>();
+				for (int index = 0; index < 100; index = index + 1) {
+					batch.add(new ShipEvent(source, index * 10, 1000 + index,
+							("line " + index).getBytes("UTF-8")));
+				}
+				batch.get(10).level = Level.WARN;
+				spool.append(batch);
+				org.junit.Assert.assertFalse(spool.isEmpty());
+
+				// Uncommitted lines are read again.
+				List<ShipEvent> read = new ArrayList<>();
+				spool.peek(read, 10);
+				read.clear();
+				org.junit.Assert.assertEquals(10, spool.peek(read, 10));
+				org.junit.Assert.assertEquals("line 0", read.get(0).text());
+				spool.commit();
+			}
+
+			// Remaining lines survive reopening, across segments.
+			try (Spool spool = new Spool(directory, 4096, 1024 * 1024)) {
+				List<ShipEvent> read = new ArrayList<>();
+				while (!spool.isEmpty()) {
+					spool.peek(read, 7);
+					spool.commit();
+				}
+				org.junit.Assert.assertEquals(90, read.size());
+				ShipEvent first = read.get(0);
+				org.junit.Assert.assertEquals("line 10", first.text());
+				org.junit.Assert.assertEquals(100, first.offset);
+				org.junit.Assert.assertEquals(1010, first.timestamp);
+				org.junit.Assert.assertEquals(Level.WARN, first.level);
+				org.junit.Assert.assertEquals(Level.INFO, read.get(1).level);
+				org.junit.Assert.assertEquals(3, first.source.fileId);
+				org.junit.Assert.assertEquals(source.path, first.source.path);
+				org.junit.Assert.assertEquals("line 99", read.get(89).text());
+			}
+
+			// Oldest lines are dropped when full.
+			try (Spool spool = new Spool(directory, 4096, 8192)) {
+				byte[] line = new byte[100];
+				for (int index = 0; index < 100; index = index + 1) {
+					Arrays.fill(line, (byte) index);
+					spool.append(Arrays.asList(new ShipEvent(source, index,
+							0, line.clone())));
+				}
+				List<ShipEvent> read = new ArrayList<>();
+				while (!spool.isEmpty()) {
+					spool.peek(read, 100);
+					spool.commit();
+				}
+				org.junit.Assert.assertTrue(read.size() < 100);
+				org.junit.Assert.assertEquals(99,
+						read.get(read.size() - 1).offset);
+			}
+		} finally {
+			try (DirectoryStream<Path> files = Files
+					.newDirectoryStream(directory)) {
+				for (Path file : files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package shipper;
+
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fixtures shared by the unit tests.
+ */
+final class TestSupport {
+	/**
+	 * Source of lines that are not tracked for delivery.
+	 */
+	static final LineSource SOURCE = new LineSource(0, Paths.get("a.log"),
+			Logger.getLogger("test"), Charset.forName("UTF-8"));
+
+	private TestSupport() {
+	}
+
+	/**
+	 * @param line
+	 *            Content of the line.
+	 * @return Line of {@link #SOURCE} at the file start.
+	 */
+	static ShipEvent event(String line) {
+		return new ShipEvent(SOURCE, 0, 0, line.getBytes());
+	}
+
+	/**
+	 * @param source
+	 *            Source tracking delivery.
+	 * @param offset
+	 *            Position of the line within the file.
+	 * @param line
+	 *            Content of the line.
+	 * @return Line numbered for delivery tracking as if handed to the sender.
+	 */
+	static ShipEvent tracked(LineSource source, long offset, String line) {
+		ShipEvent event = new ShipEvent(source, offset, 0, line.getBytes());
+		event.sequence = source.delivery.sent();
+		return event;
+	}
+
+	/**
+	 * Collects reported lines with their offsets. Lines reported as text have
+	 * offset {@code -1}.
+	 */
+	static class CollectingListener implements LineSliceListener {
+		final List<String> lines = new ArrayList<>();
+		final List<Long> offsets = new ArrayList<>();
+
+		/**
+		 * Number of lines after which reporting fails once like access to
+		 * content of a truncated mapped file, {@code -1} to not fail.
+		 */
+		int failAt = -1;
+
+		@Override
+		public synchronized void lineAdded(Path path, LineSlice line) {
+			add(line.toString(), line.offset());
+		}
+
+		@Override
+		public synchronized void lineAdded(Path path, String lineContent) {
+			add(lineContent, -1);
+		}
+
+		private void add(String line, long offset) {
+			if (lines.size() == failAt) {
+				failAt = -1;
+				throw new InternalError("Simulated access to truncated file");
+			}
+			lines.add(line);
+			offsets.add(offset);
+		}
+
+		@Override
+		public void completelyRead(Path path) {
+		}
+
+		@Override
+		public void noSuchFile(Path path) {
+		}
+
+		@Override
+		public void fileRotated(Path path) {
+		}
+
+		@Override
+		public void resumed(Path path, long position) {
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package shipper;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+/**
+ * Creates the threads that monitor and read files, either as platform threads
+ * or as virtual threads.
+ * <p>
+ * Virtual threads need Java 21 or later. They are looked up reflectively so
+ * the shipper still runs on older Java versions, where only platform threads
+ * are available. Virtual threads cost a few kilobytes instead of a full stack
+ * while waiting for changes, so thousands of files can be monitored.
+ */
+public final class Threads {
+	/**
+	 * {@code Thread.ofVirtual()} or {@code null} if virtual threads are not
+	 * available.
+	 */
+	private static final Method OF_VIRTUAL;
+
+	/**
+	 * {@code Thread.Builder.name(String)}.
+	 */
+	private static final Method NAME;
+
+	/**
+	 * {@code Thread.Builder.unstarted(Runnable)}.
+	 */
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			// Fails on Java versions that have virtual threads as preview.
+			ofVirtual.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	private Threads() {
+	}
+
+	/**
+	 * @return {@code true} if virtual threads can be created.
+	 */
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates a thread without starting it.
+	 * 
+	 * @param name
+	 *            Name of the thread.
+	 * @param task
+	 *            Code to run.
+	 * @param daemon
+	 *            {@code true} to not keep the program alive. Virtual threads
+	 *            are always daemon threads.
+	 * @param virtual
+	 *            {@code true} to create a virtual thread. Requires
+	 *            {@link #isVirtualSupported()}.
+	 * @return Unstarted thread.
+	 */
+	public static Thread create(String name, Runnable task, boolean daemon,
+			boolean virtual) {
+		if (!virtual) {
+			Thread thread = new Thread(task, name);
+			thread.setDaemon(daemon);
+			return thread;
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+			return (Thread) UNSTARTED.invoke(builder, task);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Virtual threads not available.",
+					e);
+		}
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread.
+	 * 
+	 * @param name
+	 *            Name of the threads.
+	 * @return Executor without limit on concurrently running tasks.
+	 */
+	public static Executor virtualExecutor(final String name) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				create(name, task, true, true).start();
+			}
+		};
+	}
+}
@@ -0,0 +1,49 @@
+package shipper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ThreadsTest {
+
+	@Test
+	public void platform() throws InterruptedException {
+		Thread thread = run(false);
+		org.junit.Assert.assertEquals("Test", thread.getName());
+		org.junit.Assert.assertTrue(thread.isDaemon());
+	}
+
+	@Test
+	public void virtual() throws InterruptedException {
+		if (!Threads.isVirtualSupported()) {
+			// Requires Java 21.
+			return;
+		}
+		Thread thread = run(true);
+		org.junit.Assert.assertEquals("Test", thread.getName());
+		org.junit.Assert.assertTrue(thread.isDaemon());
+	}
+
+	/**
+	 * Runs a task on a new thread.
+	 * 
+	 * @param virtual
+	 *            {@code true} for a virtual thread.
+	 * @return Thread that ran the task.
+	 * @throws InterruptedException
+	 *             Interrupted while waiting for the task.
+	 */
+	private static Thread run(boolean virtual) throws InterruptedException {
+		final CountDownLatch ran = new CountDownLatch(1);
+		Thread thread = Threads.create("Test", new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		}, true, virtual);
+		thread.start();
+		org.junit.Assert.assertTrue(ran.await(10, TimeUnit.SECONDS));
+		return thread;
+	}
+}
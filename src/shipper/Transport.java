@@ -0,0 +1,40 @@
+package shipper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Connection to a log server.
+ */
+public interface Transport extends Closeable {
+	/**
+	 * Establishes the connection.
+	 * 
+	 * @throws IOException
+	 *             Log server not reachable.
+	 */
+	public void connect() throws IOException;
+
+	/**
+	 * @return {@code true} if connected.
+	 */
+	public boolean isConnected();
+
+	/**
+	 * Writes events and flushes them to the network once. Reports events via
+	 * {@link ShipEvent#delivered(List)} once the log server received them.
+	 * 
+	 * @param batch
+	 *            Events in shipping order.
+	 * @throws IOException
+	 *             Connection failed. The whole batch has to be sent again.
+	 */
+	public void write(List<ShipEvent> batch) throws IOException;
+
+	/**
+	 * Drops the connection. Does nothing if not connected.
+	 */
+	@Override
+	public void close();
+}
@@ -0,0 +1,798 @@
+package shipper;
+
+import static shipper.ShipperLogger.debug;
+import static shipper.ShipperLogger.error;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Monitors any number of paths with a single {@link WatchService} and a single
+ * dispatching thread.
+ * <p>
+ * Every directory is registered once no matter how many monitored files it
+ * holds. Events are routed to the affected {@link MonitoredFile}s whose reads
+ * run on a fixed size pool of reader threads or on a virtual thread per read.
+ * If watching is not available or
+ * not desired, all files are polled by a {@link PollingScheduler} instead.
+ * <p>
+ * Files can also be given by {@link GlobPattern}s. The relevant directories
+ * of a pattern are watched as well and indexed by directory, so an event
+ * costs a lookup per pattern of its directory regardless of the number of
+ * monitored files. Matching files are monitored as soon as they are created
+ * and released after they were deleted. Files that are not modified for some
+ * time are closed until they change again.
+ */
+public class WatchDispatcher extends Thread {
+	/**
+	 * Creates handlers for files found by patterns.
+	 */
+	public interface ListenerFactory {
+		/**
+		 * A file matching a pattern was found.
+		 * 
+		 * @param path
+		 *            Absolute path of the file.
+		 * @param existing
+		 *            {@code true} if the file existed when monitoring of the
+		 *            pattern started.
+		 * @return Handler for events of the file.
+		 */
+		public FileModificationListener create(Path path, boolean existing);
+	}
+
+	/**
+	 * Pattern and the settings of files matching it.
+	 */
+	private static class Glob {
+		final GlobPattern pattern;
+		final Charset encoding;
+		final ListenerFactory factory;
+		final CheckpointStore checkpoints;
+
+		Glob(GlobPattern pattern, Charset encoding, ListenerFactory factory,
+				CheckpointStore checkpoints) {
+			this.pattern = pattern;
+			this.encoding = encoding;
+			this.factory = factory;
+			this.checkpoints = checkpoints;
+		}
+	}
+
+	/**
+	 * Milliseconds between checks for idle or deleted files. Patterns are
+	 * searched for new files at the same interval when polling.
+	 */
+	private static final long SWEEP_INTERVAL = 2000;
+
+	/**
+	 * Events of interest.
+	 */
+	private static final Kind<?>[] KINDS = {
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_DELETE,
+			StandardWatchEventKinds.ENTRY_MODIFY };
+
+	/**
+	 * Shared watch service. {@code null} if the file system does not support
+	 * watching.
+	 */
+	private final WatchService ws;
+
+	/**
+	 * Poller of all files. {@code null} if files are watched.
+	 */
+	private final PollingScheduler poller;
+
+	/**
+	 * File system of monitored files.
+	 */
+	private final FileSystem fileSystem;
+
+	/**
+	 * Threads running file reads.
+	 */
+	private final Executor readers;
+
+	/**
+	 * Milliseconds to collect modifications of a file before reading it.
+	 */
+	private final long debounce;
+
+	/**
+	 * All monitored files.
+	 */
+	private final List<MonitoredFile> files = new ArrayList<>();
+
+	/**
+	 * All patterns.
+	 */
+	private final List<Glob> globs = new ArrayList<>();
+
+	/**
+	 * Files found by patterns, by path.
+	 */
+	private final Map<Path, MonitoredFile> matched = new HashMap<>();
+
+	/**
+	 * Files found by patterns that were deleted since the last sweep.
+	 */
+	private final Set<MonitoredFile> deleted = new HashSet<>();
+
+	/**
+	 * Patterns watching a directory, by watched directory.
+	 */
+	private final Map<Path, List<Glob>> patterns = new HashMap<>();
+
+	/**
+	 * {@link System#nanoTime()} of the last sweep.
+	 */
+	private long lastSweep = System.nanoTime();
+
+	/**
+	 * Watched directory by watch key.
+	 */
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+
+	/**
+	 * Watch key by watched directory.
+	 */
+	private final Map<Path, WatchKey> keys = new HashMap<>();
+
+	/**
+	 * Files affected by changes of a directory entry. Indexed by watched
+	 * directory and entry name.
+	 */
+	private final Map<Path, Map<Path, List<MonitoredFile>>> interests = new HashMap<>();
+
+	/**
+	 * @param fileSystem
+	 *            File system of monitored files.
+	 * @param readerThreads
+	 *            Number of threads reading files. Ignored for virtual threads.
+	 * @param poll
+	 *            {@code true} to poll files even if the file system supports
+	 *            watching.
+	 * @param virtual
+	 *            {@code true} to run each read on a new virtual thread
+	 *            instead of a pool of platform threads. Requires
+	 *            {@link Threads#isVirtualSupported()}.
+	 * @throws IOException
+	 *             Failed to create watch service.
+	 */
+	public WatchDispatcher(FileSystem fileSystem, int readerThreads,
+			boolean poll, boolean virtual) throws IOException {
+		this(fileSystem, readerThreads, poll, virtual, 0);
+	}
+
+	/**
+	 * @param fileSystem
+	 *            File system of monitored files.
+	 * @param readerThreads
+	 *            Number of threads reading files. Ignored for virtual threads.
+	 * @param poll
+	 *            {@code true} to poll files even if the file system supports
+	 *            watching.
+	 * @param virtual
+	 *            {@code true} to run each read on a new virtual thread
+	 *            instead of a pool of platform threads. Requires
+	 *            {@link Threads#isVirtualSupported()}.
+	 * @param debounce
+	 *            Milliseconds to collect modifications of a file before
+	 *            reading it. {@code 0} to read at once. Not used when polling.
+	 * @throws IOException
+	 *             Failed to create watch service.
+	 */
+	public WatchDispatcher(FileSystem fileSystem, int readerThreads,
+			boolean poll, boolean virtual, long debounce) throws IOException {
+		super("Watch dispatcher");
+		this.fileSystem = fileSystem;
+		this.debounce = debounce;
+
+		WatchService service = null;
+		if (!poll) {
+			try {
+				service = fileSystem.newWatchService();
+				debug("Using Java WatchService.");
+			} catch (UnsupportedOperationException e) {
+				debug("Falling back to polling.");
+			}
+		}
+		ws = service;
+		poller = service == null ? new PollingScheduler() : null;
+
+		if (virtual) {
+			readers = Threads.virtualExecutor("Reader");
+		} else {
+			readers = Executors.newFixedThreadPool(readerThreads,
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread reader = new Thread(r, "Reader "
+									+ count.incrementAndGet());
+							reader.setDaemon(true);
+							return reader;
+						}
+					});
+		}
+	}
+
+	/**
+	 * Starts monitoring a path.
+	 * 
+	 * @param path
+	 *            Path to monitor.
+	 * @param encoding
+	 *            Encoding for reading the file.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @param checkpoints
+	 *            Persisted read positions. May be {@code null}.
+	 */
+	public synchronized void monitor(Path path, Charset encoding,
+			FileModificationListener listener, CheckpointStore checkpoints) {
+		add(path.toAbsolutePath(), encoding, listener, checkpoints);
+	}
+
+	/**
+	 * Starts monitoring all files matching a pattern, including files that
+	 * are created later on.
+	 * 
+	 * @param pattern
+	 *            Glob pattern of paths.
+	 * @param encoding
+	 *            Encoding for reading the files.
+	 * @param factory
+	 *            Creates handlers for events of found files.
+	 * @param checkpoints
+	 *            Persisted read positions. May be {@code null}.
+	 */
+	public synchronized void monitor(String pattern, Charset encoding,
+			ListenerFactory factory, CheckpointStore checkpoints) {
+		Glob glob = new Glob(new GlobPattern(fileSystem, pattern), encoding,
+				factory, checkpoints);
+		globs.add(glob);
+		if (ws == null) {
+			search(glob, true);
+		} else {
+			// Watch from the closest existing directory so the root is found
+			// once created.
+			Path start = glob.pattern.root;
+			while (start.getParent() != null && !Files.isDirectory(start)) {
+				start = start.getParent();
+			}
+			watchTree(start, glob, true);
+		}
+	}
+
+	/**
+	 * Starts monitoring a file.
+	 * 
+	 * @param path
+	 *            Absolute path to monitor.
+	 * @param encoding
+	 *            Encoding for reading the file.
+	 * @param listener
+	 *            Handler for detected events.
+	 * @param checkpoints
+	 *            Persisted read positions. May be {@code null}.
+	 * @return Monitored file.
+	 */
+	private MonitoredFile add(Path path, Charset encoding,
+			FileModificationListener listener, CheckpointStore checkpoints) {
+		final MonitoredFile file = new MonitoredFile(path, encoding, listener,
+				checkpoints, readers, debounce);
+		files.add(file);
+		if (ws != null) {
+			register(file);
+		} else {
+			try {
+				poller.add(file.path, new Runnable() {
+					@Override
+					public void run() {
+						file.schedule();
+					}
+				});
+			} catch (IOException e) {
+				error("Failed to poll " + file.path, e);
+			}
+		}
+		// Report initial state and read existing content.
+		file.schedule();
+		return file;
+	}
+
+	/**
+	 * Starts monitoring a file found by a pattern.
+	 * 
+	 * @param path
+	 *            Absolute path of found file.
+	 * @param glob
+	 *            Pattern matching the file.
+	 * @param existing
+	 *            {@code true} if the file existed when monitoring of the
+	 *            pattern started.
+	 */
+	private void match(Path path, Glob glob, boolean existing) {
+		debug("Found " + path + " matching " + glob.pattern);
+		MonitoredFile file = add(path, glob.encoding,
+				glob.factory.create(path, existing), glob.checkpoints);
+		file.glob = glob.pattern;
+		matched.put(path, file);
+	}
+
+	/**
+	 * Stops monitoring a file found by a pattern.
+	 * 
+	 * @param file
+	 *            File that no longer exists.
+	 */
+	private void forget(MonitoredFile file) {
+		debug("Releasing " + file.path);
+		files.remove(file);
+		matched.remove(file.path);
+		file.close();
+		if (ws == null) {
+			poller.remove(file.path);
+		} else {
+			unregister(file);
+		}
+	}
+
+	/**
+	 * Watches a directory and its relevant subdirectories for files matching
+	 * a pattern. Starts monitoring the matching files within.
+	 * 
+	 * @param directory
+	 *            Absolute path of directory.
+	 * @param glob
+	 *            Pattern.
+	 * @param existing
+	 *            {@code true} if called when monitoring of the pattern starts.
+	 */
+	private void watchTree(Path directory, Glob glob, boolean existing) {
+		if (!glob.pattern.isRelevant(directory)) {
+			return;
+		}
+		List<Glob> directoryGlobs = patterns.get(directory);
+		if (directoryGlobs != null && directoryGlobs.contains(glob)) {
+			// Known already.
+			return;
+		}
+		try {
+			watch(directory);
+		} catch (NoSuchFileException e) {
+			// Removed meanwhile, the parent's watch reports a recreation.
+			return;
+		} catch (IOException | RuntimeException e) {
+			error("Failed to register watch for " + directory, e);
+			return;
+		}
+		if (directoryGlobs == null) {
+			directoryGlobs = new ArrayList<>(1);
+			patterns.put(directory, directoryGlobs);
+		}
+		directoryGlobs.add(glob);
+		// Entries created before the watch was in place are not reported.
+		scan(directory, glob, existing);
+	}
+
+	/**
+	 * Processes all entries of a watched directory.
+	 * 
+	 * @param directory
+	 *            Absolute path of directory.
+	 * @param glob
+	 *            Pattern.
+	 * @param existing
+	 *            {@code true} if called when monitoring of the pattern starts.
+	 */
+	private void scan(Path directory, Glob glob, boolean existing) {
+		try (DirectoryStream<Path> entries = Files
+				.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (matched.containsKey(entry)) {
+					continue;
+				}
+				if (Files.isDirectory(entry)) {
+					watchTree(entry, glob, existing);
+				} else if (glob.pattern.matches(entry)) {
+					match(entry, glob, existing);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// Removed meanwhile, its watch gets abandoned.
+		} catch (IOException | RuntimeException e) {
+			error("Failed to list " + directory, e);
+		}
+	}
+
+	/**
+	 * Searches a pattern for new and deleted files. Used when polling.
+	 * 
+	 * @param glob
+	 *            Pattern.
+	 * @param existing
+	 *            {@code true} if called when monitoring of the pattern starts.
+	 */
+	private void search(Glob glob, boolean existing) {
+		Set<Path> found;
+		try {
+			found = new HashSet<>(glob.pattern.findMatches());
+		} catch (IOException e) {
+			// Directories vanished while listing, retry with next search.
+			debug("Failed to search " + glob.pattern + ": " + e);
+			return;
+		}
+		for (Path path : found) {
+			if (!matched.containsKey(path)) {
+				match(path, glob, existing);
+			}
+		}
+		for (MonitoredFile file : new ArrayList<>(matched.values())) {
+			if (file.glob == glob.pattern && !found.contains(file.path)) {
+				forget(file);
+			}
+		}
+	}
+
+	/**
+	 * Releases deleted and idle files.
+	 */
+	private synchronized void sweep() {
+		lastSweep = System.nanoTime();
+		if (ws == null) {
+			for (Glob glob : globs) {
+				search(glob, false);
+			}
+		} else {
+			for (MonitoredFile file : deleted) {
+				try {
+					if (!Files.exists(file.path)) {
+						forget(file);
+					}
+				} catch (RuntimeException e) {
+					// Keep serving the other files.
+					error("Failed to release " + file.path, e);
+				}
+			}
+		}
+		deleted.clear();
+		for (MonitoredFile file : files) {
+			try {
+				file.releaseIfIdle();
+			} catch (RuntimeException e) {
+				error("Failed to release idle " + file.path, e);
+			}
+		}
+	}
+
+	/**
+	 * Routes watch events to monitored files. Should never return.
+	 */
+	@Override
+	public void run() {
+		if (ws == null) {
+			poller.start();
+			while (!isInterrupted()) {
+				try {
+					Thread.sleep(SWEEP_INTERVAL);
+				} catch (InterruptedException e) {
+					poller.interrupt();
+					break;
+				}
+				sweep();
+			}
+			return;
+		}
+
+		while (!isInterrupted()) {
+			WatchKey key;
+			try {
+				// Await the presence of new events on any watched folder.
+				key = ws.poll(SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				error("Interrupted waiting for watch event.", e);
+				break;
+			}
+			if (System.nanoTime() - lastSweep >= TimeUnit.MILLISECONDS
+					.toNanos(SWEEP_INTERVAL)) {
+				sweep();
+			}
+			if (key == null) {
+				continue;
+			}
+			synchronized (this) {
+				Path directory = directories.get(key);
+				if (directory == null) {
+					// Key was cancelled meanwhile.
+					continue;
+				}
+				for (WatchEvent<?> event : key.pollEvents()) {
+					dispatch(directory, event);
+				}
+				if (!key.reset() && directories.containsKey(key)) {
+					debug("Aborting watch on " + directory
+							+ " as it is no longer watchable.");
+					abandon(directory, key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Routes a single event to the affected files.
+	 * 
+	 * @param directory
+	 *            Watched directory.
+	 * @param candidate
+	 *            Event within directory.
+	 */
+	private void dispatch(Path directory, WatchEvent<?> candidate) {
+		List<Glob> directoryGlobs = patterns.get(directory);
+		if (directoryGlobs != null) {
+			for (Glob glob : new ArrayList<>(directoryGlobs)) {
+				try {
+					dispatch(directory, glob, candidate);
+				} catch (RuntimeException e) {
+					error("Failed to handle event for " + glob.pattern, e);
+				}
+			}
+		}
+
+		Map<Path, List<MonitoredFile>> entries = interests.get(directory);
+		if (entries == null) {
+			// Directory no longer needed by any file.
+			return;
+		}
+		List<MonitoredFile> affected;
+		if (candidate.kind() == StandardWatchEventKinds.OVERFLOW) {
+			debug("Java lost events, checking for additions to monitored files in "
+					+ directory);
+			// Java lost events. Make sure to process existing files to
+			// avoid missing additions.
+			affected = new ArrayList<>();
+			for (List<MonitoredFile> entryFiles : entries.values()) {
+				affected.addAll(entryFiles);
+			}
+		} else {
+			Path entry = ((Path) candidate.context()).getName(0);
+			List<MonitoredFile> entryFiles = entries.get(entry);
+			if (entryFiles == null) {
+				// Unrelated file.
+				return;
+			}
+			affected = new ArrayList<>(entryFiles);
+		}
+
+		for (MonitoredFile file : affected) {
+			try {
+				dispatch(file, candidate);
+			} catch (RuntimeException e) {
+				// Keep serving the other files.
+				error("Failed to handle event for " + file.path, e);
+			}
+		}
+	}
+
+	/**
+	 * Routes a single event to a file watching the directory.
+	 * 
+	 * @param file
+	 *            Monitored file.
+	 * @param candidate
+	 *            Event within the watched directory of the file.
+	 */
+	private void dispatch(MonitoredFile file, WatchEvent<?> candidate) {
+		if (file.watched == null) {
+			// Watch could not be registered.
+			return;
+		}
+		if (file.isWatchingParent()) {
+			// Something happened to the monitored file.
+			if (candidate.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+				file.modified();
+			} else {
+				file.schedule();
+			}
+		} else if (candidate.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+			debug("More specific path to monitor available for "
+					+ file.path);
+			// Path towards monitored file created, try to get a closer
+			// watch.
+			unregister(file);
+			register(file);
+			if (file.watched != null && file.isWatchingParent()) {
+				// Process new files (either newly created or available
+				// due to parent folder moves).
+				file.schedule();
+			}
+		}
+	}
+
+	/**
+	 * Routes a single event to a pattern watching the directory.
+	 * 
+	 * @param directory
+	 *            Watched directory.
+	 * @param glob
+	 *            Pattern watching the directory.
+	 * @param candidate
+	 *            Event within directory.
+	 */
+	private void dispatch(Path directory, Glob glob, WatchEvent<?> candidate) {
+		if (candidate.kind() == StandardWatchEventKinds.OVERFLOW) {
+			scan(directory, glob, false);
+			return;
+		}
+		Path entry = directory.resolve((Path) candidate.context());
+		MonitoredFile file = matched.get(entry);
+		if (file != null) {
+			if (candidate.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				// Release after the last read.
+				deleted.add(file);
+			}
+		} else if (candidate.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+			// Check names first to avoid file system access for unrelated
+			// files.
+			if (glob.pattern.matches(entry) && !Files.isDirectory(entry)) {
+				match(entry, glob, false);
+			} else if (glob.pattern.isRelevant(entry)
+					&& Files.isDirectory(entry)) {
+				watchTree(entry, glob, false);
+			}
+		}
+	}
+
+	/**
+	 * Moves files of a directory that vanished to the closest existing
+	 * directory.
+	 * 
+	 * @param directory
+	 *            Directory that is no longer watchable.
+	 * @param key
+	 *            Invalid watch key of the directory.
+	 */
+	private void abandon(Path directory, WatchKey key) {
+		directories.remove(key);
+		keys.remove(directory);
+		patterns.remove(directory);
+		Map<Path, List<MonitoredFile>> entries = interests.remove(directory);
+		if (entries == null) {
+			// Only watched for patterns.
+			return;
+		}
+		for (List<MonitoredFile> entryFiles : entries.values()) {
+			for (MonitoredFile file : entryFiles) {
+				// Directory is no longer among the interests.
+				file.watched = null;
+				register(file);
+				// Report vanished or moved file.
+				file.schedule();
+				if (file.glob != null) {
+					deleted.add(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Watches the closest existing directory of a file.
+	 * 
+	 * @param file
+	 *            Monitored file.
+	 */
+	private void register(MonitoredFile file) {
+		Path closestExisting = null;
+		while (closestExisting == null) {
+			try {
+				closestExisting = FileMonitor.getClosestWatchable(file.path);
+				watch(closestExisting);
+			} catch (NoSuchFileException e) {
+				debug(closestExisting + " vanished, climbing up.");
+				closestExisting = null;
+			} catch (IOException | RuntimeException e) {
+				error("Failed to register watch for " + file.path, e);
+				return;
+			}
+		}
+
+		Map<Path, List<MonitoredFile>> entries = interests.get(closestExisting);
+		if (entries == null) {
+			entries = new HashMap<>();
+			interests.put(closestExisting, entries);
+		}
+		Path entry = closestExisting.relativize(file.path).getName(0);
+		List<MonitoredFile> entryFiles = entries.get(entry);
+		if (entryFiles == null) {
+			entryFiles = new ArrayList<>(1);
+			entries.put(entry, entryFiles);
+		}
+		entryFiles.add(file);
+		file.watched = closestExisting;
+
+		if (!file.isWatchingParent()
+				&& Files.exists(closestExisting.resolve(entry))) {
+			// Path towards monitored file was created before the watch was
+			// in place, its creation event is lost.
+			unregister(file);
+			register(file);
+		}
+	}
+
+	/**
+	 * Registers a directory with the watch service unless watched already.
+	 * 
+	 * @param directory
+	 *            Directory to watch.
+	 * @throws IOException
+	 *             Failed to register.
+	 */
+	private void watch(Path directory) throws IOException {
+		if (!keys.containsKey(directory)) {
+			debug("Start watching " + directory);
+			WatchKey key = directory.register(ws, KINDS);
+			keys.put(directory, key);
+			directories.put(key, directory);
+		}
+	}
+
+	/**
+	 * Removes a file from its watched directory. Stops watching the directory
+	 * if no other files depend on it.
+	 * 
+	 * @param file
+	 *            Monitored file.
+	 */
+	private void unregister(MonitoredFile file) {
+		if (file.watched == null) {
+			// Registration failed or directory was abandoned.
+			return;
+		}
+		Map<Path, List<MonitoredFile>> entries = interests.get(file.watched);
+		if (entries != null) {
+			Path entry = file.watched.relativize(file.path).getName(0);
+			List<MonitoredFile> entryFiles = entries.get(entry);
+			if (entryFiles != null) {
+				entryFiles.remove(file);
+				if (entryFiles.isEmpty()) {
+					entries.remove(entry);
+				}
+			}
+			if (entries.isEmpty()) {
+				interests.remove(file.watched);
+				WatchKey key = keys.get(file.watched);
+				if (!patterns.containsKey(file.watched) && key != null) {
+					debug("Stop watching " + file.watched);
+					keys.remove(file.watched);
+					directories.remove(key);
+					key.cancel();
+				}
+			}
+		}
+		file.watched = null;
+	}
+}